@@ -4,27 +4,32 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.ViewTreeObserver;
 import android.widget.ExpandableListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
 
 import tonyg.example.com.exampleblescan.ble.BleCommManager;
+import tonyg.example.com.exampleblescan.ble.BleConnectionProfile;
+import tonyg.example.com.exampleblescan.ble.BleConnectionStateMachine;
+import tonyg.example.com.exampleblescan.ble.BleLatencyTracer;
 import tonyg.example.com.exampleblescan.ble.BlePeripheral;
-import tonyg.example.com.exampleblescan.models.BleGattCharacteristicListItem;
+import tonyg.example.com.exampleblescan.ble.BleSessionRegistry;
+import tonyg.example.com.exampleblescan.ble.callbacks.BleConnectionProfileCallback;
 import tonyg.example.com.exampleblescan.adapters.BleGattProfileListAdapter;
-import tonyg.example.com.exampleblescan.models.BleGattServiceListItem;
+import tonyg.example.com.exampleblescan.models.BleGattProfile;
 
 /**
  * Connect to a BLE Device, list its GATT services
@@ -36,6 +41,9 @@ public class ConnectActivity extends AppCompatActivity {
     /** Constants **/
     private static final String TAG = ConnectActivity.class.getSimpleName();
     public static final String PERIPHERAL_MAC_ADDRESS_KEY = "com.example.com.exampleble.PERIPHERAL_MAC_ADDRESS";
+    private static final long IDLE_DISCONNECT_TIMEOUT_MS = 30 * 1000; // disconnect after 30 seconds of no activity
+    // listed before the rest of the GATT Profile, where Android can discover Services one at a time
+    private static final List<UUID> PRIORITY_SERVICE_UUIDS = Collections.singletonList(BlePeripheral.DEVICE_INFORMATION_SERVICE_UUID);
 
     /** Bluetooth Stuff **/
     private BleCommManager mBleCommManager;
@@ -46,8 +54,9 @@ public class ConnectActivity extends AppCompatActivity {
     private String mBlePeripheralName;
 
     /** Activity State **/
-    private boolean mBleConnected = false;
-    private boolean mLeaveActivity = false;
+    // the connection state itself lives in BlePeripheral's state machine.
+    // This flag is set on the UI thread and read on the GATT callback thread
+    private volatile boolean mLeaveActivity = false;
 
     /** UI Stuff **/
     private MenuItem mProgressSpinner;
@@ -92,7 +101,7 @@ public class ConnectActivity extends AppCompatActivity {
         mGattProfileListEmptyTV = (TextView)findViewById(R.id.gatt_profile_list_empty);
 
         mGattProfileListView = (ExpandableListView) findViewById(R.id.peripherals_list);
-        mGattProfileListAdapter = new BleGattProfileListAdapter();
+        mGattProfileListAdapter = new BleGattProfileListAdapter(this);
 
 
         mGattProfileListView.setAdapter(mGattProfileListAdapter);
@@ -112,7 +121,19 @@ public class ConnectActivity extends AppCompatActivity {
     @Override
     public void onPause() {
         super.onPause();
-        disconnect();
+        // Leaving for good: drop the connection.
+        // Otherwise keep it alive so the next screen can pick it up from the BleSessionRegistry.
+        // The idle timeout disconnects it if nobody does.
+        if (isFinishing()) {
+            disconnect();
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // a parked connection outlives this Activity, so it must not hold on to it
+        mBlePeripheral.setCallback(null);
     }
 
 
@@ -182,10 +203,30 @@ public class ConnectActivity extends AppCompatActivity {
      * Connect to Peripheral
      */
     public void connect() {
+        // reuse a live connection if there is one, rather than connecting and discovering again
+        BlePeripheral blePeripheral = BleSessionRegistry.get(mPeripheralMacAddress);
+        if (blePeripheral != null) {
+            Log.v(TAG, "Reusing connection to " + mPeripheralMacAddress);
+            mBlePeripheral = blePeripheral;
+            mBlePeripheral.setCallback(mGattCallback);
+            onBleConnected();
+            if (mBlePeripheral.isServicesDiscovered()) {
+                mGattProfileListAdapter.setGattProfile(mBlePeripheral.getGattProfile());
+                onBleServiceDiscoveryStopped();
+            } else {
+                onBleServiceDiscoveryStarted();
+                mBlePeripheral.discoverServices(PRIORITY_SERVICE_UUIDS);
+            }
+            return;
+        }
+
         // grab the Peripheral Device address and attempt to connect
         BluetoothDevice bluetoothDevice = mBleCommManager.getBluetoothAdapter().getRemoteDevice(mPeripheralMacAddress);
+        BleLatencyTracer.mark(mPeripheralMacAddress, BleLatencyTracer.EVENT_REMOTE_DEVICE_RESOLVED);
         mProgressSpinner.setVisible(true);
         try {
+            mBlePeripheral.setIdleDisconnectTimeout(IDLE_DISCONNECT_TIMEOUT_MS);
+            mBlePeripheral.setLatencyTracing(true);
             mBlePeripheral.connect(bluetoothDevice, mGattCallback, getApplicationContext());
         } catch (Exception e) {
             mProgressSpinner.setVisible(false);
@@ -221,7 +262,7 @@ public class ConnectActivity extends AppCompatActivity {
      *  Quit the activity if the Peripheral is disconnected.  Otherwise disconnect and try again
      */
     public void quitActivity() {
-        if (!mBleConnected) {
+        if (!mBlePeripheral.isConnected() && mBlePeripheral.getConnectionState() != BleConnectionStateMachine.State.CONNECTING) {
             finish();
         } else {
             disconnect();
@@ -229,6 +270,15 @@ public class ConnectActivity extends AppCompatActivity {
     }
 
 
+    /**
+     * Bluetooth Peripheral disconnected.  Update UI
+     */
+    public void onBleDisconnected() {
+        mProgressSpinner.setVisible(false);
+        mConnectItem.setVisible(true);
+        mDisconnectItem.setVisible(false);
+    }
+
     /**
      * Bluetooth Peripheral GATT Profile being scanned.  Update UI
      *
@@ -250,6 +300,76 @@ public class ConnectActivity extends AppCompatActivity {
         mDisconnectItem.setVisible(true);
     }
 
+    /**
+     * List the GATT Services and Characteristics of the Peripheral.
+     * The list items are built on the calling thread, then swapped into
+     * the ListView with a single post to the UI thread
+     *
+     * @param profile the discovered GATT Profile
+     * @param discoveredAt when onServicesDiscovered was called, from SystemClock.elapsedRealtime()
+     * @param discoveryComplete <b>false</b> if only the priority Services are known so far
+     */
+    private void listServices(BleGattProfile profile, final long discoveredAt, final boolean discoveryComplete) {
+        final BleGattProfileListAdapter.Snapshot snapshot = mGattProfileListAdapter.buildSnapshot(profile);
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                reportListRendered(snapshot, discoveredAt);
+                mGattProfileListAdapter.setSnapshot(snapshot);
+                BleLatencyTracer.mark(mPeripheralMacAddress, BleLatencyTracer.EVENT_ADAPTER_PUBLISHED);
+                if (discoveryComplete) {
+                    onBleServiceDiscoveryStopped();
+                } else {
+                    expandPriorityServices();
+                }
+            }
+        });
+    }
+
+    /**
+     * Open the priority Services, which are the ones needed first.
+     * They stay open when the rest of the GATT Profile is listed, since list item IDs are stable
+     */
+    private void expandPriorityServices() {
+        for (UUID serviceUuid : PRIORITY_SERVICE_UUIDS) {
+            int groupPosition = mGattProfileListAdapter.getGroupPosition(serviceUuid);
+            if (groupPosition >= 0) {
+                mGattProfileListView.expandGroup(groupPosition);
+            }
+        }
+    }
+
+    /**
+     * Log how long it took from discovering the GATT Profile to drawing it on screen
+     *
+     * @param snapshot the list items that are about to be drawn
+     * @param discoveredAt when onServicesDiscovered was called, from SystemClock.elapsedRealtime()
+     */
+    private void reportListRendered(final BleGattProfileListAdapter.Snapshot snapshot, final long discoveredAt) {
+        mGattProfileListView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                // the list has been laid out and is about to be drawn
+                mGattProfileListView.getViewTreeObserver().removeOnPreDrawListener(this);
+                Log.v(TAG, "Listed " + snapshot.getServiceCount() + " services and " + snapshot.getCharacteristicCount()
+                        + " characteristics " + (SystemClock.elapsedRealtime() - discoveredAt) + "ms after discovery");
+                BleLatencyTracer.mark(mPeripheralMacAddress, BleLatencyTracer.EVENT_FIRST_DRAW);
+                Log.v(TAG, "Connection latencies in ms:\n" + BleLatencyTracer.toText());
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Log the negotiated connection parameters
+     */
+    private final BleConnectionProfileCallback mConnectionProfileCallback = new BleConnectionProfileCallback() {
+        @Override
+        public void onConnectionProfileNegotiated(BleConnectionProfile connectionProfile, int mtu, int txPhy, int rxPhy) {
+            Log.v(TAG, "Connection profile " + connectionProfile + ": mtu=" + mtu + ", txPhy=" + txPhy + ", rxPhy=" + rxPhy);
+        }
+    };
+
     private BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
 
         /**
@@ -257,7 +377,8 @@ public class ConnectActivity extends AppCompatActivity {
          */
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
-            // We don't care about this here as we aren't communicating with Characteristics
+            // Subscribed values are delivered through BlePeripheral.setNotificationCallback,
+            // we aren't subscribing to any Characteristics here
         }
 
         /**
@@ -270,7 +391,6 @@ public class ConnectActivity extends AppCompatActivity {
             // and discover the GATT profile of the connected Peripheral
             if (newState == BluetoothProfile.STATE_CONNECTED) {
                 Log.v(TAG, "Connected to peripheral");
-                mBleConnected = true;
 
                 runOnUiThread(new Runnable() {
                     @Override
@@ -280,11 +400,23 @@ public class ConnectActivity extends AppCompatActivity {
                     }
                 });
 
-                gatt.discoverServices();
+                // speed up discovery by asking for a short connection interval first
+                mBlePeripheral.requestConnectionProfile(BleConnectionProfile.LOW_LATENCY, mConnectionProfileCallback);
+                mBlePeripheral.discoverServices(PRIORITY_SERVICE_UUIDS);
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                mBlePeripheral.close();
-                mBleConnected = false;
-                if (mLeaveActivity) quitActivity();
+                // BlePeripheral has already closed the connection
+                Log.v(TAG, "Disconnected from peripheral, status: " + status);
+                BleLatencyTracer.cancel(mPeripheralMacAddress);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mLeaveActivity) {
+                            quitActivity();
+                        } else {
+                            onBleDisconnected();
+                        }
+                    }
+                });
             }
         }
 
@@ -296,59 +428,26 @@ public class ConnectActivity extends AppCompatActivity {
         @Override
         public void onServicesDiscovered(BluetoothGatt bluetoothGatt, int status) {
 
-            // if services were discovered, then let's iterate through them and display them on screen
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                List<BluetoothGattService> services = bluetoothGatt.getServices();
-                for (BluetoothGattService service : services) {
-                    if (service != null) {
-                        Log.v(TAG, "Service uuid: " + service.getUuid());
-
-                        // add the gatt service to our list
-                        mGattProfileListAdapter.addService(service);
-                        // update the UI to reflect the new Service
-                        runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                mGattProfileListAdapter.notifyDataSetChanged();
-                            }
-                        });
-
-                        // while we are here, let's ask for this service's characteristics:
-                        List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
-                        for (BluetoothGattCharacteristic characteristic : characteristics) {
-                            if (characteristic != null) {
-                                // if there are Characteristics, add them to the Service's list
-                                try {
-                                    mGattProfileListAdapter.addCharacteristic(service, characteristic);
-                                    // update the ListView UI
-                                    runOnUiThread(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            mGattProfileListAdapter.notifyDataSetChanged();
-                                        }
-                                    });
-
-                                } catch (Exception e) {
-                                    Log.e(TAG, e.getMessage());
-                                }
-
-                            }
-                        }
-                    }
-
+            long discoveredAt = SystemClock.elapsedRealtime();
 
+            // if services were discovered, then let's display them on screen.
+            // Priority Services are listed as soon as they are found, the rest follow
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                boolean discoveryComplete = mBlePeripheral.isDiscoveryComplete();
+                listServices(mBlePeripheral.getGattProfile(), discoveredAt, discoveryComplete);
+                if (discoveryComplete) {
+                    // stay connected, so that the next screen can reuse this connection
+                    BleSessionRegistry.register(mBlePeripheral);
                 }
-                disconnect(); // disconnect from the Peripheral so that a connection is possible again in TalkActivity
             } else {
                 Log.e(TAG, "Something went wrong while discovering GATT services from this peripheral");
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        onBleServiceDiscoveryStopped();
+                    }
+                });
             }
-
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    onBleServiceDiscoveryStopped();
-                }
-            });
         }
     };
 
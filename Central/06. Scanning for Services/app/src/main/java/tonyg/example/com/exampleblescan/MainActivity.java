@@ -16,9 +16,13 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 import tonyg.example.com.exampleblescan.ble.BleCommManager;
+import tonyg.example.com.exampleblescan.ble.BleLatencyTracer;
 import tonyg.example.com.exampleblescan.ble.callbacks.BleScanCallbackv21;
 import tonyg.example.com.exampleblescan.ble.callbacks.BleScanCallbackv18;
 import tonyg.example.com.exampleblescan.models.BlePeripheralListItem;
@@ -237,6 +241,13 @@ public class MainActivity extends AppCompatActivity {
      * Event trigger when new Peripheral is discovered
      */
     public void onBlePeripheralDiscovered(BluetoothDevice bluetoothDevice, int rssi) {
+        onBlePeripheralDiscovered(bluetoothDevice, rssi, Collections.<UUID, Object>emptyMap());
+    }
+
+    /**
+     * Event trigger when new Peripheral is discovered, with the values it broadcasts
+     */
+    public void onBlePeripheralDiscovered(BluetoothDevice bluetoothDevice, int rssi, Map<UUID, Object> broadcastValues) {
         Log.v(TAG, "Found "+bluetoothDevice.getName()+", "+bluetoothDevice.getAddress());
         // only add the peripheral if
         // - it has a name, on
@@ -246,14 +257,22 @@ public class MainActivity extends AppCompatActivity {
         if (bluetoothDevice.getName() == null) {
             addPeripheral = false;
         }
+        boolean updatePeripheral = false;
         for(BlePeripheralListItem listItem : mBlePeripheralsListAdapter.getItems()) {
             if ( listItem.getBroadcastName().equals(bluetoothDevice.getName()) ) {
                 addPeripheral = false;
+                // broadcast values change without a connection, so keep the latest
+                if (!broadcastValues.isEmpty() && !broadcastValues.equals(listItem.getBroadcastValues())) {
+                    listItem.setBroadcastValues(broadcastValues);
+                    updatePeripheral = true;
+                }
             }
         }
 
         if (addPeripheral) {
-            mBlePeripheralsListAdapter.addBluetoothPeripheral(bluetoothDevice, rssi);
+            mBlePeripheralsListAdapter.addBluetoothPeripheral(bluetoothDevice, rssi, broadcastValues);
+        }
+        if (addPeripheral || updatePeripheral) {
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
@@ -278,6 +297,7 @@ public class MainActivity extends AppCompatActivity {
             intent.putExtra(ConnectActivity.PERIPHERAL_MAC_ADDRESS_KEY, mConnectToPeripheralMacAddress);
 
             Log.v(TAG, "Setting intent: " + ConnectActivity.PERIPHERAL_MAC_ADDRESS_KEY + ": " + mConnectToPeripheralMacAddress);
+            BleLatencyTracer.mark(mConnectToPeripheralMacAddress, BleLatencyTracer.EVENT_INTENT_DISPATCHED);
             startActivity(intent);
         }
     }
@@ -297,7 +317,7 @@ public class MainActivity extends AppCompatActivity {
             BluetoothDevice bluetoothDevice = result.getDevice();
             int rssi = result.getRssi();
 
-            onBlePeripheralDiscovered(bluetoothDevice, rssi);
+            onBlePeripheralDiscovered(bluetoothDevice, rssi, mBleCommManager.decodeBroadcastValues(result.getScanRecord()));
         }
 
         /**
@@ -311,7 +331,7 @@ public class MainActivity extends AppCompatActivity {
                 BluetoothDevice bluetoothDevice = result.getDevice();
                 int rssi = result.getRssi();
 
-                onBlePeripheralDiscovered(bluetoothDevice, rssi);
+                onBlePeripheralDiscovered(bluetoothDevice, rssi, mBleCommManager.decodeBroadcastValues(result.getScanRecord()));
             }
         }
 
@@ -1,8 +1,6 @@
 package tonyg.example.com.exampleblescan.adapters;
 
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
-import android.util.Log;
+import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -10,18 +8,25 @@ import android.widget.BaseExpandableListAdapter;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 import tonyg.example.com.exampleblescan.R;
-import tonyg.example.com.exampleblescan.ble.BlePeripheral;
+import tonyg.example.com.exampleblescan.models.BleAssignedNumbers;
 import tonyg.example.com.exampleblescan.models.BleGattCharacteristicListItem;
+import tonyg.example.com.exampleblescan.models.BleGattProfile;
 import tonyg.example.com.exampleblescan.models.BleGattServiceListItem;
 
 /**
  * Manages the BleGattServiceListItem so that we can populate the GATT Profile List
  * Uses a BaseExpandableListAdapter to create a tree-like structure
  *
+ * The list items live in an immutable Snapshot, which can be built on any thread
+ * and is swapped in on the UI thread in one step
+ *
  * New in this chapter
  *
  * @author Tony Gaitatzis backupbrain@gmail.com
@@ -30,13 +35,16 @@ import tonyg.example.com.exampleblescan.models.BleGattServiceListItem;
 public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
     private final static String TAG = BleGattProfileListAdapter.class.getSimpleName();
 
-    private ArrayList<BleGattServiceListItem> mBleGattServiceListItems = new ArrayList<>(); // list of Services
-    private Map<Integer, ArrayList<BleGattCharacteristicListItem>> mBleCharacteristicListItems = new HashMap<Integer, ArrayList<BleGattCharacteristicListItem>>(); // list of Characteristics
+    private final Context mContext;
+    private Snapshot mSnapshot = Snapshot.EMPTY; // only replaced on the UI thread
 
     /**
      * Instantiate the class
+     *
+     * @param context used to load the names of Bluetooth SIG Services and Characteristics
      */
-    public BleGattProfileListAdapter() {
+    public BleGattProfileListAdapter(Context context) {
+        mContext = context.getApplicationContext();
     }
 
     /** PARENT (GATT SERVICE) METHODS FOR COLLAPSIBLE TREE STRUCTURE **/
@@ -48,7 +56,7 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
      */
     @Override
     public BleGattServiceListItem getGroup(int groupPosition) {
-        return mBleGattServiceListItems.get(groupPosition);
+        return mSnapshot.mBleGattServiceListItems.get(groupPosition);
     }
 
     /**
@@ -57,58 +65,59 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
      */
     @Override
     public int getGroupCount() {
-        return mBleGattServiceListItems.size();
+        return mSnapshot.mBleGattServiceListItems.size();
     }
 
     /**
-     * Add a new Service to be listed in the ListView
-     * @param service the GATT Service to add
+     * Build the list items for a whole GATT Profile in one pass, including the names of
+     * known Services and Characteristics.  This does not change the adapter, so it can run
+     * on any thread, and it is where the assigned numbers table is loaded the first time
+     *
+     * @param profile the discovered GATT Profile
+     * @return the list items, ready for setSnapshot()
      */
-    public void addService(BluetoothGattService service) {
-        int serviceItemID = mBleGattServiceListItems.size();
-        BleGattServiceListItem serviceListItem = new BleGattServiceListItem(service, serviceItemID);
-        mBleGattServiceListItems.add(serviceListItem);
-        mBleCharacteristicListItems.put(serviceItemID, new ArrayList<BleGattCharacteristicListItem>());
+    public Snapshot buildSnapshot(BleGattProfile profile) {
+        return new Snapshot(profile, BleAssignedNumbers.getInstance(mContext));
     }
 
     /**
-     * Add a new Characteristic to be listed in the ListView
+     * Replace everything in the ListView with a new Snapshot and redraw it once.
+     * Must be called on the UI thread
      *
-     * @param service the Service that this Characteristic belongs to
-     * @param characteristic the Gatt Characteristic to add
-     * @throws Exception if such a service does not exist
+     * @param snapshot the list items to display
      */
-    public void addCharacteristic(BluetoothGattService service, BluetoothGattCharacteristic characteristic) throws Exception {
-        // find the Service in this listView with matching UUID from the input service
-        int serviceItemId = -1;
-        for (BleGattServiceListItem bleGattServiceListItem : mBleGattServiceListItems) {
-            //serviceItemId++;
-            if (bleGattServiceListItem.getService().getUuid().equals(service.getUuid())) {
-                Log.v(TAG, "Service found with UUID: "+service.getUuid().toString());
-                serviceItemId = bleGattServiceListItem.getItemId();
-                //break; // FIXME: this cause problems before.  Why?
-            }
-        }
-
-        // Throw an exception if no such service exists
-        if (serviceItemId < 0) throw new Exception("Service not found with UUID: "+service.getUuid().toString());
+    public void setSnapshot(Snapshot snapshot) {
+        mSnapshot = snapshot;
+        notifyDataSetChanged();
+    }
 
-        // add characterstic to the end of the sub-list for the parent service
-        if (!mBleCharacteristicListItems.containsKey(serviceItemId)) {
-            mBleCharacteristicListItems.put(serviceItemId, new ArrayList<BleGattCharacteristicListItem>());
-        }
+    /**
+     * List a whole GATT Profile, replacing whatever was listed before.
+     * Must be called on the UI thread
+     *
+     * @param profile the discovered GATT Profile
+     */
+    public void setGattProfile(BleGattProfile profile) {
+        setSnapshot(buildSnapshot(profile));
+    }
 
-        int characteristicItemId = mBleCharacteristicListItems.size();
-        BleGattCharacteristicListItem characteristicListItem = new BleGattCharacteristicListItem(characteristic, characteristicItemId);
-        mBleCharacteristicListItems.get(serviceItemId).add(characteristicListItem);
+    /**
+     * Find where a Service is listed
+     *
+     * @param serviceUuid the UUID of the Service
+     * @return the group position of the Service, or -1 if it is not listed
+     */
+    public int getGroupPosition(UUID serviceUuid) {
+        Integer groupPosition = mSnapshot.mServiceGroupPositions.get(serviceUuid);
+        return groupPosition != null ? groupPosition : -1;
     }
 
     /**
-     * Clear all ListItems from ListView
+     * Clear all ListItems from ListView.
+     * Must be called on the UI thread
      */
     public void clear() {
-        mBleGattServiceListItems.clear();
-        mBleCharacteristicListItems.clear();
+        setSnapshot(Snapshot.EMPTY);
     }
 
     /**
@@ -119,13 +128,14 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
      */
     @Override
     public long getGroupId(int position) {
-        return mBleGattServiceListItems.get(position).getItemId();
+        return mSnapshot.mBleGattServiceListItems.get(position).getItemId();
     }
 
     /**
      * This GroupViewHolder represents what UI components are in each Service ListItem in the ListView
      */
     public static class GroupViewHolder{
+        public TextView mNameTV;
         public TextView mUuidTV;
         public TextView mServiceTypeTV;
     }
@@ -153,6 +163,7 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
 
             // match the UI stuff in the list Item to what's in the xml file
             serviceListItemView = new GroupViewHolder();
+            serviceListItemView.mNameTV = (TextView) v.findViewById(R.id.service_name);
             serviceListItemView.mUuidTV = (TextView) v.findViewById(R.id.uuid);
             serviceListItemView.mServiceTypeTV = (TextView) v.findViewById(R.id.service_type);
 
@@ -169,10 +180,11 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
         } else {
             BleGattServiceListItem item = getGroup(position);
 
-            serviceListItemView.mUuidTV.setText(item.getUuid().toString());
-            int type = item.getType();
+            // the UUID string is formatted once per list item, not on every bind
+            serviceListItemView.mUuidTV.setText(item.getBleUuid().toString());
+            setName(serviceListItemView.mNameTV, item.getName());
             // Is this a primary or secondary service
-            if (type == BluetoothGattService.SERVICE_TYPE_PRIMARY) {
+            if (item.getService().isPrimary()) {
                 serviceListItemView.mServiceTypeTV.setText(R.string.service_type_primary);
             } else {
                 serviceListItemView.mServiceTypeTV.setText(R.string.service_type_secondary);
@@ -202,7 +214,7 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
      */
     @Override
     public BleGattCharacteristicListItem getChild(int groupPosition, int childPosition) {
-        return mBleCharacteristicListItems.get(groupPosition).get(childPosition);
+        return mSnapshot.mBleCharacteristicListItems.get(groupPosition).get(childPosition);
     }
 
     /**
@@ -214,7 +226,7 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
      */
     @Override
     public long getChildId(int groupPosition, int childPosition) {
-        return mBleCharacteristicListItems.get(groupPosition).get(childPosition).getItemId();
+        return mSnapshot.mBleCharacteristicListItems.get(groupPosition).get(childPosition).getItemId();
     }
 
 
@@ -226,7 +238,7 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
      */
     @Override
     public int getChildrenCount(int groupPosition) {
-        return mBleCharacteristicListItems.get(groupPosition).size();
+        return mSnapshot.mBleCharacteristicListItems.get(groupPosition).size();
     }
 
     /**
@@ -247,6 +259,7 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
      * This ChildViewHolder represents what UI components are in each Characteristic List Item in the ListView
      */
     public static class ChildViewHolder{
+        public TextView mNameTV; // displays the name and value format of a known Characteristic
         public TextView mUuidTV; // displays UUID
         public TextView mPropertyReadableTV; // displays when Characteristic is readable
         public TextView mPropertyWritableTV; // displays when Characteristic is writeable
@@ -269,7 +282,7 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
         ChildViewHolder characteristicListItemView;
 
         BleGattCharacteristicListItem item = getChild(groupPosition, childPosition);
-        BluetoothGattCharacteristic characteristic = item.getCharacteristic();
+        BleGattProfile.Characteristic characteristic = item.getCharacteristic();
 
         // if this ListItem does not exist yet, generate it
         // otherwise, use it
@@ -279,12 +292,15 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
 
             // match the UI stuff in the list Item to what's in the xml file
             characteristicListItemView = new ChildViewHolder();
+            characteristicListItemView.mNameTV = (TextView) v.findViewById(R.id.characteristic_name);
             characteristicListItemView.mUuidTV = (TextView) v.findViewById(R.id.uuid);
             characteristicListItemView.mPropertyReadableTV = (TextView)v.findViewById(R.id.property_read);
             characteristicListItemView.mPropertyWritableTV = (TextView)v.findViewById(R.id.property_write);
             characteristicListItemView.mPropertyNotifiableTV = (TextView)v.findViewById(R.id.property_notify);
             characteristicListItemView.mPropertyNoneTV = (TextView)v.findViewById(R.id.property_none);
 
+            v.setTag( characteristicListItemView );
+
         } else {
             characteristicListItemView = (ChildViewHolder) v.getTag();
         }
@@ -292,27 +308,28 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
         if (characteristicListItemView != null) {
 
             // display the UUID of the characteristic
-            characteristicListItemView.mUuidTV.setText(characteristic.getUuid().toString());
+            characteristicListItemView.mUuidTV.setText(item.getBleUuid().toString());
+            setName(characteristicListItemView.mNameTV, item.getName());
 
             // Display the read/write/notify attributes of the Characteristic
-            if (BlePeripheral.isCharacteristicReadable(characteristic)) {
+            if (characteristic.isReadable()) {
                 characteristicListItemView.mPropertyReadableTV.setVisibility(View.VISIBLE);
             } else {
                 characteristicListItemView.mPropertyReadableTV.setVisibility(View.GONE);
             }
-            if (BlePeripheral.isCharacteristicWritable(characteristic)) {
+            if (characteristic.isWritable()) {
                 characteristicListItemView.mPropertyWritableTV.setVisibility(View.VISIBLE);
             } else {
                 characteristicListItemView.mPropertyWritableTV.setVisibility(View.GONE);
             }
-            if (BlePeripheral.isCharacteristicNotifiable(characteristic)) {
+            if (characteristic.isNotifiable()) {
                 characteristicListItemView.mPropertyNotifiableTV.setVisibility(View.VISIBLE);
             } else {
                 characteristicListItemView.mPropertyNotifiableTV.setVisibility(View.GONE);
             }
-            if (!BlePeripheral.isCharacteristicNotifiable(characteristic) &&
-                    !BlePeripheral.isCharacteristicWritable(characteristic) &&
-                    !BlePeripheral.isCharacteristicReadable(characteristic)) {
+            if (!characteristic.isNotifiable() &&
+                    !characteristic.isWritable() &&
+                    !characteristic.isReadable()) {
                 characteristicListItemView.mPropertyNoneTV.setVisibility(View.VISIBLE);
             } else {
                 characteristicListItemView.mPropertyNoneTV.setVisibility(View.GONE);
@@ -324,4 +341,90 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
         return v;
     }
 
-}
\ No newline at end of file
+
+
+    /**
+     * Show a name, or hide the name TextView if there is none
+     *
+     * @param nameTV the TextView
+     * @param name the name, or null
+     */
+    private static void setName(TextView nameTV, String name) {
+        if (name != null) {
+            nameTV.setText(name);
+            nameTV.setVisibility(View.VISIBLE);
+        } else {
+            nameTV.setVisibility(View.GONE);
+        }
+    }
+
+    /** IMMUTABLE LIST CONTENTS **/
+
+    /**
+     * Every list item for one GATT Profile.  Item IDs come from the attributes themselves, not
+     * from their positions, so a Service or Characteristic keeps its ID from one snapshot to the
+     * next, such as from the priority Services to the full profile, and the list keeps its
+     * expanded and checked rows on the right items
+     */
+    public static final class Snapshot {
+        // with no Services, the assigned numbers table is never needed
+        static final Snapshot EMPTY = new Snapshot(new BleGattProfile(Collections.<BleGattProfile.Service>emptyList()), null);
+
+        private final List<BleGattServiceListItem> mBleGattServiceListItems; // list of Services
+        private final List<List<BleGattCharacteristicListItem>> mBleCharacteristicListItems; // list of Characteristics, by group position
+        private final Map<UUID, Integer> mServiceGroupPositions; // Service UUID -> group position
+        private final int mCharacteristicCount;
+
+        private Snapshot(BleGattProfile profile, BleAssignedNumbers assignedNumbers) {
+            List<BleGattProfile.Service> services = profile.getServices();
+            ArrayList<BleGattServiceListItem> serviceListItems = new ArrayList<>(services.size());
+            ArrayList<List<BleGattCharacteristicListItem>> characteristicListItems = new ArrayList<>(services.size());
+            HashMap<UUID, Integer> serviceGroupPositions = new HashMap<>();
+            int characteristicCount = 0;
+
+            for (BleGattProfile.Service service : services) {
+                // when two Services share a UUID, the first one is found, as with BluetoothGatt.getService()
+                if (!serviceGroupPositions.containsKey(service.getUuid())) {
+                    serviceGroupPositions.put(service.getUuid(), serviceListItems.size());
+                }
+                serviceListItems.add(new BleGattServiceListItem(service, getItemId(service), assignedNumbers));
+
+                ArrayList<BleGattCharacteristicListItem> serviceCharacteristicListItems = new ArrayList<>(service.getCharacteristics().size());
+                for (BleGattProfile.Characteristic characteristic : service.getCharacteristics()) {
+                    serviceCharacteristicListItems.add(new BleGattCharacteristicListItem(characteristic, getItemId(characteristic), assignedNumbers));
+                }
+                characteristicListItems.add(Collections.unmodifiableList(serviceCharacteristicListItems));
+                characteristicCount += serviceCharacteristicListItems.size();
+            }
+
+            mBleGattServiceListItems = Collections.unmodifiableList(serviceListItems);
+            mBleCharacteristicListItems = Collections.unmodifiableList(characteristicListItems);
+            mServiceGroupPositions = serviceGroupPositions;
+            mCharacteristicCount = characteristicCount;
+        }
+
+        /**
+         * ExpandableListView keeps 31 bits of a group ID, so the ID is a hash of the Service UUID and instance ID
+         *
+         * @param service a Service
+         * @return its group ID
+         */
+        private static long getItemId(BleGattProfile.Service service) {
+            return (service.getUuid().hashCode() * 31 + service.getInstanceId()) & 0x7FFFFFFF;
+        }
+
+        /**
+         * ExpandableListView keeps 32 bits of a child ID, which only needs to be unique within its Service.
+         * Older Android versions number instances per UUID, so the UUID is part of the ID too
+         *
+         * @param characteristic a Characteristic
+         * @return its child ID
+         */
+        private static long getItemId(BleGattProfile.Characteristic characteristic) {
+            return (characteristic.getUuid().hashCode() * 31 + characteristic.getInstanceId()) & 0xFFFFFFFFL;
+        }
+
+        public int getServiceCount() { return mBleGattServiceListItems.size(); }
+        public int getCharacteristicCount() { return mCharacteristicCount; }
+    }
+}
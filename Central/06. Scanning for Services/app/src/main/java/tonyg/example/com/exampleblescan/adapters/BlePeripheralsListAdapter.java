@@ -9,9 +9,13 @@ import android.widget.BaseAdapter;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.UUID;
 
 import tonyg.example.com.exampleblescan.R;
+import tonyg.example.com.exampleblescan.models.BleAssignedNumbers;
 import tonyg.example.com.exampleblescan.models.BlePeripheralListItem;
+import tonyg.example.com.exampleblescan.models.BleUuid;
 
 /**
  * Manages the BLEDeviceListItems so that we can populate the list
@@ -40,13 +44,15 @@ public class BlePeripheralsListAdapter extends BaseAdapter {
      *
      * @param bluetoothDevice Periheral device information
      * @param rssi Periheral's RSSI, indicating its radio signal quality
+     * @param broadcastValues the values the Peripheral broadcasts, by Characteristic UUID
      */
-    public void addBluetoothPeripheral(BluetoothDevice bluetoothDevice, int rssi) {
+    public void addBluetoothPeripheral(BluetoothDevice bluetoothDevice, int rssi, Map<UUID, Object> broadcastValues) {
         // update UI stuff
         int listItemId = mBluetoothPeripheralListItems.size();
         BlePeripheralListItem listItem = new BlePeripheralListItem(bluetoothDevice);
         listItem.setItemId(listItemId);
         listItem.setRssi(rssi);
+        listItem.setBroadcastValues(broadcastValues);
 
         // add to list
         mBluetoothPeripheralListItems.add(listItem);
@@ -90,6 +96,7 @@ public class BlePeripheralsListAdapter extends BaseAdapter {
         public TextView mBroadcastNameTV;
         public TextView mMacAddressTV;
         public TextView mRssiTV;
+        public TextView mBroadcastValuesTV;
     }
 
     /**
@@ -117,6 +124,7 @@ public class BlePeripheralsListAdapter extends BaseAdapter {
             peripheralListItemView.mBroadcastNameTV = (TextView) v.findViewById(R.id.broadcast_name);
             peripheralListItemView.mMacAddressTV = (TextView) v.findViewById(R.id.mac_address);
             peripheralListItemView.mRssiTV = (TextView) v.findViewById(R.id.power_level);
+            peripheralListItemView.mBroadcastValuesTV = (TextView) v.findViewById(R.id.broadcast_values);
 
             v.setTag( peripheralListItemView );
         } else {
@@ -133,8 +141,28 @@ public class BlePeripheralsListAdapter extends BaseAdapter {
             peripheralListItemView.mBroadcastNameTV.setText(item.getBroadcastName());
             peripheralListItemView.mMacAddressTV.setText(item.getMacAddress());
             peripheralListItemView.mRssiTV.setText(String.valueOf(item.getRssi()));
+            peripheralListItemView.mBroadcastValuesTV.setText(getBroadcastValuesText(item.getBroadcastValues(), BleAssignedNumbers.getInstance(parent.getContext())));
         }
         return v;
     }
 
+    /**
+     * Describe broadcast values, one per line, such as "Battery Level: 87"
+     *
+     * @param broadcastValues the values by Characteristic UUID
+     * @param assignedNumbers where to look up Characteristic names
+     * @return the description
+     */
+    private static String getBroadcastValuesText(Map<UUID, Object> broadcastValues, BleAssignedNumbers assignedNumbers) {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<UUID, Object> entry : broadcastValues.entrySet()) {
+            String name = assignedNumbers.getName(BleAssignedNumbers.CATEGORY_CHARACTERISTIC, BleUuid.fromUuid(entry.getKey()));
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(name != null ? name : entry.getKey().toString()).append(": ").append(entry.getValue());
+        }
+        return text.toString();
+    }
+
 }
\ No newline at end of file
@@ -4,23 +4,36 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.ParcelUuid;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import tonyg.example.com.exampleblescan.ble.callbacks.BleScanCallbackv21;
 import tonyg.example.com.exampleblescan.ble.callbacks.BleScanCallbackv18;
+import tonyg.example.com.exampleblescan.models.BleAssignedNumbers;
+import tonyg.example.com.exampleblescan.models.BleUuid;
 
 
 /**
  * This class helps us manage Bluetooth Low Energy scanning functions.
  *
+ * Peripherals can broadcast small values, such as the battery level, as the service data of
+ * a Service in their advertisements.  Scan results are decoded as the value of a
+ * Characteristic of that Service, so those values are known without connecting
+ *
  * @author Tony Gaitatzis backupbrain@gmail.com
  * @date 2015-12-12
  */
@@ -28,12 +41,19 @@ public class BleCommManager {
     private static final String TAG = BleCommManager.class.getSimpleName();
     private static final long SCAN_PERIOD = 5000; // 5 seconds of scanning time
 
+    public static final UUID BATTERY_SERVICE_UUID = BleUuid.toUuid(0x180F);
+    public static final UUID BATTERY_LEVEL_CHARACTERISTIC_UUID = BleUuid.toUuid(0x2A19);
+
     private BluetoothAdapter mBluetoothAdapter; // Andrdoid's Bluetooth Adapter
     private BluetoothLeScanner mBluetoothLeScanner; // Ble scanner - API >= 21
 
 
     private Timer mTimer = new Timer(); // scan timer
 
+    private final BleValueDecoderRegistry mDecoderRegistry;
+    // the Characteristic whose value a Service broadcasts as its service data, by Service UUID
+    private final ConcurrentHashMap<UUID, UUID> mBroadcastCharacteristics = new ConcurrentHashMap<>();
+
     /**
      * Initialize the BleCommManager
      *
@@ -50,7 +70,8 @@ public class BleCommManager {
         final BluetoothManager bluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
         mBluetoothAdapter = bluetoothManager.getAdapter();
 
-
+        mDecoderRegistry = new BleValueDecoderRegistry(BleAssignedNumbers.getInstance(context));
+        registerBroadcastValue(BATTERY_SERVICE_UUID, BATTERY_LEVEL_CHARACTERISTIC_UUID);
     }
 
     /**
@@ -63,6 +84,53 @@ public class BleCommManager {
     }
 
 
+    /**
+     * Decode the service data of a Service in scan results as the value of one of its Characteristics
+     *
+     * @param serviceUuid the Service whose service data is broadcast
+     * @param characteristicUuid the Characteristic the service data is a value of
+     */
+    public void registerBroadcastValue(UUID serviceUuid, UUID characteristicUuid) {
+        mBroadcastCharacteristics.put(serviceUuid, characteristicUuid);
+    }
+
+    /**
+     * @return the decoders used for broadcast values.  Register decoders here for custom Characteristics
+     */
+    public BleValueDecoderRegistry getDecoderRegistry() {
+        return mDecoderRegistry;
+    }
+
+    /**
+     * Decode the values a Peripheral broadcasts in its advertisement
+     *
+     * @param scanRecord the advertisement of a scan result, or null
+     * @return the decoded values by Characteristic UUID, empty if nothing known is broadcast
+     */
+    public Map<UUID, Object> decodeBroadcastValues(ScanRecord scanRecord) {
+        if (scanRecord == null) {
+            return Collections.emptyMap();
+        }
+        Map<ParcelUuid, byte[]> serviceData = scanRecord.getServiceData();
+        if (serviceData == null || serviceData.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<UUID, Object> broadcastValues = new LinkedHashMap<>();
+        for (Map.Entry<ParcelUuid, byte[]> entry : serviceData.entrySet()) {
+            UUID characteristicUuid = mBroadcastCharacteristics.get(entry.getKey().getUuid());
+            byte[] value = entry.getValue();
+            if (characteristicUuid == null || value == null) {
+                continue;
+            }
+            // any nearby device can send anything, so a value that does not fit its format is skipped
+            Object decodedValue = mDecoderRegistry.tryDecode(characteristicUuid, value, value.length);
+            if (decodedValue != null) {
+                broadcastValues.put(characteristicUuid, decodedValue);
+            }
+        }
+        return broadcastValues;
+    }
+
     /**
      * Scan for Peripherals
      *
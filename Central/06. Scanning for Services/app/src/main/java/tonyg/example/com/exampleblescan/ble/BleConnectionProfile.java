@@ -0,0 +1,45 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * High-level connection profiles.
+ * Each one describes the connection priority, MTU, and PHY
+ * that a Central should ask for after it connects to a Peripheral
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public enum BleConnectionProfile {
+    /** Move as much data as possible: short connection interval, largest MTU, 2M PHY **/
+    BULK_TRANSFER(BluetoothGatt.CONNECTION_PRIORITY_HIGH, BleConnectionProfile.MAX_MTU, BleConnectionProfile.PHY_LE_2M_MASK),
+    /** Respond quickly to small messages: short connection interval, default MTU, 2M PHY **/
+    LOW_LATENCY(BluetoothGatt.CONNECTION_PRIORITY_HIGH, BleConnectionProfile.DEFAULT_MTU, BleConnectionProfile.PHY_LE_2M_MASK),
+    /** Save battery: long connection interval, default MTU, 1M PHY **/
+    LOW_POWER(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, BleConnectionProfile.DEFAULT_MTU, BleConnectionProfile.PHY_LE_1M_MASK);
+
+    /** Every BLE link starts with a 23 byte ATT MTU **/
+    public static final int DEFAULT_MTU = 23;
+    /** Largest ATT MTU Android will negotiate **/
+    public static final int MAX_MTU = 517;
+
+    // BluetoothDevice PHY constants were added in API 26
+    public static final int PHY_LE_1M = 1;
+    public static final int PHY_LE_1M_MASK = 1;
+    public static final int PHY_LE_2M_MASK = 2;
+    public static final int PHY_OPTION_NO_PREFERRED = 0;
+
+    private final int mConnectionPriority;
+    private final int mMtu;
+    private final int mPhyMask;
+
+    BleConnectionProfile(int connectionPriority, int mtu, int phyMask) {
+        mConnectionPriority = connectionPriority;
+        mMtu = mtu;
+        mPhyMask = phyMask;
+    }
+
+    public int getConnectionPriority() { return mConnectionPriority; }
+    public int getMtu() { return mMtu; }
+    public int getPhyMask() { return mPhyMask; }
+}
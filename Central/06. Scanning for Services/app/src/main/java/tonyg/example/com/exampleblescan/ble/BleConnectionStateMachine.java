@@ -0,0 +1,142 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import tonyg.example.com.exampleblescan.ble.callbacks.BleConnectionStateCallback;
+
+/**
+ * Tracks the lifecycle of a connection to a Peripheral.
+ *
+ * GATT callbacks arrive on a Binder thread while the UI asks for connections and disconnections
+ * on the main thread, so every transition is a single compare-and-set.
+ * A transition that is not allowed from the current state is refused,
+ * which means that two threads can never both win the same transition
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleConnectionStateMachine {
+    private static final String TAG = BleConnectionStateMachine.class.getSimpleName();
+
+    /** Transitions slower than this are logged as warnings **/
+    private static final long SLOW_TRANSITION_MS = 1000;
+
+    /**
+     * Connection states
+     */
+    public enum State {
+        IDLE,
+        CONNECTING,
+        CONNECTED,
+        DISCOVERING,
+        READY,
+        DISCONNECTING,
+        CLOSED
+    }
+
+    private static final Map<State, EnumSet<State>> sAllowedTransitions = new EnumMap<>(State.class);
+    static {
+        sAllowedTransitions.put(State.IDLE, EnumSet.of(State.CONNECTING, State.CLOSED));
+        sAllowedTransitions.put(State.CONNECTING, EnumSet.of(State.CONNECTED, State.DISCONNECTING, State.CLOSED));
+        sAllowedTransitions.put(State.CONNECTED, EnumSet.of(State.DISCOVERING, State.DISCONNECTING, State.CLOSED));
+        sAllowedTransitions.put(State.DISCOVERING, EnumSet.of(State.READY, State.CONNECTED, State.DISCONNECTING, State.CLOSED));
+        sAllowedTransitions.put(State.READY, EnumSet.of(State.DISCOVERING, State.DISCONNECTING, State.CLOSED));
+        sAllowedTransitions.put(State.DISCONNECTING, EnumSet.of(State.CLOSED));
+        sAllowedTransitions.put(State.CLOSED, EnumSet.of(State.CONNECTING, State.IDLE));
+    }
+
+    private final AtomicReference<State> mState = new AtomicReference<>(State.IDLE);
+    private volatile long mStateEnteredAt = SystemClock.elapsedRealtime();
+    private volatile BleConnectionStateCallback mCallback;
+
+    public BleConnectionStateMachine() {
+    }
+
+    /**
+     * Receive a trace of every transition
+     *
+     * @param callback the callback, or null to stop receiving transitions
+     */
+    public void setCallback(BleConnectionStateCallback callback) {
+        mCallback = callback;
+    }
+
+    public State getState() {
+        return mState.get();
+    }
+
+    /**
+     * @return <b>true</b> if there is a live link to the Peripheral
+     */
+    public boolean isConnected() {
+        State state = mState.get();
+        return state == State.CONNECTED || state == State.DISCOVERING || state == State.READY;
+    }
+
+    /**
+     * Move to a new state, if that is allowed from the current state
+     *
+     * @param newState the state to move to
+     * @return <b>true</b> if this call made the transition
+     */
+    public boolean moveTo(State newState) {
+        while (true) {
+            State previousState = mState.get();
+            EnumSet<State> allowedStates = sAllowedTransitions.get(previousState);
+            if (!allowedStates.contains(newState)) {
+                return false;
+            }
+            if (mState.compareAndSet(previousState, newState)) {
+                trace(previousState, newState);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Move to a new state, but only from one particular state
+     *
+     * @param expectedState the state the connection must be in
+     * @param newState the state to move to
+     * @return <b>true</b> if this call made the transition
+     */
+    public boolean moveTo(State expectedState, State newState) {
+        if (!sAllowedTransitions.get(expectedState).contains(newState)) {
+            return false;
+        }
+        if (mState.compareAndSet(expectedState, newState)) {
+            trace(expectedState, newState);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Log how long the connection spent in the previous state
+     *
+     * @param previousState the state that was left
+     * @param newState the state that was entered
+     */
+    private void trace(State previousState, State newState) {
+        long now = SystemClock.elapsedRealtime();
+        long elapsedMs = now - mStateEnteredAt;
+        mStateEnteredAt = now;
+
+        if (elapsedMs > SLOW_TRANSITION_MS && previousState != State.READY && previousState != State.IDLE && previousState != State.CLOSED) {
+            Log.w(TAG, previousState + " -> " + newState + " after " + elapsedMs + "ms");
+        } else {
+            Log.v(TAG, previousState + " -> " + newState + " after " + elapsedMs + "ms");
+        }
+
+        BleConnectionStateCallback callback = mCallback;
+        if (callback != null) {
+            callback.onConnectionStateChanged(previousState, newState, elapsedMs);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+import tonyg.example.com.exampleblescan.ble.callbacks.BleDiscoverySweepCallback;
+import tonyg.example.com.exampleblescan.models.BleUuid;
+
+/**
+ * Audit the GATT profiles of many Peripherals without any UI.
+ *
+ * The sweep connects to several Peripherals at once, discovers each GATT profile,
+ * writes it to a file, and disconnects.  Android phones can only hold a handful of
+ * simultaneous BLE connections, so the number of parallel connections is capped
+ *
+ * Each line of the output file describes one Peripheral:
+ * <pre>mac,status,connectMs,discoveryMs,service|service|...</pre>
+ * where each service is <pre>uuid/type[characteristicUuid/properties;...]</pre>
+ * and Bluetooth SIG UUIDs are shortened to their 16-bit form
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleDiscoverySweep {
+    private static final String TAG = BleDiscoverySweep.class.getSimpleName();
+
+    /** Most Android Bluetooth controllers handle 4 to 7 simultaneous connections **/
+    public static final int DEFAULT_MAX_PARALLEL_CONNECTIONS = 4;
+    /** Give up on a Peripheral that has not been audited after this long **/
+    private static final long DEVICE_TIMEOUT_MS = 30 * 1000;
+
+    private final Context mContext;
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final LinkedList<String> mPendingMacAddresses;
+    private final int mMaxParallelConnections;
+    private final File mOutputFile;
+    private final BleDiscoverySweepCallback mCallback;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private BufferedWriter mWriter;
+    private int mActiveConnections = 0;
+    private int mSucceeded = 0;
+    private int mFailed = 0;
+    private long mStartTime;
+    private boolean mFinished = false;
+
+    /**
+     * Prepare a sweep
+     *
+     * @param context the Application context
+     * @param bluetoothAdapter the Android Bluetooth Adapter
+     * @param macAddresses the Peripherals to audit, for example from a scan
+     * @param maxParallelConnections how many Peripherals to audit at once.  DEFAULT_MAX_PARALLEL_CONNECTIONS suits most phones
+     * @param outputFile where to write the GATT profiles
+     * @param callback reports progress
+     */
+    public BleDiscoverySweep(Context context, BluetoothAdapter bluetoothAdapter, List<String> macAddresses, int maxParallelConnections, File outputFile, BleDiscoverySweepCallback callback) {
+        mContext = context;
+        mBluetoothAdapter = bluetoothAdapter;
+        mPendingMacAddresses = new LinkedList<>(macAddresses);
+        mMaxParallelConnections = Math.max(1, maxParallelConnections);
+        mOutputFile = outputFile;
+        mCallback = callback;
+    }
+
+    /**
+     * Start the sweep
+     *
+     * @throws IOException if the output file can not be opened
+     */
+    public synchronized void start() throws IOException {
+        mWriter = new BufferedWriter(new FileWriter(mOutputFile));
+        mWriter.write("# mac,status,connectMs,discoveryMs,services");
+        mWriter.newLine();
+        mStartTime = SystemClock.elapsedRealtime();
+        Log.v(TAG, "Sweeping " + mPendingMacAddresses.size() + " peripherals, " + mMaxParallelConnections + " at a time");
+        startNextDevices();
+    }
+
+    /**
+     * Connect to more Peripherals until the connection cap is reached
+     */
+    private synchronized void startNextDevices() {
+        while (mActiveConnections < mMaxParallelConnections && !mPendingMacAddresses.isEmpty()) {
+            String macAddress = mPendingMacAddresses.poll();
+            mActiveConnections++;
+            new DeviceAudit(macAddress).start();
+        }
+        if (mActiveConnections == 0 && mPendingMacAddresses.isEmpty() && !mFinished) {
+            mFinished = true;
+            finish();
+        }
+    }
+
+    /**
+     * One Peripheral is done.  Record the result and move on
+     */
+    private synchronized void onDeviceComplete(String macAddress, String profile, long connectMs, long discoveryMs) {
+        mActiveConnections--;
+        boolean success = profile != null;
+        if (success) {
+            mSucceeded++;
+        } else {
+            mFailed++;
+        }
+        Log.v(TAG, macAddress + (success ? " audited" : " failed") + ": connect " + connectMs + "ms, discovery " + discoveryMs + "ms");
+
+        try {
+            mWriter.write(macAddress + "," + (success ? "ok" : "failed") + "," + connectMs + "," + discoveryMs + "," + (success ? profile : ""));
+            mWriter.newLine();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write result for " + macAddress);
+        }
+
+        mCallback.onDeviceComplete(macAddress, success, connectMs, discoveryMs);
+        startNextDevices();
+    }
+
+    /**
+     * Every Peripheral is done.  Close the output file and report the throughput
+     */
+    private void finish() {
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close " + mOutputFile);
+        }
+        long durationMs = Math.max(1, SystemClock.elapsedRealtime() - mStartTime);
+        double devicesPerMinute = (mSucceeded + mFailed) * 60000.0 / durationMs;
+        Log.v(TAG, "Sweep complete: " + mSucceeded + " audited, " + mFailed + " failed in " + durationMs + "ms (" + devicesPerMinute + " devices/min)");
+        mCallback.onSweepComplete(mSucceeded, mFailed, durationMs, devicesPerMinute);
+    }
+
+    /**
+     * Write a GATT profile on a single line
+     *
+     * @param services the discovered GATT Services
+     * @return the compact profile
+     */
+    private static String encodeProfile(List<BluetoothGattService> services) {
+        StringBuilder profile = new StringBuilder();
+        for (BluetoothGattService service : services) {
+            if (profile.length() > 0) profile.append('|');
+            profile.append(encodeUuid(service.getUuid())).append('/').append(service.getType()).append('[');
+            boolean first = true;
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                if (!first) profile.append(';');
+                first = false;
+                profile.append(encodeUuid(characteristic.getUuid())).append('/')
+                        .append(Integer.toHexString(characteristic.getProperties()));
+            }
+            profile.append(']');
+        }
+        return profile.toString();
+    }
+
+    /**
+     * Shorten Bluetooth SIG UUIDs to 16 bits
+     *
+     * @param uuid the UUID
+     * @return 4 hex digits for Bluetooth SIG UUIDs, otherwise the full UUID
+     */
+    private static String encodeUuid(UUID uuid) {
+        BleUuid bleUuid = BleUuid.fromUuid(uuid);
+        if (bleUuid.is16Bit()) {
+            return String.format(Locale.US, "%04x", bleUuid.getShortUuid());
+        }
+        return bleUuid.toString();
+    }
+
+    /**
+     * Connects to, discovers, and disconnects from one Peripheral
+     */
+    private class DeviceAudit extends BluetoothGattCallback {
+        private final String mMacAddress;
+        private final BlePeripheral mBlePeripheral = new BlePeripheral();
+        private long mConnectStartTime, mConnectedTime, mDiscoveredTime;
+        private String mProfile;
+        private boolean mComplete = false;
+
+        DeviceAudit(String macAddress) {
+            mMacAddress = macAddress;
+        }
+
+        void start() {
+            mConnectStartTime = SystemClock.elapsedRealtime();
+            mHandler.postDelayed(mTimeoutRunnable, DEVICE_TIMEOUT_MS);
+            try {
+                BluetoothDevice bluetoothDevice = mBluetoothAdapter.getRemoteDevice(mMacAddress);
+                mBlePeripheral.connect(bluetoothDevice, this, mContext);
+            } catch (Exception e) {
+                Log.e(TAG, "Could not connect to " + mMacAddress);
+                complete();
+            }
+        }
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                mConnectedTime = SystemClock.elapsedRealtime();
+                mBlePeripheral.requestConnectionProfile(BleConnectionProfile.LOW_LATENCY, null);
+                mBlePeripheral.discoverServices();
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                // only reported once the GATT is closed
+                complete();
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            mDiscoveredTime = SystemClock.elapsedRealtime();
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mProfile = encodeProfile(gatt.getServices());
+            }
+            mBlePeripheral.disconnect();
+        }
+
+        private final Runnable mTimeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                Log.w(TAG, mMacAddress + " timed out");
+                mBlePeripheral.disconnect();
+                mBlePeripheral.close();
+                // the connection slot is only free once the GATT is closed.  A pending
+                // disconnection reports STATE_DISCONNECTED when it does, or times out
+                if (mBlePeripheral.getConnectionState() != BleConnectionStateMachine.State.DISCONNECTING) {
+                    complete();
+                }
+            }
+        };
+
+        /**
+         * Report this Peripheral exactly once
+         */
+        private void complete() {
+            synchronized (this) {
+                if (mComplete) return;
+                mComplete = true;
+            }
+            mHandler.removeCallbacks(mTimeoutRunnable);
+            long connectMs = mConnectedTime > 0 ? mConnectedTime - mConnectStartTime : 0;
+            long discoveryMs = mDiscoveredTime > 0 ? mDiscoveredTime - mConnectedTime : 0;
+            onDeviceComplete(mMacAddress, mProfile, connectMs, discoveryMs);
+        }
+    }
+}
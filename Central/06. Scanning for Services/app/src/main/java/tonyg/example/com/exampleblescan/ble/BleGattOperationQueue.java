@@ -0,0 +1,185 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.LinkedList;
+
+/**
+ * Android's BluetoothGatt can only process one operation at a time.
+ * If a second read, write, or request is issued before the first one
+ * has come back through the BluetoothGattCallback, the second one silently fails.
+ *
+ * This class queues GATT operations and runs them one after another.
+ * An operation that is never answered fails after OPERATION_TIMEOUT_MS, so that it does not
+ * hold up the operations behind it
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleGattOperationQueue {
+    private static final String TAG = BleGattOperationQueue.class.getSimpleName();
+
+    /** How long an operation may wait for its callback before it fails **/
+    public static final long OPERATION_TIMEOUT_MS = 10 * 1000;
+
+    /**
+     * A single GATT operation, such as a read, a write, or an MTU request
+     */
+    public static abstract class Operation {
+        /**
+         * Start the operation
+         *
+         * @param bluetoothGatt the connection to run the operation on
+         * @return <b>true</b> if the operation was started
+         */
+        public abstract boolean execute(BluetoothGatt bluetoothGatt);
+
+        /**
+         * Some operations, like requestConnectionPriority, never report back
+         * through the BluetoothGattCallback.  Those are complete as soon as they start.
+         *
+         * @return <b>true</b> if the queue must wait for a callback before moving on
+         */
+        public boolean hasCallback() {
+            return true;
+        }
+
+        /**
+         * The operation reported back through the BluetoothGattCallback
+         *
+         * @param status the GATT status of the operation
+         */
+        public void onComplete(int status) {
+        }
+
+        /**
+         * The operation could not be started, was not answered in time,
+         * or was dropped when the connection closed
+         */
+        public void onFailed() {
+        }
+    }
+
+    private final LinkedList<Operation> mOperations = new LinkedList<>();
+    private Operation mCurrentOperation;
+    private BluetoothGatt mBluetoothGatt;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private Runnable mOperationTimeoutRunnable;
+
+    public BleGattOperationQueue() {
+    }
+
+    /**
+     * Set the connection that queued operations run on.
+     * Nothing runs until a connection is set.
+     *
+     * @param bluetoothGatt the connected BluetoothGatt, or null when disconnected
+     */
+    public synchronized void setBluetoothGatt(BluetoothGatt bluetoothGatt) {
+        mBluetoothGatt = bluetoothGatt;
+        runNextOperation();
+    }
+
+    /**
+     * Add an operation to the end of the queue
+     *
+     * @param operation the operation to run
+     */
+    public synchronized void enqueue(Operation operation) {
+        mOperations.add(operation);
+        runNextOperation();
+    }
+
+    /**
+     * The current operation has reported back through the BluetoothGattCallback.
+     * Start the next one.
+     *
+     * @param status the GATT status reported by the callback
+     */
+    public synchronized void onOperationComplete(int status) {
+        Operation currentOperation = mCurrentOperation;
+        mCurrentOperation = null;
+        stopOperationTimeout();
+        if (currentOperation != null) {
+            currentOperation.onComplete(status);
+        }
+        runNextOperation();
+    }
+
+    /**
+     * Drop every pending operation, for example when the connection is lost
+     */
+    public synchronized void clear() {
+        Operation currentOperation = mCurrentOperation;
+        mCurrentOperation = null;
+        stopOperationTimeout();
+        if (currentOperation != null) {
+            currentOperation.onFailed();
+        }
+        while (!mOperations.isEmpty()) {
+            mOperations.poll().onFailed();
+        }
+    }
+
+    /**
+     * @return <b>true</b> if there is nothing running or waiting to run
+     */
+    public synchronized boolean isIdle() {
+        return mCurrentOperation == null && mOperations.isEmpty();
+    }
+
+    /**
+     * Run operations until one is waiting on a callback or the queue is empty
+     */
+    private void runNextOperation() {
+        while (mCurrentOperation == null && mBluetoothGatt != null && !mOperations.isEmpty()) {
+            Operation operation = mOperations.poll();
+            if (!operation.execute(mBluetoothGatt)) {
+                Log.e(TAG, "GATT operation could not be started");
+                operation.onFailed();
+            } else if (operation.hasCallback()) {
+                mCurrentOperation = operation;
+                startOperationTimeout(operation);
+            } else {
+                operation.onComplete(BluetoothGatt.GATT_SUCCESS);
+            }
+        }
+    }
+
+    /**
+     * Fail the operation if its callback has not come back in time
+     *
+     * @param operation the operation waiting for its callback
+     */
+    private void startOperationTimeout(final Operation operation) {
+        mOperationTimeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                onOperationTimeout(operation);
+            }
+        };
+        mHandler.postDelayed(mOperationTimeoutRunnable, OPERATION_TIMEOUT_MS);
+    }
+
+    private void stopOperationTimeout() {
+        if (mOperationTimeoutRunnable != null) {
+            mHandler.removeCallbacks(mOperationTimeoutRunnable);
+            mOperationTimeoutRunnable = null;
+        }
+    }
+
+    private synchronized void onOperationTimeout(Operation operation) {
+        if (operation != mCurrentOperation) {
+            return; // answered just in time
+        }
+        Log.w(TAG, "GATT operation timed out after " + OPERATION_TIMEOUT_MS + "ms");
+        mCurrentOperation = null;
+        mOperationTimeoutRunnable = null;
+        operation.onFailed();
+        runNextOperation();
+    }
+}
@@ -0,0 +1,141 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram in the style of HdrHistogram.
+ *
+ * Values are counted in buckets whose width doubles with every power of two, and every
+ * bucket is split into 128 sub-buckets, so any recorded value is kept to within 1% of
+ * what it was, from 1 up to MAX_VALUE.  Recording is lock-free and never allocates,
+ * so it can be done from Bluetooth callbacks.  Values are in whatever unit the caller uses
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleLatencyHistogram {
+    /** Larger values are counted as this value **/
+    public static final long MAX_VALUE = 1L << 36;
+
+    private static final int SUB_BUCKET_HALF_COUNT_MAGNITUDE = 7;
+    private static final int SUB_BUCKET_HALF_COUNT = 1 << SUB_BUCKET_HALF_COUNT_MAGNITUDE;
+    private static final long SUB_BUCKET_MASK = (SUB_BUCKET_HALF_COUNT << 1) - 1;
+    private static final int BUCKET_COUNT = 64 - Long.numberOfLeadingZeros(MAX_VALUE) - SUB_BUCKET_HALF_COUNT_MAGNITUDE;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray((BUCKET_COUNT + 1) << SUB_BUCKET_HALF_COUNT_MAGNITUDE);
+    private final AtomicLong mTotalCount = new AtomicLong();
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong mMax = new AtomicLong(0);
+
+    /**
+     * Count a value
+     *
+     * @param value the value, such as a latency in microseconds.  Negative values are counted as 0
+     */
+    public void recordValue(long value) {
+        if (value < 0) {
+            value = 0;
+        } else if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        mCounts.incrementAndGet(getCountsIndex(value));
+        mTotalCount.incrementAndGet();
+        mTotal.addAndGet(value);
+
+        long min = mMin.get();
+        while (value < min && !mMin.compareAndSet(min, value)) {
+            min = mMin.get();
+        }
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * @return where a value is counted
+     */
+    private static int getCountsIndex(long value) {
+        int bucketIndex = 64 - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK) - (SUB_BUCKET_HALF_COUNT_MAGNITUDE + 1);
+        int subBucketIndex = (int) (value >>> bucketIndex);
+        return ((bucketIndex + 1) << SUB_BUCKET_HALF_COUNT_MAGNITUDE) + (subBucketIndex - SUB_BUCKET_HALF_COUNT);
+    }
+
+    /**
+     * @return the largest value that is counted at an index
+     */
+    private static long getHighestValueAtIndex(int index) {
+        int bucketIndex = (index >> SUB_BUCKET_HALF_COUNT_MAGNITUDE) - 1;
+        int subBucketIndex = (index & (SUB_BUCKET_HALF_COUNT - 1)) + SUB_BUCKET_HALF_COUNT;
+        if (bucketIndex < 0) {
+            subBucketIndex -= SUB_BUCKET_HALF_COUNT;
+            bucketIndex = 0;
+        }
+        return ((long) (subBucketIndex + 1) << bucketIndex) - 1;
+    }
+
+    /**
+     * @param percentile between 0 and 100, such as 99.9
+     * @return the value that the percentile of all counted values are at or below, or 0 if nothing is counted
+     */
+    public long getValueAtPercentile(double percentile) {
+        long totalCount = mTotalCount.get();
+        if (totalCount == 0) {
+            return 0;
+        }
+        percentile = Math.min(Math.max(percentile, 0), 100);
+        long countAtPercentile = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long count = 0;
+        for (int i = 0; i < mCounts.length(); i++) {
+            count += mCounts.get(i);
+            if (count >= countAtPercentile) {
+                return Math.min(getHighestValueAtIndex(i), getMaxValue());
+            }
+        }
+        return getMaxValue();
+    }
+
+    /**
+     * @return how many values were counted
+     */
+    public long getTotalCount() {
+        return mTotalCount.get();
+    }
+
+    /**
+     * @return the smallest value counted, or 0 if nothing is counted
+     */
+    public long getMinValue() {
+        return mTotalCount.get() == 0 ? 0 : mMin.get();
+    }
+
+    /**
+     * @return the largest value counted
+     */
+    public long getMaxValue() {
+        return mMax.get();
+    }
+
+    /**
+     * @return the average of the counted values, or 0 if nothing is counted
+     */
+    public double getMean() {
+        long totalCount = mTotalCount.get();
+        return totalCount == 0 ? 0 : (double) mTotal.get() / totalCount;
+    }
+
+    /**
+     * Forget every counted value
+     */
+    public void reset() {
+        for (int i = 0; i < mCounts.length(); i++) {
+            mCounts.set(i, 0);
+        }
+        mTotalCount.set(0);
+        mTotal.set(0);
+        mMin.set(Long.MAX_VALUE);
+        mMax.set(0);
+    }
+}
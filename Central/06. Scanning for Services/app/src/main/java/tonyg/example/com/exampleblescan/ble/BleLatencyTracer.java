@@ -0,0 +1,159 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Time how long it takes from picking a Peripheral to seeing its GATT Profile on screen.
+ *
+ * Each step of a connection marks an event against the MAC address of the Peripheral.
+ * The time between an event and the one before it is counted in a BleLatencyHistogram
+ * for that phase, as is the time of the whole connection once the list is first drawn.
+ * Only the first time an event happens in a connection counts, so discovering priority
+ * Services first measures how soon the first Services appear.  Times are in microseconds
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleLatencyTracer {
+    /** Steps of a connection, in the order they happen **/
+    public static final int EVENT_INTENT_DISPATCHED = 0;
+    public static final int EVENT_REMOTE_DEVICE_RESOLVED = 1;
+    public static final int EVENT_CONNECT_GATT = 2;
+    public static final int EVENT_CONNECTED = 3;
+    public static final int EVENT_DISCOVER_SERVICES = 4;
+    public static final int EVENT_SERVICES_DISCOVERED = 5;
+    public static final int EVENT_ADAPTER_PUBLISHED = 6;
+    public static final int EVENT_FIRST_DRAW = 7;
+
+    private static final String[] PHASE_NAMES = {
+            "total", "getRemoteDevice", "connectGatt", "connected", "discoverServices",
+            "servicesDiscovered", "adapterPublished", "firstDraw"
+    };
+    private static final int EVENT_COUNT = PHASE_NAMES.length;
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    // histogram 0 holds the whole connection, the others the phase that ends with that event
+    private static final BleLatencyHistogram[] sHistograms = new BleLatencyHistogram[EVENT_COUNT];
+    static {
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            sHistograms[i] = new BleLatencyHistogram();
+        }
+    }
+
+    private static final Map<String, long[]> sTraces = new HashMap<>();
+
+    private BleLatencyTracer() {
+    }
+
+    /**
+     * Mark that a step of a connection happened now.
+     * Timing starts with the intent, getRemoteDevice, or connectGatt, whichever comes first
+     *
+     * @param macAddress the MAC address of the Peripheral
+     * @param event one of the EVENT_ values
+     */
+    public static void mark(String macAddress, int event) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (macAddress == null) return;
+        synchronized (sTraces) {
+            long[] trace = sTraces.get(macAddress);
+            if (event <= EVENT_REMOTE_DEVICE_RESOLVED && (trace == null || trace[event] != 0)) {
+                trace = new long[EVENT_COUNT]; // a new connection
+                sTraces.put(macAddress, trace);
+            } else if (trace == null) {
+                if (event != EVENT_CONNECT_GATT) {
+                    return; // not timing this connection
+                }
+                trace = new long[EVENT_COUNT];
+                sTraces.put(macAddress, trace);
+            }
+            if (trace[event] != 0) {
+                return; // only the first time counts
+            }
+            trace[event] = now;
+            if (event > 0 && trace[event - 1] != 0) {
+                sHistograms[event].recordValue((now - trace[event - 1]) / 1000);
+            }
+            if (event == EVENT_FIRST_DRAW) {
+                for (long startTime : trace) {
+                    if (startTime != 0) {
+                        sHistograms[0].recordValue((now - startTime) / 1000);
+                        break;
+                    }
+                }
+                sTraces.remove(macAddress);
+            }
+        }
+    }
+
+    /**
+     * Stop timing a connection that will not reach the screen, for example because it failed
+     *
+     * @param macAddress the MAC address of the Peripheral
+     */
+    public static void cancel(String macAddress) {
+        synchronized (sTraces) {
+            sTraces.remove(macAddress);
+        }
+    }
+
+    /**
+     * @param event one of the EVENT_ values, or 0 for whole connections
+     * @return the latencies of the phase that ends with the event, in microseconds
+     */
+    public static BleLatencyHistogram getHistogram(int event) {
+        return sHistograms[event];
+    }
+
+    /**
+     * Forget every counted latency
+     */
+    public static void reset() {
+        for (BleLatencyHistogram histogram : sHistograms) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Export the latencies as a table that is easy to read in the log, in milliseconds
+     *
+     * @return one line per phase
+     */
+    public static String toText() {
+        StringBuilder text = new StringBuilder(String.format(Locale.US, "%-20s %6s %9s %9s %9s %9s %9s %9s %9s%n",
+                "phase", "count", "min", "p50", "p90", "p99", "p99.9", "max", "mean"));
+        for (int i = 1; i <= EVENT_COUNT; i++) {
+            int phase = i % EVENT_COUNT; // the whole connection goes last
+            BleLatencyHistogram histogram = sHistograms[phase];
+            text.append(String.format(Locale.US, "%-20s %6d %9.2f", PHASE_NAMES[phase], histogram.getTotalCount(), histogram.getMinValue() / 1000.0));
+            for (double percentile : PERCENTILES) {
+                text.append(String.format(Locale.US, " %9.2f", histogram.getValueAtPercentile(percentile) / 1000.0));
+            }
+            text.append(String.format(Locale.US, " %9.2f %9.2f%n", histogram.getMaxValue() / 1000.0, histogram.getMean() / 1000.0));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Export the latencies as CSV, in microseconds
+     *
+     * @return a header line, then one line per phase
+     */
+    public static String toCsv() {
+        StringBuilder csv = new StringBuilder("phase,count,min_us,p50_us,p90_us,p99_us,p99.9_us,max_us,mean_us\n");
+        for (int i = 1; i <= EVENT_COUNT; i++) {
+            int phase = i % EVENT_COUNT;
+            BleLatencyHistogram histogram = sHistograms[phase];
+            csv.append(PHASE_NAMES[phase]).append(',').append(histogram.getTotalCount()).append(',').append(histogram.getMinValue());
+            for (double percentile : PERCENTILES) {
+                csv.append(',').append(histogram.getValueAtPercentile(percentile));
+            }
+            csv.append(',').append(histogram.getMaxValue()).append(',').append(String.format(Locale.US, "%.1f", histogram.getMean())).append('\n');
+        }
+        return csv.toString();
+    }
+}
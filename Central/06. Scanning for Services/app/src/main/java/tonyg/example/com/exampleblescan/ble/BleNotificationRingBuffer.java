@@ -0,0 +1,117 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-size ring of preallocated byte slices for incoming notifications.
+ *
+ * Notifications arrive on the Bluetooth Binder thread and are read on another thread.
+ * Copying each value into a slot that already exists means that a 1 kHz sensor stream
+ * does not allocate memory for every notification.
+ *
+ * There is exactly one producer and one consumer.  When the ring is full,
+ * new values are dropped and counted rather than overwriting values that have not been read
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleNotificationRingBuffer {
+
+    /**
+     * Receives values from the ring.
+     * The buffer is reused once onNotification returns, so copy anything that must be kept
+     */
+    public interface Consumer {
+        /**
+         * @param subscriptionId which subscription the value belongs to
+         * @param buffer the slot holding the value
+         * @param length how many bytes of the slot are used
+         * @param timestampNanos when the value arrived, from SystemClock.elapsedRealtimeNanos()
+         */
+        void onNotification(int subscriptionId, byte[] buffer, int length, long timestampNanos);
+    }
+
+    private final byte[][] mSlots;
+    private final int[] mLengths;
+    private final int[] mSubscriptionIds;
+    private final long[] mTimestamps;
+    private final int mMask;
+
+    private final AtomicLong mHead = new AtomicLong(0); // next slot to read
+    private final AtomicLong mTail = new AtomicLong(0); // next slot to write
+    private final AtomicLong mDroppedCount = new AtomicLong(0);
+
+    /**
+     * Allocate the ring
+     *
+     * @param slotCount how many values the ring holds.  Rounded up to a power of two
+     * @param slotSize the largest value, usually the MTU minus 3
+     */
+    public BleNotificationRingBuffer(int slotCount, int slotSize) {
+        int capacity = Integer.highestOneBit(Math.max(2, slotCount) - 1) << 1;
+        mMask = capacity - 1;
+        mSlots = new byte[capacity][slotSize];
+        mLengths = new int[capacity];
+        mSubscriptionIds = new int[capacity];
+        mTimestamps = new long[capacity];
+    }
+
+    /**
+     * Copy a value into the next free slot.  Called by the producer only
+     *
+     * @param subscriptionId which subscription the value belongs to
+     * @param value the value.  Bytes beyond the slot size are cut off
+     * @param timestampNanos when the value arrived
+     * @return <b>false</b> if the ring was full and the value was dropped
+     */
+    public boolean offer(int subscriptionId, byte[] value, long timestampNanos) {
+        long tail = mTail.get();
+        if (tail - mHead.get() > mMask) {
+            mDroppedCount.incrementAndGet();
+            return false;
+        }
+        int index = (int) (tail & mMask);
+        byte[] slot = mSlots[index];
+        int length = Math.min(value.length, slot.length);
+        System.arraycopy(value, 0, slot, 0, length);
+        mLengths[index] = length;
+        mSubscriptionIds[index] = subscriptionId;
+        mTimestamps[index] = timestampNanos;
+        mTail.lazySet(tail + 1); // publish the slot to the consumer
+        return true;
+    }
+
+    /**
+     * Hand every waiting value to the consumer.  Called by the consumer only
+     *
+     * @param consumer receives the values
+     * @return how many values were read
+     */
+    public int drain(Consumer consumer) {
+        long head = mHead.get();
+        long tail = mTail.get();
+        int count = 0;
+        while (head < tail) {
+            int index = (int) (head & mMask);
+            consumer.onNotification(mSubscriptionIds[index], mSlots[index], mLengths[index], mTimestamps[index]);
+            head++;
+            mHead.lazySet(head); // hand the slot back to the producer
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return how many values are waiting to be read
+     */
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    /**
+     * @return how many values were dropped because the ring was full
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+}
@@ -5,12 +5,31 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
 import android.content.Context;
+import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.UUID;
+
+import tonyg.example.com.exampleblescan.ble.callbacks.BleConnectionProfileCallback;
+import tonyg.example.com.exampleblescan.ble.callbacks.BleConnectionStateCallback;
+import tonyg.example.com.exampleblescan.ble.callbacks.BleNotificationCallback;
+import tonyg.example.com.exampleblescan.ble.callbacks.BleReadCallback;
+import tonyg.example.com.exampleblescan.ble.callbacks.BleThroughputBenchmarkCallback;
+import tonyg.example.com.exampleblescan.ble.callbacks.BleWriteCallback;
+import tonyg.example.com.exampleblescan.models.BleGattProfile;
+import tonyg.example.com.exampleblescan.models.BleUuid;
 
 /**
  * This class represents a generic Bluetooth Peripheral
@@ -22,8 +41,44 @@ import java.util.List;
 public class BlePeripheral {
     private static final String TAG = BlePeripheral.class.getSimpleName();
 
+    /** Android's catch-all GATT_ERROR, usually a stale connection in the Bluetooth stack **/
+    public static final int GATT_ERROR = 133;
+    private static final int MAX_CONNECTION_RETRIES = 2;
+    private static final long CONNECTION_TIMEOUT_MS = 10 * 1000;
+    private static final long DISCONNECTION_TIMEOUT_MS = 5 * 1000;
+
+    public static final UUID DEVICE_INFORMATION_SERVICE_UUID = BleUuid.toUuid(0x180A);
+
     private BluetoothDevice mBluetoothDevice;
     private BluetoothGatt mBluetoothGatt;
+    // stands in while no Activity listens, such as while the connection is parked in the BleSessionRegistry
+    private static final BluetoothGattCallback NO_CALLBACK = new BluetoothGattCallback() {
+    };
+    private volatile BluetoothGattCallback mCallback = NO_CALLBACK;
+    private final BleGattOperationQueue mOperationQueue = new BleGattOperationQueue();
+    private final BleSubscriptionManager mSubscriptionManager = new BleSubscriptionManager(mOperationQueue);
+
+    /** Negotiated connection parameters **/
+    private int mMtu = BleConnectionProfile.DEFAULT_MTU;
+    private int mTxPhy = BleConnectionProfile.PHY_LE_1M;
+    private int mRxPhy = BleConnectionProfile.PHY_LE_1M;
+    private volatile boolean mPhyUpdatePending = false;
+    private volatile BleGattProfile mGattProfile; // built once per service discovery
+    private volatile boolean mDiscoveryComplete = false; // false while only priority Services are known
+    private volatile UUID mDiscoveringServiceUuid; // the Service being discovered on its own, or null for a full discovery
+    private volatile boolean mLastPriorityDiscovery = false;
+
+    // BluetoothGatt.discoverServiceByUuid() exists, hidden, from Android 8.0
+    private static Method sDiscoverServiceByUuidMethod;
+    private static boolean sDiscoverServiceByUuidLookedUp = false;
+
+    /** Connection lifetime **/
+    private final BleConnectionStateMachine mConnectionState = new BleConnectionStateMachine();
+    private Context mContext;
+    private int mConnectionRetries = 0;
+    private long mIdleDisconnectTimeoutMs = 0; // never disconnect for being idle
+    private volatile boolean mLatencyTracing = false;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
 
     public BlePeripheral() {
     }
@@ -35,42 +90,646 @@ public class BlePeripheral {
      * @param callback The connection callback
      * @param context The Activity that initialized the connection
      * @return a connection to the BluetoothGatt
-     * @throws Exception if no device is given
+     * @throws Exception if no device is given, or a connection is already open
      */
     public BluetoothGatt connect(BluetoothDevice bluetoothDevice, BluetoothGattCallback callback, final Context context) throws Exception {
         if (bluetoothDevice == null) {
             throw new Exception("No bluetooth device provided");
         }
+        if (!mConnectionState.moveTo(BleConnectionStateMachine.State.CONNECTING)) {
+            throw new Exception("Can not connect while " + mConnectionState.getState());
+        }
         mBluetoothDevice = bluetoothDevice;
-        mBluetoothGatt = bluetoothDevice.connectGatt(context, false, callback);
-        refreshDeviceCache();
+        setCallback(callback);
+        mContext = context;
+        mMtu = BleConnectionProfile.DEFAULT_MTU;
+        mTxPhy = BleConnectionProfile.PHY_LE_1M;
+        mRxPhy = BleConnectionProfile.PHY_LE_1M;
+        mConnectionRetries = 0;
+        openGatt();
         return mBluetoothGatt;
     }
 
+    /**
+     * Open the GATT connection and start the connection timeout
+     *
+     * @throws Exception if the device cache could not be cleared
+     */
+    private void openGatt() throws Exception {
+        markLatency(BleLatencyTracer.EVENT_CONNECT_GATT);
+        mBluetoothGatt = mBluetoothDevice.connectGatt(mContext, false, mGattCallback);
+        mHandler.postDelayed(mConnectionTimeoutRunnable, CONNECTION_TIMEOUT_MS);
+        refreshDeviceCache();
+    }
+
     /**
      * Disconnect from a Peripheral
      */
     public void disconnect() {
-        if (mBluetoothGatt != null) {
-            mBluetoothGatt.disconnect();
+        if (mConnectionState.moveTo(BleConnectionStateMachine.State.DISCONNECTING)) {
+            mHandler.removeCallbacks(mConnectionTimeoutRunnable);
+            mHandler.removeCallbacks(mIdleDisconnectRunnable);
+            // some Android versions never report a disconnection that was requested while connecting
+            mHandler.postDelayed(mDisconnectionTimeoutRunnable, DISCONNECTION_TIMEOUT_MS);
+            BluetoothGatt bluetoothGatt = mBluetoothGatt;
+            if (bluetoothGatt != null) {
+                bluetoothGatt.disconnect();
+            }
         }
     }
 
     /**
-     * A connection can only close after a successful disconnect.
-     * Be sure to use the BluetoothGattCallback.onConnectionStateChanged event
-     * to notify of a successful disconnect
+     * Release the connection.
+     *
+     * A connection can only close after a successful disconnect,
+     * so if a disconnect is still pending, the connection is closed
+     * as soon as the disconnection is confirmed, or times out
      */
     public void close() {
-        if (mBluetoothGatt != null) {
-            mBluetoothGatt.close(); // close connection to Peripheral
-            mBluetoothGatt = null; // release from memory
+        if (mConnectionState.getState() == BleConnectionStateMachine.State.DISCONNECTING) {
+            return; // the disconnection callback or timeout will close the connection
+        }
+        closeGatt();
+    }
+
+    /**
+     * Close the BluetoothGatt.  Only the thread that moves the state machine
+     * to CLOSED gets to call BluetoothGatt.close(), so it runs exactly once
+     *
+     * @return <b>true</b> if this call closed the connection
+     */
+    private boolean closeGatt() {
+        if (!mConnectionState.moveTo(BleConnectionStateMachine.State.CLOSED)) {
+            return false;
         }
+        mHandler.removeCallbacks(mConnectionTimeoutRunnable);
+        mHandler.removeCallbacks(mDisconnectionTimeoutRunnable);
+        mHandler.removeCallbacks(mIdleDisconnectRunnable);
+        BleSessionRegistry.unregister(this);
+        if (mLatencyTracing && mBluetoothDevice != null) {
+            BleLatencyTracer.cancel(mBluetoothDevice.getAddress());
+        }
+        mGattProfile = null;
+        mSubscriptionManager.onDisconnected();
+        mOperationQueue.clear();
+        mOperationQueue.setBluetoothGatt(null);
+        BluetoothGatt bluetoothGatt = mBluetoothGatt;
+        mBluetoothGatt = null; // release from memory
+        if (bluetoothGatt != null) {
+            bluetoothGatt.close(); // close connection to Peripheral
+        }
+        return true;
     }
+
+    /**
+     * The Peripheral did not answer in time.  Give up and report a disconnection
+     */
+    private final Runnable mConnectionTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mConnectionState.getState() != BleConnectionStateMachine.State.CONNECTING) return;
+            Log.w(TAG, "Connection timed out after " + CONNECTION_TIMEOUT_MS + "ms");
+            BluetoothGatt bluetoothGatt = mBluetoothGatt;
+            if (closeGatt()) {
+                mCallback.onConnectionStateChange(bluetoothGatt, GATT_ERROR, BluetoothProfile.STATE_DISCONNECTED);
+            }
+        }
+    };
+
+    /**
+     * The disconnection was never confirmed.  Close the connection anyway
+     */
+    private final Runnable mDisconnectionTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Log.w(TAG, "Disconnection timed out after " + DISCONNECTION_TIMEOUT_MS + "ms");
+            BluetoothGatt bluetoothGatt = mBluetoothGatt;
+            if (closeGatt()) {
+                mCallback.onConnectionStateChange(bluetoothGatt, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_DISCONNECTED);
+            }
+        }
+    };
+
     public BluetoothDevice getBluetoothDevice() {
         return mBluetoothDevice;
     }
 
+    public int getMtu() { return mMtu; }
+    public int getTxPhy() { return mTxPhy; }
+    public int getRxPhy() { return mRxPhy; }
+    public boolean isConnected() { return mConnectionState.isConnected(); }
+    public boolean isServicesDiscovered() { return mConnectionState.getState() == BleConnectionStateMachine.State.READY; }
+    public BleConnectionStateMachine.State getConnectionState() { return mConnectionState.getState(); }
+
+    /**
+     * Receive a timing trace of every connection state transition
+     *
+     * @param callback the callback, or null to stop receiving transitions
+     */
+    public void setConnectionStateCallback(BleConnectionStateCallback callback) {
+        mConnectionState.setCallback(callback);
+    }
+
+    /**
+     * Send GATT events to a new callback.
+     * Use this to hand a live connection over to another Activity,
+     * along with BleSessionRegistry.  An Activity that is destroyed detaches its callback
+     * with null, so that a parked connection does not keep the Activity alive
+     *
+     * @param callback the callback that will receive GATT events from now on, or null to drop them
+     */
+    public void setCallback(BluetoothGattCallback callback) {
+        mCallback = callback != null ? callback : NO_CALLBACK;
+    }
+
+    /**
+     * Get the GATT Services found during service discovery
+     *
+     * @return the discovered Services, or an empty list if discovery has not finished
+     */
+    public List<BluetoothGattService> getServices() {
+        BluetoothGatt bluetoothGatt = mBluetoothGatt;
+        if (bluetoothGatt == null || !isServicesDiscovered()) {
+            return new ArrayList<>();
+        }
+        return bluetoothGatt.getServices();
+    }
+
+    /**
+     * Get the GATT Profile found during service discovery.  Unlike getServices(),
+     * the profile is immutable and can be handed to any thread
+     *
+     * @return the discovered profile, or null if discovery has not finished
+     */
+    public BleGattProfile getGattProfile() {
+        return mGattProfile;
+    }
+
+    /**
+     * Copy discovered GATT Services into an immutable profile
+     *
+     * @param services the Services from BluetoothGatt.getServices()
+     * @return the profile
+     */
+    public static BleGattProfile buildGattProfile(List<BluetoothGattService> services) {
+        List<BleGattProfile.Service> profileServices = new ArrayList<>(services.size());
+        for (BluetoothGattService service : services) {
+            List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
+            List<BleGattProfile.Characteristic> profileCharacteristics = new ArrayList<>(characteristics.size());
+            for (BluetoothGattCharacteristic characteristic : characteristics) {
+                List<BluetoothGattDescriptor> descriptors = characteristic.getDescriptors();
+                List<BleGattProfile.Descriptor> profileDescriptors = new ArrayList<>(descriptors.size());
+                for (BluetoothGattDescriptor descriptor : descriptors) {
+                    profileDescriptors.add(new BleGattProfile.Descriptor(descriptor.getUuid(), descriptor.getPermissions()));
+                }
+                profileCharacteristics.add(new BleGattProfile.Characteristic(characteristic.getUuid(), characteristic.getInstanceId(),
+                        characteristic.getProperties(), characteristic.getPermissions(), profileDescriptors));
+            }
+            profileServices.add(new BleGattProfile.Service(service.getUuid(), service.getInstanceId(), service.getType(), profileCharacteristics));
+        }
+        return new BleGattProfile(profileServices);
+    }
+
+    /**
+     * Time the steps of connections in the BleLatencyTracer.
+     * Off by default, so that background connections are not counted
+     *
+     * @param latencyTracing <b>true</b> to time connections
+     */
+    public void setLatencyTracing(boolean latencyTracing) {
+        mLatencyTracing = latencyTracing;
+    }
+
+    /**
+     * Mark a step of the connection, if connections are timed
+     *
+     * @param event one of the BleLatencyTracer.EVENT_ values
+     */
+    private void markLatency(int event) {
+        if (mLatencyTracing) {
+            BleLatencyTracer.mark(mBluetoothDevice.getAddress(), event);
+        }
+    }
+
+    /**
+     * Disconnect automatically after the connection has been idle for some time.
+     * Any GATT event or operation restarts the countdown
+     *
+     * @param timeoutMs idle time in milliseconds before disconnecting, or 0 to stay connected
+     */
+    public void setIdleDisconnectTimeout(long timeoutMs) {
+        mIdleDisconnectTimeoutMs = timeoutMs;
+        restartIdleTimer();
+    }
+
+    /**
+     * Restart the idle disconnect countdown
+     */
+    private void restartIdleTimer() {
+        mHandler.removeCallbacks(mIdleDisconnectRunnable);
+        if (isConnected() && mIdleDisconnectTimeoutMs > 0) {
+            mHandler.postDelayed(mIdleDisconnectRunnable, mIdleDisconnectTimeoutMs);
+        }
+    }
+
+    private final Runnable mIdleDisconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // never cut off an operation that is still waiting on the Peripheral
+            if (!mOperationQueue.isIdle()) {
+                restartIdleTimer();
+                return;
+            }
+            Log.v(TAG, "Connection idle for " + mIdleDisconnectTimeoutMs + "ms, disconnecting");
+            disconnect();
+        }
+    };
+
+    /**
+     * A queued GATT operation has finished.  Move on to the next one
+     *
+     * @param status the GATT status of the finished operation
+     */
+    private void onOperationComplete(int status) {
+        mOperationQueue.onOperationComplete(status);
+        restartIdleTimer();
+    }
+
+    /**
+     * Discover the GATT Profile of the connected Peripheral.
+     * Discovery waits for any pending GATT operations, such as a connection profile negotiation
+     */
+    public void discoverServices() {
+        discoverServices(Collections.<UUID>emptyList());
+    }
+
+    /**
+     * Discover the GATT Profile of the connected Peripheral, starting with the Services that are needed first.
+     *
+     * Where Android can discover a single Service, each priority Service is discovered on its own
+     * and reported through onServicesDiscovered as soon as it is found, with isDiscoveryComplete()
+     * still false.  GATT operations queued from that callback run before the rest of the profile
+     * is discovered, so work on the first Service can start right away.  Then the whole profile
+     * is discovered and reported once more.  Where Android can not, the whole profile is discovered at once
+     *
+     * @param priorityServiceUuids the Services to discover first, in order
+     */
+    public void discoverServices(List<UUID> priorityServiceUuids) {
+        mDiscoveryComplete = false;
+        if (priorityServiceUuids.isEmpty() || getDiscoverServiceByUuidMethod() == null) {
+            enqueueServiceDiscovery(null, false);
+            return;
+        }
+        for (int i = 0; i < priorityServiceUuids.size(); i++) {
+            enqueueServiceDiscovery(priorityServiceUuids.get(i), i == priorityServiceUuids.size() - 1);
+        }
+    }
+
+    /**
+     * @return <b>true</b> if the whole GATT Profile is known, not just the priority Services
+     */
+    public boolean isDiscoveryComplete() {
+        return mDiscoveryComplete;
+    }
+
+    /**
+     * Queue one service discovery
+     *
+     * @param serviceUuid the one Service to discover, or null to discover the whole profile
+     * @param lastPriorityDiscovery <b>true</b> if the whole profile should be discovered after this Service
+     */
+    private void enqueueServiceDiscovery(final UUID serviceUuid, final boolean lastPriorityDiscovery) {
+        mOperationQueue.enqueue(new BleGattOperationQueue.Operation() {
+            @Override
+            public boolean execute(BluetoothGatt bluetoothGatt) {
+                BleConnectionStateMachine.State previousState = mConnectionState.getState();
+                if (!mConnectionState.moveTo(BleConnectionStateMachine.State.DISCOVERING)) {
+                    return false;
+                }
+                mDiscoveringServiceUuid = serviceUuid;
+                mLastPriorityDiscovery = lastPriorityDiscovery;
+                markLatency(BleLatencyTracer.EVENT_DISCOVER_SERVICES);
+                boolean started = serviceUuid == null ? bluetoothGatt.discoverServices() : discoverServiceByUuid(bluetoothGatt, serviceUuid);
+                if (!started) {
+                    mConnectionState.moveTo(BleConnectionStateMachine.State.DISCOVERING, previousState);
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            public void onFailed() {
+                // the whole profile is still needed, unless the connection is gone
+                if (lastPriorityDiscovery && mConnectionState.isConnected()) {
+                    enqueueServiceDiscovery(null, false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Find BluetoothGatt.discoverServiceByUuid(), once
+     *
+     * @return the method, or null if this version of Android does not have it
+     */
+    private static Method getDiscoverServiceByUuidMethod() {
+        if (!sDiscoverServiceByUuidLookedUp) {
+            try {
+                sDiscoverServiceByUuidMethod = BluetoothGatt.class.getMethod("discoverServiceByUuid", UUID.class);
+            } catch (NoSuchMethodException e) {
+                Log.v(TAG, "Single service discovery is not supported, discovering whole profiles");
+            }
+            sDiscoverServiceByUuidLookedUp = true;
+        }
+        return sDiscoverServiceByUuidMethod;
+    }
+
+    /**
+     * Discover a single Service
+     *
+     * @param bluetoothGatt the connection
+     * @param serviceUuid the Service to discover
+     * @return <b>true</b> if discovery started
+     */
+    private static boolean discoverServiceByUuid(BluetoothGatt bluetoothGatt, UUID serviceUuid) {
+        try {
+            return (Boolean) getDiscoverServiceByUuidMethod().invoke(bluetoothGatt, serviceUuid);
+        } catch (Exception e) {
+            Log.e(TAG, "Could not discover service " + serviceUuid + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Read several Characteristics in one batch.
+     *
+     * The reads are queued back to back, so there is exactly one request per Characteristic
+     * and no idle time between them.  Android switches to Read Blob requests by itself
+     * when a value is longer than the MTU, so long values arrive complete.
+     * Characteristics that do not exist fail with BleReadSnapshot.STATUS_NOT_FOUND, and those that
+     * are not readable with GATT_READ_NOT_PERMITTED, without a round trip.  If the Peripheral is not
+     * connected, the whole batch fails with GATT_FAILURE at once
+     *
+     * @param characteristicUuids the Characteristics to read
+     * @param callback receives one snapshot once every read has finished
+     */
+    public void readMany(List<UUID> characteristicUuids, final BleReadCallback callback) {
+        final long startTime = SystemClock.elapsedRealtime();
+        final LinkedHashMap<UUID, byte[]> values = new LinkedHashMap<>();
+        final LinkedHashMap<UUID, Integer> statuses = new LinkedHashMap<>();
+
+        if (!isConnected()) {
+            // queued work would wait for the next connection, so report now
+            for (UUID characteristicUuid : characteristicUuids) {
+                statuses.put(characteristicUuid, BluetoothGatt.GATT_FAILURE);
+            }
+            Log.w(TAG, "Not connected, could not read " + statuses.size() + " characteristics");
+            callback.onReadComplete(new BleReadSnapshot(values, statuses, 0));
+            return;
+        }
+
+        for (final UUID characteristicUuid : characteristicUuids) {
+            final BluetoothGattCharacteristic characteristic = findCharacteristic(characteristicUuid);
+            if (characteristic == null) {
+                statuses.put(characteristicUuid, BleReadSnapshot.STATUS_NOT_FOUND);
+                continue;
+            }
+            if (!isCharacteristicReadable(characteristic)) {
+                statuses.put(characteristicUuid, BluetoothGatt.GATT_READ_NOT_PERMITTED);
+                continue;
+            }
+            statuses.put(characteristicUuid, BluetoothGatt.GATT_FAILURE);
+            mOperationQueue.enqueue(new BleGattOperationQueue.Operation() {
+                @Override
+                public boolean execute(BluetoothGatt bluetoothGatt) {
+                    return bluetoothGatt.readCharacteristic(characteristic);
+                }
+
+                @Override
+                public void onComplete(int status) {
+                    statuses.put(characteristicUuid, status);
+                    if (status == BluetoothGatt.GATT_SUCCESS && characteristic.getValue() != null) {
+                        values.put(characteristicUuid, characteristic.getValue().clone());
+                    }
+                }
+            });
+        }
+
+        // report once everything before this point has been answered
+        mOperationQueue.enqueue(new BleGattOperationQueue.Operation() {
+            @Override
+            public boolean execute(BluetoothGatt bluetoothGatt) {
+                report();
+                return true;
+            }
+
+            @Override
+            public boolean hasCallback() {
+                return false;
+            }
+
+            @Override
+            public void onFailed() {
+                report(); // the connection was lost; report what was read
+            }
+
+            private void report() {
+                long durationMs = SystemClock.elapsedRealtime() - startTime;
+                Log.v(TAG, "Read " + values.size() + " of " + statuses.size() + " characteristics in " + durationMs + "ms");
+                callback.onReadComplete(new BleReadSnapshot(values, statuses, durationMs));
+            }
+        });
+    }
+
+    /**
+     * Read every readable Characteristic of a Service in one batch
+     *
+     * @param serviceUuid the Service, for example DEVICE_INFORMATION_SERVICE_UUID
+     * @param callback receives one snapshot once every read has finished
+     * @throws Exception if the Service was not discovered
+     */
+    public void readService(UUID serviceUuid, BleReadCallback callback) throws Exception {
+        BluetoothGattService service = null;
+        for (BluetoothGattService discoveredService : getServices()) {
+            if (discoveredService.getUuid().equals(serviceUuid)) {
+                service = discoveredService;
+                break;
+            }
+        }
+        if (service == null) {
+            throw new Exception("Service not found with UUID: " + serviceUuid);
+        }
+
+        List<UUID> characteristicUuids = new ArrayList<>();
+        for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+            if (isCharacteristicReadable(characteristic)) {
+                characteristicUuids.add(characteristic.getUuid());
+            }
+        }
+        readMany(characteristicUuids, callback);
+    }
+
+    /**
+     * Find a discovered Characteristic in any Service
+     *
+     * @param characteristicUuid the Characteristic UUID
+     * @return the first matching Characteristic, or null
+     */
+    private BluetoothGattCharacteristic findCharacteristic(UUID characteristicUuid) {
+        for (BluetoothGattService service : getServices()) {
+            BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicUuid);
+            if (characteristic != null) {
+                return characteristic;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Subscribe to notifications or indications from a Characteristic.
+     * The subscription is restored automatically every time the Peripheral reconnects
+     *
+     * @param serviceUuid the Service that holds the Characteristic
+     * @param characteristicUuid the Characteristic
+     * @param indicate <b>true</b> for indications, <b>false</b> for notifications
+     */
+    public void subscribe(UUID serviceUuid, UUID characteristicUuid, boolean indicate) {
+        mSubscriptionManager.subscribe(isServicesDiscovered() ? mBluetoothGatt : null, serviceUuid, characteristicUuid, indicate);
+    }
+
+    /**
+     * Stop receiving notifications or indications from a Characteristic
+     *
+     * @param serviceUuid the Service that holds the Characteristic
+     * @param characteristicUuid the Characteristic
+     */
+    public void unsubscribe(UUID serviceUuid, UUID characteristicUuid) {
+        mSubscriptionManager.unsubscribe(isServicesDiscovered() ? mBluetoothGatt : null, serviceUuid, characteristicUuid);
+    }
+
+    /**
+     * Set where subscribed notifications are delivered
+     *
+     * @param callback receives notifications
+     * @param handler the thread to deliver notifications on
+     */
+    public void setNotificationCallback(BleNotificationCallback callback, Handler handler) {
+        mSubscriptionManager.setCallback(callback, handler);
+    }
+
+    /**
+     * @return how many notifications were dropped because the notification callback fell behind
+     */
+    public long getDroppedNotificationCount() {
+        return mSubscriptionManager.getDroppedNotificationCount();
+    }
+
+    /**
+     * Negotiate the connection priority, MTU, and PHY of a connection profile.
+     *
+     * The requests are queued in that order: a high connection priority first
+     * makes the MTU and PHY exchanges that follow it complete faster.
+     * Requests that the Android version does not support are skipped
+     *
+     * @param connectionProfile the desired connection profile
+     * @param callback reports the negotiated values, may be null
+     */
+    public void requestConnectionProfile(final BleConnectionProfile connectionProfile, final BleConnectionProfileCallback callback) {
+        // Connection priority and MTU requests were added in Android 5
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mOperationQueue.enqueue(new BleGattOperationQueue.Operation() {
+                @Override
+                public boolean execute(BluetoothGatt bluetoothGatt) {
+                    return bluetoothGatt.requestConnectionPriority(connectionProfile.getConnectionPriority());
+                }
+
+                @Override
+                public boolean hasCallback() {
+                    return false; // Android does not report connection parameter updates
+                }
+            });
+
+            if (connectionProfile.getMtu() != mMtu) {
+                mOperationQueue.enqueue(new BleGattOperationQueue.Operation() {
+                    @Override
+                    public boolean execute(BluetoothGatt bluetoothGatt) {
+                        return bluetoothGatt.requestMtu(connectionProfile.getMtu());
+                    }
+                });
+            }
+        }
+
+        // PHY selection was added in Android 8
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            mOperationQueue.enqueue(new BleGattOperationQueue.Operation() {
+                @Override
+                public boolean execute(BluetoothGatt bluetoothGatt) {
+                    mPhyUpdatePending = true;
+                    bluetoothGatt.setPreferredPhy(connectionProfile.getPhyMask(), connectionProfile.getPhyMask(),
+                            BleConnectionProfile.PHY_OPTION_NO_PREFERRED);
+                    return true;
+                }
+
+                @Override
+                public void onFailed() {
+                    // a late onPhyUpdate must not complete the operations that follow
+                    mPhyUpdatePending = false;
+                }
+            });
+        }
+
+        // report once everything before this point has been answered
+        mOperationQueue.enqueue(new BleGattOperationQueue.Operation() {
+            @Override
+            public boolean execute(BluetoothGatt bluetoothGatt) {
+                Log.v(TAG, connectionProfile + " negotiated: mtu=" + mMtu + ", txPhy=" + mTxPhy + ", rxPhy=" + mRxPhy);
+                if (callback != null) {
+                    callback.onConnectionProfileNegotiated(connectionProfile, mMtu, mTxPhy, mRxPhy);
+                }
+                return true;
+            }
+
+            @Override
+            public boolean hasCallback() {
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Measure the write throughput of the current connection
+     *
+     * @param characteristic a Characteristic that supports writes
+     * @param totalBytes how many bytes to send
+     * @param callback reports the measured throughput
+     * @throws Exception if the Characteristic is not writable
+     */
+    public void runThroughputBenchmark(BluetoothGattCharacteristic characteristic, int totalBytes, BleThroughputBenchmarkCallback callback) throws Exception {
+        if (!isCharacteristicWritable(characteristic)) {
+            throw new Exception("Characteristic is not writable: " + characteristic.getUuid());
+        }
+        new BleThroughputBenchmark(mOperationQueue, characteristic, mMtu, totalBytes, callback).start();
+    }
+
+    /**
+     * Write a payload of any size to a Characteristic, such as a firmware image.
+     * Use BleWriteEngine.mapFile() to send a file without loading it into memory
+     *
+     * @param characteristic a Characteristic that supports writes
+     * @param payload the data to write, from its position to its limit
+     * @param callback reports progress and throughput
+     * @return the running transfer, which can be cancelled
+     * @throws Exception if the Characteristic is not writable
+     */
+    public BleWriteEngine write(BluetoothGattCharacteristic characteristic, ByteBuffer payload, BleWriteCallback callback) throws Exception {
+        if (!isCharacteristicWritable(characteristic)) {
+            throw new Exception("Characteristic is not writable: " + characteristic.getUuid());
+        }
+        BleWriteEngine writeEngine = new BleWriteEngine(mOperationQueue, characteristic, mMtu, payload, callback);
+        writeEngine.start();
+        return writeEngine;
+    }
+
 
     // Android caches BLE Peripheral GATT Profiles.  This is ok when the Peripheral GATT Profile is
     // fixed, but since we are developing the Peripheral along-side the Central, we need to clear
@@ -129,7 +788,132 @@ public class BlePeripheral {
     }
 
 
+    /**
+     * Track the results of queued GATT operations, then hand every event
+     * to the callback that was passed in to connect()
+     */
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED && status == BluetoothGatt.GATT_SUCCESS) {
+                if (!mConnectionState.moveTo(BleConnectionStateMachine.State.CONNECTING, BleConnectionStateMachine.State.CONNECTED)) {
+                    return; // disconnect() or the connection timeout got here first
+                }
+                markLatency(BleLatencyTracer.EVENT_CONNECTED);
+                mHandler.removeCallbacks(mConnectionTimeoutRunnable);
+                mOperationQueue.setBluetoothGatt(gatt);
+                restartIdleTimer();
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED || status != BluetoothGatt.GATT_SUCCESS) {
+                // Status 133 while connecting usually clears up if the connection is opened again
+                if (status == GATT_ERROR
+                        && mConnectionState.getState() == BleConnectionStateMachine.State.CONNECTING
+                        && mConnectionRetries < MAX_CONNECTION_RETRIES) {
+                    mConnectionRetries++;
+                    Log.w(TAG, "GATT error 133 while connecting, retry " + mConnectionRetries + " of " + MAX_CONNECTION_RETRIES);
+                    mHandler.removeCallbacks(mConnectionTimeoutRunnable);
+                    gatt.close();
+                    try {
+                        openGatt();
+                        return;
+                    } catch (Exception e) {
+                        Log.e(TAG, "Could not reconnect to Peripheral");
+                    }
+                }
+                if (!closeGatt()) {
+                    return; // already closed and reported, for example by a timeout
+                }
+                newState = BluetoothProfile.STATE_DISCONNECTED;
+            }
+            mCallback.onConnectionStateChange(gatt, status, newState);
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            mConnectionState.moveTo(BleConnectionStateMachine.State.DISCOVERING,
+                    status == BluetoothGatt.GATT_SUCCESS ? BleConnectionStateMachine.State.READY : BleConnectionStateMachine.State.CONNECTED);
+            boolean priorityDiscovery = mDiscoveringServiceUuid != null;
+            mDiscoveringServiceUuid = null;
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                markLatency(BleLatencyTracer.EVENT_SERVICES_DISCOVERED);
+                mGattProfile = buildGattProfile(gatt.getServices());
+                mDiscoveryComplete = !priorityDiscovery;
+                if (mDiscoveryComplete) {
+                    mSubscriptionManager.resubscribe();
+                }
+            }
+            mCallback.onServicesDiscovered(gatt, status);
+            // operations the callback queued for the priority Services run first
+            if (priorityDiscovery && mLastPriorityDiscovery) {
+                enqueueServiceDiscovery(null, false);
+            }
+            onOperationComplete(status);
+        }
 
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            mCallback.onCharacteristicRead(gatt, characteristic, status);
+            onOperationComplete(status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            mCallback.onCharacteristicWrite(gatt, characteristic, status);
+            onOperationComplete(status);
+        }
 
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            mSubscriptionManager.onCharacteristicChanged(characteristic);
+            mCallback.onCharacteristicChanged(gatt, characteristic);
+            restartIdleTimer();
+        }
+
+        @Override
+        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            mCallback.onDescriptorRead(gatt, descriptor, status);
+            onOperationComplete(status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            mCallback.onDescriptorWrite(gatt, descriptor, status);
+            onOperationComplete(status);
+        }
+
+        @Override
+        public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+            mCallback.onReliableWriteCompleted(gatt, status);
+            onOperationComplete(status);
+        }
+
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            mCallback.onReadRemoteRssi(gatt, rssi, status);
+            onOperationComplete(status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mMtu = mtu;
+            }
+            mCallback.onMtuChanged(gatt, mtu, status);
+            onOperationComplete(status);
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mTxPhy = txPhy;
+                mRxPhy = rxPhy;
+            }
+            mCallback.onPhyUpdate(gatt, txPhy, rxPhy, status);
+            // the Peripheral may also change the PHY on its own
+            if (mPhyUpdatePending) {
+                mPhyUpdatePending = false;
+                onOperationComplete(status);
+            }
+        }
+    };
 
 }
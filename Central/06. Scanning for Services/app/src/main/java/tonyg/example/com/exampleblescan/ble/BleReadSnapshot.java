@@ -0,0 +1,100 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * The values of several Characteristics, read together in one batch.
+ *
+ * A snapshot never changes after it is built, so it can be passed between threads freely
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public final class BleReadSnapshot {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The status of a requested Characteristic the Peripheral does not have: ATT "Attribute Not Found", which BluetoothGatt has no constant for **/
+    public static final int STATUS_NOT_FOUND = 0x0A;
+
+    private final Map<UUID, byte[]> mValues;
+    private final Map<UUID, Integer> mStatuses;
+    private final long mDurationMs;
+
+    /**
+     * Build a snapshot.  The maps are owned by the snapshot from now on
+     *
+     * @param values the values that were read, by Characteristic UUID
+     * @param statuses the GATT status of every requested read, by Characteristic UUID
+     * @param durationMs how long the batch took
+     */
+    BleReadSnapshot(LinkedHashMap<UUID, byte[]> values, LinkedHashMap<UUID, Integer> statuses, long durationMs) {
+        mValues = Collections.unmodifiableMap(values);
+        mStatuses = Collections.unmodifiableMap(statuses);
+        mDurationMs = durationMs;
+    }
+
+    /**
+     * @return the UUIDs of every Characteristic that was requested, in request order
+     */
+    public Set<UUID> getUuids() {
+        return mStatuses.keySet();
+    }
+
+    /**
+     * @param characteristicUuid a requested Characteristic
+     * @return <b>true</b> if the Characteristic was read successfully
+     */
+    public boolean hasValue(UUID characteristicUuid) {
+        return mValues.containsKey(characteristicUuid);
+    }
+
+    /**
+     * @param characteristicUuid a requested Characteristic
+     * @return the GATT status of the read, or null if the Characteristic was not requested
+     */
+    public Integer getStatus(UUID characteristicUuid) {
+        return mStatuses.get(characteristicUuid);
+    }
+
+    /**
+     * @param characteristicUuid a requested Characteristic
+     * @return a copy of the value, or null if it could not be read
+     */
+    public byte[] getValue(UUID characteristicUuid) {
+        byte[] value = mValues.get(characteristicUuid);
+        return value == null ? null : value.clone();
+    }
+
+    /**
+     * Read a value without copying it
+     *
+     * @param characteristicUuid a requested Characteristic
+     * @return a read-only view of the value, or null if it could not be read
+     */
+    public ByteBuffer getValueBuffer(UUID characteristicUuid) {
+        byte[] value = mValues.get(characteristicUuid);
+        return value == null ? null : ByteBuffer.wrap(value).asReadOnlyBuffer();
+    }
+
+    /**
+     * @param characteristicUuid a requested Characteristic
+     * @return the value as UTF-8 text, or null if it could not be read
+     */
+    public String getString(UUID characteristicUuid) {
+        byte[] value = mValues.get(characteristicUuid);
+        return value == null ? null : new String(value, UTF8);
+    }
+
+    /**
+     * @return how long the whole batch took, in milliseconds
+     */
+    public long getDurationMs() {
+        return mDurationMs;
+    }
+}
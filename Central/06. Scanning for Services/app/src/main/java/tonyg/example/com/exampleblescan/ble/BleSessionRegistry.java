@@ -0,0 +1,60 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps connected Peripherals alive between Activities.
+ *
+ * A BluetoothGatt can not be put in an Intent, so an Activity that is done with a connection
+ * registers its BlePeripheral here, and the next Activity picks it up by MAC address.
+ * This saves a full connect and service discovery every time the user moves to a new screen.
+ * The registry outlives every Activity, so an Activity detaches its callback from the
+ * Peripheral when it is destroyed, and the next one attaches its own
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleSessionRegistry {
+    private static final Map<String, BlePeripheral> sBlePeripherals = new HashMap<>();
+
+    private BleSessionRegistry() {
+    }
+
+    /**
+     * Make a connected Peripheral available to other Activities
+     *
+     * @param blePeripheral the connected Peripheral
+     */
+    public static synchronized void register(BlePeripheral blePeripheral) {
+        sBlePeripherals.put(blePeripheral.getBluetoothDevice().getAddress(), blePeripheral);
+    }
+
+    /**
+     * Find a live connection to a Peripheral
+     *
+     * @param macAddress the MAC address of the Peripheral
+     * @return the connected BlePeripheral, or null if there is no live connection
+     */
+    public static synchronized BlePeripheral get(String macAddress) {
+        BlePeripheral blePeripheral = sBlePeripherals.get(macAddress);
+        if (blePeripheral != null && !blePeripheral.isConnected()) {
+            sBlePeripherals.remove(macAddress);
+            return null;
+        }
+        return blePeripheral;
+    }
+
+    /**
+     * Forget a Peripheral, for example once it is closed
+     *
+     * @param blePeripheral the Peripheral to remove
+     */
+    public static synchronized void unregister(BlePeripheral blePeripheral) {
+        if (blePeripheral.getBluetoothDevice() == null) return;
+        String macAddress = blePeripheral.getBluetoothDevice().getAddress();
+        if (sBlePeripherals.get(macAddress) == blePeripheral) {
+            sBlePeripherals.remove(macAddress);
+        }
+    }
+}
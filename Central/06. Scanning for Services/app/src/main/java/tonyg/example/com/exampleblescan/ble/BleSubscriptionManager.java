@@ -0,0 +1,261 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import tonyg.example.com.exampleblescan.ble.callbacks.BleNotificationCallback;
+import tonyg.example.com.exampleblescan.models.BleUuid;
+
+/**
+ * Manages Characteristic notification and indication subscriptions for one connection.
+ *
+ * A subscription is remembered until it is cancelled, so that it can be
+ * set up again automatically when the Peripheral reconnects.
+ * Incoming values are copied into a BleNotificationRingBuffer and
+ * delivered in batches on the thread of the callback's Handler.  The ring buffer is
+ * about half a megabyte, so it is only allocated by the first subscription
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleSubscriptionManager {
+    private static final String TAG = BleSubscriptionManager.class.getSimpleName();
+
+    public static final UUID CLIENT_CHARACTERISTIC_CONFIGURATION_UUID = BleUuid.toUuid(0x2902);
+
+    /** Enough room for one second of a 1 kHz stream **/
+    private static final int RING_BUFFER_SLOTS = 1024;
+    private static final int RING_BUFFER_SLOT_SIZE = BleConnectionProfile.MAX_MTU - 3;
+
+    /**
+     * A Characteristic the user wants to hear from
+     */
+    private static class Subscription {
+        final int mId;
+        final UUID mServiceUuid;
+        final UUID mCharacteristicUuid;
+        final boolean mIndicate;
+        volatile boolean mCancelled = false;
+
+        Subscription(int id, UUID serviceUuid, UUID characteristicUuid, boolean indicate) {
+            mId = id;
+            mServiceUuid = serviceUuid;
+            mCharacteristicUuid = characteristicUuid;
+            mIndicate = indicate;
+        }
+    }
+
+    private final BleGattOperationQueue mOperationQueue;
+    // null until the first subscription
+    private volatile BleNotificationRingBuffer mRingBuffer;
+
+    // subscriptions to restore on reconnection, by subscription id.  Cancelled ones are removed
+    private final Map<Integer, Subscription> mSubscriptions = new LinkedHashMap<>();
+    private int mNextSubscriptionId = 0;
+    // subscriptions the Peripheral has confirmed, by the Characteristic they arrive on
+    private final ConcurrentHashMap<BluetoothGattCharacteristic, Subscription> mActiveSubscriptions = new ConcurrentHashMap<>();
+
+    private volatile BleNotificationCallback mCallback;
+    private volatile Handler mCallbackHandler;
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+
+    BleSubscriptionManager(BleGattOperationQueue operationQueue) {
+        mOperationQueue = operationQueue;
+    }
+
+    /**
+     * Set where notifications are delivered
+     *
+     * @param callback receives notifications
+     * @param handler the thread to deliver notifications on
+     */
+    void setCallback(BleNotificationCallback callback, Handler handler) {
+        mCallback = callback;
+        mCallbackHandler = handler;
+    }
+
+    /**
+     * Subscribe to a Characteristic.  If the Peripheral is connected, the subscription is sent right away
+     *
+     * @param bluetoothGatt the connection, or null if the subscription should wait for the next connection
+     * @param serviceUuid the Service that holds the Characteristic
+     * @param characteristicUuid the Characteristic
+     * @param indicate <b>true</b> for indications, <b>false</b> for notifications
+     */
+    synchronized void subscribe(BluetoothGatt bluetoothGatt, UUID serviceUuid, UUID characteristicUuid, boolean indicate) {
+        for (Subscription subscription : mSubscriptions.values()) {
+            if (subscription.mServiceUuid.equals(serviceUuid) && subscription.mCharacteristicUuid.equals(characteristicUuid)) {
+                return; // already subscribed
+            }
+        }
+        if (mRingBuffer == null) {
+            mRingBuffer = new BleNotificationRingBuffer(RING_BUFFER_SLOTS, RING_BUFFER_SLOT_SIZE);
+        }
+        Subscription subscription = new Subscription(mNextSubscriptionId++, serviceUuid, characteristicUuid, indicate);
+        mSubscriptions.put(subscription.mId, subscription);
+        if (bluetoothGatt != null) {
+            enqueueSubscription(subscription, true);
+        }
+    }
+
+    /**
+     * Stop a subscription and forget it, so it is not restored on reconnection
+     *
+     * @param bluetoothGatt the connection, or null if not connected
+     * @param serviceUuid the Service that holds the Characteristic
+     * @param characteristicUuid the Characteristic
+     */
+    synchronized void unsubscribe(BluetoothGatt bluetoothGatt, UUID serviceUuid, UUID characteristicUuid) {
+        Iterator<Subscription> iterator = mSubscriptions.values().iterator();
+        while (iterator.hasNext()) {
+            Subscription subscription = iterator.next();
+            if (subscription.mServiceUuid.equals(serviceUuid) && subscription.mCharacteristicUuid.equals(characteristicUuid)) {
+                iterator.remove();
+                subscription.mCancelled = true;
+                if (bluetoothGatt != null) {
+                    enqueueSubscription(subscription, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Services were discovered on a new connection.  Restore every subscription
+     */
+    synchronized void resubscribe() {
+        mActiveSubscriptions.clear();
+        for (Subscription subscription : mSubscriptions.values()) {
+            enqueueSubscription(subscription, true);
+        }
+    }
+
+    /**
+     * The connection was lost.  Subscriptions stay on record for the next connection
+     */
+    void onDisconnected() {
+        mActiveSubscriptions.clear();
+    }
+
+    /**
+     * A Characteristic changed.  Copy its value into the ring buffer and wake up the consumer.
+     * Called on the Binder thread
+     *
+     * @param characteristic the Characteristic that changed
+     * @return <b>true</b> if the Characteristic belongs to a subscription
+     */
+    boolean onCharacteristicChanged(BluetoothGattCharacteristic characteristic) {
+        Subscription subscription = mActiveSubscriptions.get(characteristic);
+        if (subscription == null) {
+            return false;
+        }
+        // a subscription exists, so the ring buffer does too
+        mRingBuffer.offer(subscription.mId, characteristic.getValue(), SystemClock.elapsedRealtimeNanos());
+
+        Handler handler = mCallbackHandler;
+        if (handler != null && mDrainScheduled.compareAndSet(false, true)) {
+            handler.post(mDrainRunnable);
+        }
+        return true;
+    }
+
+    /**
+     * @return how many notifications were dropped because the consumer fell behind
+     */
+    public long getDroppedNotificationCount() {
+        BleNotificationRingBuffer ringBuffer = mRingBuffer;
+        return ringBuffer != null ? ringBuffer.getDroppedCount() : 0;
+    }
+
+    /**
+     * Queue a CCCD write that turns notifications on or off
+     */
+    private void enqueueSubscription(final Subscription subscription, final boolean enable) {
+        mOperationQueue.enqueue(new BleGattOperationQueue.Operation() {
+            private BluetoothGattCharacteristic mCharacteristic;
+
+            @Override
+            public boolean execute(BluetoothGatt bluetoothGatt) {
+                BluetoothGattService service = bluetoothGatt.getService(subscription.mServiceUuid);
+                if (service == null) return false;
+                mCharacteristic = service.getCharacteristic(subscription.mCharacteristicUuid);
+                if (mCharacteristic == null) return false;
+                BluetoothGattDescriptor descriptor = mCharacteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIGURATION_UUID);
+                if (descriptor == null) return false;
+
+                if (!bluetoothGatt.setCharacteristicNotification(mCharacteristic, enable)) return false;
+                if (!enable) {
+                    mActiveSubscriptions.remove(mCharacteristic);
+                    descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+                } else if (subscription.mIndicate) {
+                    descriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+                } else {
+                    descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                }
+                return bluetoothGatt.writeDescriptor(descriptor);
+            }
+
+            @Override
+            public void onComplete(int status) {
+                // a subscription cancelled while its CCCD write was on its way stays off
+                boolean subscribed = enable && status == BluetoothGatt.GATT_SUCCESS && !subscription.mCancelled;
+                if (subscribed) {
+                    mActiveSubscriptions.put(mCharacteristic, subscription);
+                }
+                Log.v(TAG, subscription.mCharacteristicUuid + (subscribed ? " subscribed" : " not subscribed") + ", status: " + status);
+                BleNotificationCallback callback = mCallback;
+                if (callback != null) {
+                    callback.onSubscriptionChanged(subscription.mCharacteristicUuid, subscribed);
+                }
+            }
+
+            @Override
+            public void onFailed() {
+                Log.e(TAG, "Could not change subscription to " + subscription.mCharacteristicUuid);
+                BleNotificationCallback callback = mCallback;
+                if (callback != null && enable) {
+                    callback.onSubscriptionChanged(subscription.mCharacteristicUuid, false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Deliver every waiting value on the callback thread
+     */
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mDrainScheduled.set(false);
+            BleNotificationRingBuffer ringBuffer = mRingBuffer;
+            if (ringBuffer != null) {
+                ringBuffer.drain(mRingBufferConsumer);
+            }
+        }
+    };
+
+    private final BleNotificationRingBuffer.Consumer mRingBufferConsumer = new BleNotificationRingBuffer.Consumer() {
+        @Override
+        public void onNotification(int subscriptionId, byte[] buffer, int length, long timestampNanos) {
+            BleNotificationCallback callback = mCallback;
+            if (callback == null) return;
+            Subscription subscription;
+            synchronized (BleSubscriptionManager.this) {
+                subscription = mSubscriptions.get(subscriptionId);
+            }
+            if (subscription == null) return; // cancelled since the value arrived
+            callback.onNotification(subscription.mCharacteristicUuid, buffer, length, timestampNanos);
+        }
+    };
+}
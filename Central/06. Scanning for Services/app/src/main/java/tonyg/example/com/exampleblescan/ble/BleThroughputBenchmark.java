@@ -0,0 +1,55 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.nio.ByteBuffer;
+
+import tonyg.example.com.exampleblescan.ble.callbacks.BleThroughputBenchmarkCallback;
+import tonyg.example.com.exampleblescan.ble.callbacks.BleWriteCallback;
+
+/**
+ * Measure how fast data can be pushed to a Peripheral under the current connection profile.
+ *
+ * The benchmark sends a block of generated data through a BleWriteEngine
+ * and times the whole transfer
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleThroughputBenchmark {
+    private final BleWriteEngine mWriteEngine;
+
+    /**
+     * Prepare a benchmark
+     *
+     * @param operationQueue the queue of the connected Peripheral
+     * @param characteristic a writable Characteristic
+     * @param mtu the negotiated ATT MTU
+     * @param totalBytes how many bytes to send
+     * @param callback reports the result
+     */
+    BleThroughputBenchmark(BleGattOperationQueue operationQueue, BluetoothGattCharacteristic characteristic, int mtu, int totalBytes, final BleThroughputBenchmarkCallback callback) {
+        ByteBuffer payload = ByteBuffer.allocate(totalBytes);
+        for (int i = 0; i < totalBytes; i++) {
+            payload.put(i, (byte) i);
+        }
+        mWriteEngine = new BleWriteEngine(operationQueue, characteristic, mtu, payload, new BleWriteCallback() {
+            @Override
+            public void onWriteComplete(long totalBytes, long durationMs, double bytesPerSecond) {
+                callback.onBenchmarkComplete((int) totalBytes, durationMs, bytesPerSecond);
+            }
+
+            @Override
+            public void onWriteFailed(long bytesWritten, int status) {
+                callback.onBenchmarkFailed((int) bytesWritten);
+            }
+        });
+    }
+
+    /**
+     * Start sending data
+     */
+    void start() {
+        mWriteEngine.start();
+    }
+}
@@ -0,0 +1,355 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import tonyg.example.com.exampleblescan.models.BleAssignedNumbers;
+
+/**
+ * Decode Characteristic values, which are little-endian.
+ *
+ * The static methods read straight out of the byte[] or ByteBuffer that the value arrived in,
+ * such as a notification ring buffer slot or BleReadSnapshot.getValueBuffer(), without copying
+ * it first.  Unlike BluetoothGattCharacteristic.getIntValue(), the number methods do not box
+ * their result, so decoding a stream of values does not allocate anything.
+ *
+ * Decoder instances wrap one format each, so they can be looked up by Characteristic UUID
+ * in a BleValueDecoderRegistry
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public abstract class BleValueDecoder {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** IEEE-11073 special values **/
+    private static final int SFLOAT_NAN = 0x07FF;
+    private static final int SFLOAT_NRES = 0x0800;
+    private static final int SFLOAT_POSITIVE_INFINITY = 0x07FE;
+    private static final int SFLOAT_NEGATIVE_INFINITY = 0x0802;
+    private static final int SFLOAT_RESERVED = 0x0801;
+    private static final int FLOAT_NAN = 0x007FFFFF;
+    private static final int FLOAT_NRES = 0x00800000;
+    private static final int FLOAT_POSITIVE_INFINITY = 0x007FFFFE;
+    private static final int FLOAT_NEGATIVE_INFINITY = 0x00800002;
+    private static final int FLOAT_RESERVED = 0x00800001;
+
+    // 10^exponent for every exponent an IEEE-11073 FLOAT can have, so decoding never calls Math.pow()
+    private static final int MIN_EXPONENT = -128;
+    private static final double[] POWERS_OF_TEN = new double[256];
+    static {
+        for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = Double.parseDouble("1e" + (i + MIN_EXPONENT));
+        }
+    }
+
+    /** The size of an IEEE-11073 Date Time: year, month, day, hours, minutes, seconds **/
+    public static final int DATE_TIME_LENGTH = 7;
+
+    /**
+     * Decode a value
+     *
+     * @param buffer the buffer holding the value.  Its position and limit are not changed
+     * @param index where the value starts in the buffer
+     * @param length how many bytes the value takes
+     * @return the decoded value
+     * @throws IndexOutOfBoundsException if the value is too short for this format
+     */
+    public abstract Object decode(ByteBuffer buffer, int index, int length);
+
+    /**
+     * Decode a value held in an array, without copying it
+     *
+     * @param value the array holding the value
+     * @param length how many bytes of the array are used
+     * @return the decoded value
+     */
+    public Object decode(byte[] value, int length) {
+        return decode(ByteBuffer.wrap(value), 0, length);
+    }
+
+    /** UNSIGNED INTEGERS **/
+
+    public static int getUint8(byte[] value, int offset) {
+        return value[offset] & 0xff;
+    }
+
+    public static int getUint8(ByteBuffer buffer, int index) {
+        return buffer.get(index) & 0xff;
+    }
+
+    public static int getUint16(byte[] value, int offset) {
+        return (value[offset] & 0xff) | (value[offset + 1] & 0xff) << 8;
+    }
+
+    public static int getUint16(ByteBuffer buffer, int index) {
+        return (buffer.get(index) & 0xff) | (buffer.get(index + 1) & 0xff) << 8;
+    }
+
+    public static int getUint24(byte[] value, int offset) {
+        return getUint16(value, offset) | (value[offset + 2] & 0xff) << 16;
+    }
+
+    public static int getUint24(ByteBuffer buffer, int index) {
+        return getUint16(buffer, index) | (buffer.get(index + 2) & 0xff) << 16;
+    }
+
+    public static long getUint32(byte[] value, int offset) {
+        return getSint32(value, offset) & 0xffffffffL;
+    }
+
+    public static long getUint32(ByteBuffer buffer, int index) {
+        return getSint32(buffer, index) & 0xffffffffL;
+    }
+
+    /** SIGNED INTEGERS **/
+
+    public static int getSint8(byte[] value, int offset) {
+        return value[offset];
+    }
+
+    public static int getSint8(ByteBuffer buffer, int index) {
+        return buffer.get(index);
+    }
+
+    public static int getSint16(byte[] value, int offset) {
+        return (short) getUint16(value, offset);
+    }
+
+    public static int getSint16(ByteBuffer buffer, int index) {
+        return (short) getUint16(buffer, index);
+    }
+
+    public static int getSint24(byte[] value, int offset) {
+        return getUint24(value, offset) << 8 >> 8;
+    }
+
+    public static int getSint24(ByteBuffer buffer, int index) {
+        return getUint24(buffer, index) << 8 >> 8;
+    }
+
+    public static int getSint32(byte[] value, int offset) {
+        return getUint16(value, offset) | getUint16(value, offset + 2) << 16;
+    }
+
+    public static int getSint32(ByteBuffer buffer, int index) {
+        return getUint16(buffer, index) | getUint16(buffer, index + 2) << 16;
+    }
+
+    /** IEEE-11073 FLOATING POINT **/
+
+    public static float getSfloat(byte[] value, int offset) {
+        return sfloatToFloat(getUint16(value, offset));
+    }
+
+    public static float getSfloat(ByteBuffer buffer, int index) {
+        return sfloatToFloat(getUint16(buffer, index));
+    }
+
+    public static float getFloat(byte[] value, int offset) {
+        return floatToFloat(getSint32(value, offset));
+    }
+
+    public static float getFloat(ByteBuffer buffer, int index) {
+        return floatToFloat(getSint32(buffer, index));
+    }
+
+    /**
+     * A 16 bit SFLOAT is a 12 bit signed mantissa and a 4 bit signed exponent
+     */
+    private static float sfloatToFloat(int raw) {
+        switch (raw) {
+            case SFLOAT_NAN:
+            case SFLOAT_NRES:
+            case SFLOAT_RESERVED:
+                return Float.NaN;
+            case SFLOAT_POSITIVE_INFINITY:
+                return Float.POSITIVE_INFINITY;
+            case SFLOAT_NEGATIVE_INFINITY:
+                return Float.NEGATIVE_INFINITY;
+            default:
+                int mantissa = raw << 20 >> 20;
+                int exponent = raw << 16 >> 28;
+                return (float) (mantissa * POWERS_OF_TEN[exponent - MIN_EXPONENT]);
+        }
+    }
+
+    /**
+     * A 32 bit FLOAT is a 24 bit signed mantissa and an 8 bit signed exponent.
+     * The special values all have an exponent of 0
+     */
+    private static float floatToFloat(int raw) {
+        int exponent = raw >> 24;
+        if (exponent == 0) {
+            switch (raw) {
+                case FLOAT_NAN:
+                case FLOAT_NRES:
+                case FLOAT_RESERVED:
+                    return Float.NaN;
+                case FLOAT_POSITIVE_INFINITY:
+                    return Float.POSITIVE_INFINITY;
+                case FLOAT_NEGATIVE_INFINITY:
+                    return Float.NEGATIVE_INFINITY;
+            }
+        }
+        int mantissa = raw << 8 >> 8;
+        return (float) (mantissa * POWERS_OF_TEN[exponent - MIN_EXPONENT]);
+    }
+
+    /** TEXT AND TIME **/
+
+    public static String getUtf8(byte[] value, int offset, int length) {
+        return new String(value, offset, length, UTF8);
+    }
+
+    public static String getUtf8(ByteBuffer buffer, int index, int length) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + index, length, UTF8);
+        }
+        // a read-only buffer hides its array, so let the decoder read it directly
+        ByteBuffer view = buffer.duplicate();
+        view.limit(index + length);
+        view.position(index);
+        return UTF8.decode(view).toString();
+    }
+
+    /**
+     * Read an IEEE-11073 Date Time, as used by the Date Time Characteristic (0x2A08)
+     *
+     * @param buffer the buffer holding the value
+     * @param index where the value starts
+     * @return the date and time in the local time zone, or null if the Peripheral does not know the date
+     */
+    public static Calendar getDateTime(ByteBuffer buffer, int index) {
+        int year = getUint16(buffer, index);
+        int month = getUint8(buffer, index + 2);
+        int day = getUint8(buffer, index + 3);
+        if (year == 0 || month == 0 || day == 0) {
+            return null; // 0 means "not known"
+        }
+        return new GregorianCalendar(year, month - 1, day,
+                getUint8(buffer, index + 4), getUint8(buffer, index + 5), getUint8(buffer, index + 6));
+    }
+
+    public static Calendar getDateTime(byte[] value, int offset) {
+        return getDateTime(ByteBuffer.wrap(value), offset);
+    }
+
+    /** DECODERS FOR EACH FORMAT **/
+
+    public static final BleValueDecoder UINT8 = new BleValueDecoder() {
+        @Override
+        public Object decode(ByteBuffer buffer, int index, int length) {
+            checkLength(length, 1);
+            return getUint8(buffer, index);
+        }
+    };
+
+    public static final BleValueDecoder UINT16 = new BleValueDecoder() {
+        @Override
+        public Object decode(ByteBuffer buffer, int index, int length) {
+            checkLength(length, 2);
+            return getUint16(buffer, index);
+        }
+    };
+
+    public static final BleValueDecoder UINT24 = new BleValueDecoder() {
+        @Override
+        public Object decode(ByteBuffer buffer, int index, int length) {
+            checkLength(length, 3);
+            return getUint24(buffer, index);
+        }
+    };
+
+    public static final BleValueDecoder UINT32 = new BleValueDecoder() {
+        @Override
+        public Object decode(ByteBuffer buffer, int index, int length) {
+            checkLength(length, 4);
+            return getUint32(buffer, index);
+        }
+    };
+
+    public static final BleValueDecoder SINT8 = new BleValueDecoder() {
+        @Override
+        public Object decode(ByteBuffer buffer, int index, int length) {
+            checkLength(length, 1);
+            return getSint8(buffer, index);
+        }
+    };
+
+    public static final BleValueDecoder SINT16 = new BleValueDecoder() {
+        @Override
+        public Object decode(ByteBuffer buffer, int index, int length) {
+            checkLength(length, 2);
+            return getSint16(buffer, index);
+        }
+    };
+
+    public static final BleValueDecoder SINT32 = new BleValueDecoder() {
+        @Override
+        public Object decode(ByteBuffer buffer, int index, int length) {
+            checkLength(length, 4);
+            return getSint32(buffer, index);
+        }
+    };
+
+    public static final BleValueDecoder SFLOAT = new BleValueDecoder() {
+        @Override
+        public Object decode(ByteBuffer buffer, int index, int length) {
+            checkLength(length, 2);
+            return getSfloat(buffer, index);
+        }
+    };
+
+    public static final BleValueDecoder FLOAT = new BleValueDecoder() {
+        @Override
+        public Object decode(ByteBuffer buffer, int index, int length) {
+            checkLength(length, 4);
+            return getFloat(buffer, index);
+        }
+    };
+
+    public static final BleValueDecoder UTF8_STRING = new BleValueDecoder() {
+        @Override
+        public Object decode(ByteBuffer buffer, int index, int length) {
+            return getUtf8(buffer, index, length);
+        }
+    };
+
+    public static final BleValueDecoder DATE_TIME = new BleValueDecoder() {
+        @Override
+        public Object decode(ByteBuffer buffer, int index, int length) {
+            checkLength(length, DATE_TIME_LENGTH);
+            return getDateTime(buffer, index);
+        }
+    };
+
+    private static void checkLength(int length, int requiredLength) {
+        if (length < requiredLength) {
+            throw new IndexOutOfBoundsException("Value is " + length + " bytes, needs " + requiredLength);
+        }
+    }
+
+    /**
+     * @param format one of the BleAssignedNumbers.FORMAT_ values
+     * @return the decoder for that format, or null for FORMAT_NONE
+     */
+    public static BleValueDecoder forFormat(int format) {
+        switch (format) {
+            case BleAssignedNumbers.FORMAT_UINT8: return UINT8;
+            case BleAssignedNumbers.FORMAT_UINT16: return UINT16;
+            case BleAssignedNumbers.FORMAT_UINT24: return UINT24;
+            case BleAssignedNumbers.FORMAT_UINT32: return UINT32;
+            case BleAssignedNumbers.FORMAT_SINT8: return SINT8;
+            case BleAssignedNumbers.FORMAT_SINT16: return SINT16;
+            case BleAssignedNumbers.FORMAT_SINT32: return SINT32;
+            case BleAssignedNumbers.FORMAT_SFLOAT: return SFLOAT;
+            case BleAssignedNumbers.FORMAT_FLOAT: return FLOAT;
+            case BleAssignedNumbers.FORMAT_UTF8: return UTF8_STRING;
+            case BleAssignedNumbers.FORMAT_DATE_TIME: return DATE_TIME;
+            default: return null;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import tonyg.example.com.exampleblescan.models.BleAssignedNumbers;
+import tonyg.example.com.exampleblescan.models.BleUuid;
+
+/**
+ * Find the right BleValueDecoder for a Characteristic.
+ *
+ * Decoders registered for a UUID win.  Otherwise a SIG Characteristic is decoded in the
+ * format listed for it in BleAssignedNumbers, so values like the Battery Level (uint8) or
+ * the Model Number String (utf8) decode without any setup.  The answer for each UUID is
+ * remembered, so repeated lookups are a single hash map read
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleValueDecoderRegistry {
+    // stands in for "no decoder", because a ConcurrentHashMap can not hold null
+    private static final BleValueDecoder NO_DECODER = new BleValueDecoder() {
+        @Override
+        public Object decode(ByteBuffer buffer, int index, int length) {
+            return null;
+        }
+    };
+
+    private final BleAssignedNumbers mAssignedNumbers;
+    private final ConcurrentHashMap<UUID, BleValueDecoder> mDecoders = new ConcurrentHashMap<>();
+
+    /**
+     * @param assignedNumbers where to look up the formats of SIG Characteristics, or null to only use registered decoders
+     */
+    public BleValueDecoderRegistry(BleAssignedNumbers assignedNumbers) {
+        mAssignedNumbers = assignedNumbers;
+    }
+
+    /**
+     * Decode a Characteristic with a specific decoder, such as one for a custom Characteristic
+     *
+     * @param characteristicUuid the UUID of the Characteristic
+     * @param decoder how to decode its value
+     */
+    public void register(UUID characteristicUuid, BleValueDecoder decoder) {
+        mDecoders.put(characteristicUuid, decoder);
+    }
+
+    /**
+     * @param characteristicUuid the UUID of the Characteristic
+     * @return the decoder for the Characteristic, or null if its format is not known
+     */
+    public BleValueDecoder getDecoder(UUID characteristicUuid) {
+        BleValueDecoder decoder = mDecoders.get(characteristicUuid);
+        if (decoder == null) {
+            decoder = NO_DECODER;
+            if (mAssignedNumbers != null) {
+                BleValueDecoder formatDecoder = BleValueDecoder.forFormat(mAssignedNumbers.getFormat(BleUuid.fromUuid(characteristicUuid)));
+                if (formatDecoder != null) {
+                    decoder = formatDecoder;
+                }
+            }
+            BleValueDecoder existingDecoder = mDecoders.putIfAbsent(characteristicUuid, decoder);
+            if (existingDecoder != null) {
+                decoder = existingDecoder; // registered meanwhile
+            }
+        }
+        return decoder == NO_DECODER ? null : decoder;
+    }
+
+    /**
+     * Decode a value, such as one from a notification
+     *
+     * @param characteristicUuid the UUID of the Characteristic
+     * @param value the array holding the value
+     * @param length how many bytes of the array are used
+     * @return the decoded value, or null if the format is not known
+     */
+    public Object decode(UUID characteristicUuid, byte[] value, int length) {
+        BleValueDecoder decoder = getDecoder(characteristicUuid);
+        return decoder == null ? null : decoder.decode(value, length);
+    }
+
+    /**
+     * Decode a value from a source that can not be trusted, such as the advertisement of any
+     * nearby device.  A value too short for the format is skipped instead of thrown
+     *
+     * @param characteristicUuid the UUID of the Characteristic
+     * @param value the array holding the value
+     * @param length how many bytes of the array are used
+     * @return the decoded value, or null if the format is not known or the value does not fit it
+     */
+    public Object tryDecode(UUID characteristicUuid, byte[] value, int length) {
+        try {
+            return decode(characteristicUuid, value, length);
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decode a value, such as one from BleReadSnapshot.getValueBuffer()
+     *
+     * @param characteristicUuid the UUID of the Characteristic
+     * @param buffer the value, from its position to its limit
+     * @return the decoded value, or null if the format is not known
+     */
+    public Object decode(UUID characteristicUuid, ByteBuffer buffer) {
+        BleValueDecoder decoder = getDecoder(characteristicUuid);
+        return decoder == null ? null : decoder.decode(buffer, buffer.position(), buffer.remaining());
+    }
+}
@@ -0,0 +1,247 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import tonyg.example.com.exampleblescan.ble.callbacks.BleWriteCallback;
+
+/**
+ * Write a payload that is far larger than one packet, such as a firmware image.
+ *
+ * If the Characteristic supports write without response, the payload is cut into MTU-sized
+ * packets.  Otherwise it is cut into 512 byte values, the largest a Characteristic can hold,
+ * which Android sends as prepared (long) writes.  Either way the next packet is only queued
+ * once onCharacteristicWrite says the Bluetooth stack has room for it.  A packet refused
+ * because the connection is congested is sent again after a delay that doubles each time,
+ * up to MAX_CONGESTED_RETRIES times.
+ *
+ * The payload is read straight from a ByteBuffer, so a memory-mapped file is
+ * never loaded into memory as a whole
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleWriteEngine {
+    private static final String TAG = BleWriteEngine.class.getSimpleName();
+
+    private static final int ATT_WRITE_HEADER_LENGTH = 3; // opcode + attribute handle
+    private static final int MAX_ATTRIBUTE_LENGTH = 512;
+    private static final long PROGRESS_INTERVAL_MS = 250;
+    // backing off while the connection is congested
+    private static final long CONGESTION_INITIAL_DELAY_MS = 20;
+    private static final long CONGESTION_MAX_DELAY_MS = 1000;
+    private static final int MAX_CONGESTED_RETRIES = 8;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final BleGattOperationQueue mOperationQueue;
+    private final BluetoothGattCharacteristic mCharacteristic;
+    private final ByteBuffer mPayload;
+    private final ByteBuffer mPayloadReader; // a second view of the payload, so reading never moves the caller's position
+    private final long mTotalBytes;
+    private final BleWriteCallback mCallback;
+    private final int mWriteType;
+
+    // packets are copied into reusable arrays: a full-size one, and one for the final, shorter packet
+    private final byte[] mPacket;
+    private byte[] mLastPacket;
+
+    private volatile boolean mCancelled = false;
+    private long mBytesWritten = 0;
+    private long mStartTime;
+    private long mLastProgressTime;
+    private int mCongestedRetries = 0;
+
+    /**
+     * Prepare a transfer
+     *
+     * @param operationQueue the queue of the connected Peripheral
+     * @param characteristic a writable Characteristic
+     * @param mtu the negotiated ATT MTU
+     * @param payload the data to write, from its position to its limit.  The buffer itself is not modified
+     * @param callback reports progress
+     */
+    BleWriteEngine(BleGattOperationQueue operationQueue, BluetoothGattCharacteristic characteristic, int mtu, ByteBuffer payload, BleWriteCallback callback) {
+        mOperationQueue = operationQueue;
+        mCharacteristic = characteristic;
+        mPayload = payload.slice();
+        mTotalBytes = mPayload.remaining();
+        mPayloadReader = mPayload.duplicate();
+        mCallback = callback;
+
+        int packetSize;
+        if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+            mWriteType = BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+            packetSize = mtu - ATT_WRITE_HEADER_LENGTH;
+        } else {
+            mWriteType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+            packetSize = MAX_ATTRIBUTE_LENGTH;
+        }
+        mPacket = new byte[(int) Math.min(packetSize, Math.max(1, mTotalBytes))];
+    }
+
+    /**
+     * Map a file into memory without reading it
+     *
+     * @param file the file to send
+     * @return a read-only buffer backed by the file
+     * @throws IOException if the file can not be opened
+     */
+    public static MappedByteBuffer mapFile(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel fileChannel = randomAccessFile.getChannel();
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+        } finally {
+            randomAccessFile.close(); // the mapping stays valid after the file is closed
+        }
+    }
+
+    /**
+     * Start writing
+     */
+    void start() {
+        mStartTime = SystemClock.elapsedRealtime();
+        mLastProgressTime = mStartTime;
+        Log.v(TAG, "Writing " + mTotalBytes + " bytes in " + mPacket.length + " byte packets, "
+                + (mWriteType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE ? "without response" : "with response"));
+        if (mTotalBytes == 0) {
+            mCallback.onWriteComplete(0, 0, 0);
+            return;
+        }
+        writeNextPacket();
+    }
+
+    /**
+     * Stop the transfer after the packet that is in flight
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * @return how many bytes have been acknowledged so far
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Queue the next packet.  Only one packet is queued at a time, which keeps the
+     * Bluetooth stack's buffers from overflowing and leaves room for other GATT operations
+     */
+    private void writeNextPacket() {
+        final int packetLength = (int) Math.min(mPacket.length, mTotalBytes - mBytesWritten);
+        final byte[] packet;
+        if (packetLength == mPacket.length) {
+            packet = mPacket;
+        } else {
+            if (mLastPacket == null || mLastPacket.length != packetLength) {
+                mLastPacket = new byte[packetLength];
+            }
+            packet = mLastPacket;
+        }
+        mPayloadReader.position((int) mBytesWritten);
+        mPayloadReader.get(packet, 0, packetLength);
+
+        mOperationQueue.enqueue(new BleGattOperationQueue.Operation() {
+            @Override
+            public boolean execute(BluetoothGatt bluetoothGatt) {
+                mCharacteristic.setWriteType(mWriteType);
+                mCharacteristic.setValue(packet);
+                return bluetoothGatt.writeCharacteristic(mCharacteristic);
+            }
+
+            @Override
+            public void onComplete(int status) {
+                if (status == BluetoothGatt.GATT_CONNECTION_CONGESTED) {
+                    onCongested();
+                    return;
+                }
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    fail(status);
+                    return;
+                }
+                mCongestedRetries = 0;
+                mBytesWritten += packetLength;
+                onPacketWritten();
+            }
+
+            @Override
+            public void onFailed() {
+                fail(BluetoothGatt.GATT_FAILURE);
+            }
+        });
+    }
+
+    /**
+     * The stack is full.  Send the same packet again once it has had time to drain,
+     * waiting longer each time, or give up
+     */
+    private void onCongested() {
+        if (mCongestedRetries >= MAX_CONGESTED_RETRIES) {
+            fail(BluetoothGatt.GATT_CONNECTION_CONGESTED);
+            return;
+        }
+        long delayMs = Math.min(CONGESTION_MAX_DELAY_MS, CONGESTION_INITIAL_DELAY_MS << mCongestedRetries);
+        mCongestedRetries++;
+        Log.v(TAG, "Connection congested, retrying in " + delayMs + "ms");
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (mCancelled) {
+                    Log.v(TAG, "Write cancelled after " + mBytesWritten + " bytes");
+                    mCallback.onWriteFailed(mBytesWritten, BluetoothGatt.GATT_FAILURE);
+                    return;
+                }
+                writeNextPacket();
+            }
+        }, delayMs);
+    }
+
+    /**
+     * A packet was acknowledged.  Report progress and move on
+     */
+    private void onPacketWritten() {
+        long now = SystemClock.elapsedRealtime();
+        long elapsedMs = Math.max(1, now - mStartTime);
+        double bytesPerSecond = mBytesWritten * 1000.0 / elapsedMs;
+
+        if (mBytesWritten >= mTotalBytes) {
+            Log.v(TAG, "Wrote " + mBytesWritten + " bytes in " + elapsedMs + "ms: " + bytesPerSecond + " bytes/s");
+            mCallback.onWriteComplete(mBytesWritten, elapsedMs, bytesPerSecond);
+            return;
+        }
+        if (now - mLastProgressTime >= PROGRESS_INTERVAL_MS) {
+            mLastProgressTime = now;
+            mCallback.onWriteProgress(mBytesWritten, mTotalBytes, bytesPerSecond);
+        }
+        if (mCancelled) {
+            Log.v(TAG, "Write cancelled after " + mBytesWritten + " bytes");
+            mCallback.onWriteFailed(mBytesWritten, BluetoothGatt.GATT_FAILURE);
+            return;
+        }
+        writeNextPacket();
+    }
+
+    /**
+     * The transfer could not continue
+     *
+     * @param status the GATT status of the failed write
+     */
+    private void fail(int status) {
+        Log.e(TAG, "Write failed after " + mBytesWritten + " bytes, status: " + status);
+        mCallback.onWriteFailed(mBytesWritten, status);
+    }
+}
@@ -0,0 +1,23 @@
+package tonyg.example.com.exampleblescan.ble.callbacks;
+
+import tonyg.example.com.exampleblescan.ble.BleConnectionProfile;
+
+/**
+ * Reports the connection parameters that were negotiated
+ * for a BleConnectionProfile
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public abstract class BleConnectionProfileCallback {
+
+    /**
+     * Connection priority, MTU, and PHY requests have all been answered
+     *
+     * @param connectionProfile the requested profile
+     * @param mtu the negotiated ATT MTU
+     * @param txPhy the PHY used to transmit to the Peripheral
+     * @param rxPhy the PHY used to receive from the Peripheral
+     */
+    public abstract void onConnectionProfileNegotiated(BleConnectionProfile connectionProfile, int mtu, int txPhy, int rxPhy);
+}
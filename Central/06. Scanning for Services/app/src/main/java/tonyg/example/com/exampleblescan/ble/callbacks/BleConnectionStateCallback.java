@@ -0,0 +1,21 @@
+package tonyg.example.com.exampleblescan.ble.callbacks;
+
+import tonyg.example.com.exampleblescan.ble.BleConnectionStateMachine;
+
+/**
+ * Reports every transition of a BleConnectionStateMachine
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public abstract class BleConnectionStateCallback {
+
+    /**
+     * The connection moved to a new state
+     *
+     * @param previousState the state that was left
+     * @param newState the state that was entered
+     * @param elapsedMs how long the connection spent in the previous state
+     */
+    public abstract void onConnectionStateChanged(BleConnectionStateMachine.State previousState, BleConnectionStateMachine.State newState, long elapsedMs);
+}
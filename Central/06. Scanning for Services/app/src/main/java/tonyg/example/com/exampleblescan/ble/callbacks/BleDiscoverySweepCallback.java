@@ -0,0 +1,30 @@
+package tonyg.example.com.exampleblescan.ble.callbacks;
+
+/**
+ * Reports the progress of a BleDiscoverySweep
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public abstract class BleDiscoverySweepCallback {
+
+    /**
+     * One Peripheral has been audited
+     *
+     * @param macAddress the MAC address of the Peripheral
+     * @param success <b>true</b> if the GATT profile was discovered
+     * @param connectMs time from connection request to connection
+     * @param discoveryMs time from connection to discovered GATT profile
+     */
+    public abstract void onDeviceComplete(String macAddress, boolean success, long connectMs, long discoveryMs);
+
+    /**
+     * Every Peripheral has been audited and the results are written
+     *
+     * @param succeeded how many Peripherals were audited
+     * @param failed how many Peripherals could not be audited
+     * @param durationMs how long the whole sweep took
+     * @param devicesPerMinute the aggregate throughput of the sweep
+     */
+    public abstract void onSweepComplete(int succeeded, int failed, long durationMs, double devicesPerMinute);
+}
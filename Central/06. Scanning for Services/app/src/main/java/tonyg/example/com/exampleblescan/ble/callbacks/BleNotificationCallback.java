@@ -0,0 +1,32 @@
+package tonyg.example.com.exampleblescan.ble.callbacks;
+
+import java.util.UUID;
+
+/**
+ * Receives Characteristic notifications and indications from a BlePeripheral
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public abstract class BleNotificationCallback {
+
+    /**
+     * A subscribed Characteristic changed.
+     * The value buffer is reused for later notifications, so copy anything that must be kept
+     *
+     * @param characteristicUuid the UUID of the Characteristic
+     * @param value a buffer holding the new value
+     * @param length how many bytes of the buffer are used
+     * @param timestampNanos when the value arrived, from SystemClock.elapsedRealtimeNanos()
+     */
+    public abstract void onNotification(UUID characteristicUuid, byte[] value, int length, long timestampNanos);
+
+    /**
+     * A subscription was confirmed or refused by the Peripheral
+     *
+     * @param characteristicUuid the UUID of the Characteristic
+     * @param subscribed <b>true</b> if the Peripheral will now send notifications
+     */
+    public void onSubscriptionChanged(UUID characteristicUuid, boolean subscribed) {
+    }
+}
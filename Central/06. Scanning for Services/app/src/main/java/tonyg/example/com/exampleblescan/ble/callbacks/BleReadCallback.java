@@ -0,0 +1,19 @@
+package tonyg.example.com.exampleblescan.ble.callbacks;
+
+import tonyg.example.com.exampleblescan.ble.BleReadSnapshot;
+
+/**
+ * Receives the result of a batch of Characteristic reads
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public abstract class BleReadCallback {
+
+    /**
+     * Every read in the batch has finished or failed
+     *
+     * @param snapshot the values that were read
+     */
+    public abstract void onReadComplete(BleReadSnapshot snapshot);
+}
@@ -0,0 +1,26 @@
+package tonyg.example.com.exampleblescan.ble.callbacks;
+
+/**
+ * Reports the result of a BleThroughputBenchmark
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public abstract class BleThroughputBenchmarkCallback {
+
+    /**
+     * Benchmark finished
+     *
+     * @param bytesSent the number of bytes acknowledged by the Android Bluetooth stack
+     * @param durationMs how long the transfer took
+     * @param bytesPerSecond the measured throughput
+     */
+    public abstract void onBenchmarkComplete(int bytesSent, long durationMs, double bytesPerSecond);
+
+    /**
+     * Benchmark could not finish
+     *
+     * @param bytesSent the number of bytes sent before the failure
+     */
+    public abstract void onBenchmarkFailed(int bytesSent);
+}
@@ -0,0 +1,37 @@
+package tonyg.example.com.exampleblescan.ble.callbacks;
+
+/**
+ * Reports the progress of a BleWriteEngine transfer
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public abstract class BleWriteCallback {
+
+    /**
+     * Part of the payload has been written
+     *
+     * @param bytesWritten how many bytes have been acknowledged so far
+     * @param totalBytes the size of the payload
+     * @param bytesPerSecond the average throughput so far
+     */
+    public void onWriteProgress(long bytesWritten, long totalBytes, double bytesPerSecond) {
+    }
+
+    /**
+     * The whole payload has been written
+     *
+     * @param totalBytes the size of the payload
+     * @param durationMs how long the transfer took
+     * @param bytesPerSecond the average throughput
+     */
+    public abstract void onWriteComplete(long totalBytes, long durationMs, double bytesPerSecond);
+
+    /**
+     * The transfer stopped before the whole payload was written
+     *
+     * @param bytesWritten how many bytes were acknowledged before the failure
+     * @param status the GATT status of the failed write
+     */
+    public abstract void onWriteFailed(long bytesWritten, int status);
+}
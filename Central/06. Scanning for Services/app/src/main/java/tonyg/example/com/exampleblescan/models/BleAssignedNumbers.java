@@ -0,0 +1,222 @@
+package tonyg.example.com.exampleblescan.models;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import tonyg.example.com.exampleblescan.R;
+
+/**
+ * Names and value formats of numbers assigned by the Bluetooth SIG:
+ * Services, Characteristics, Descriptors, company identifiers, and appearance values.
+ *
+ * The table ships as res/raw/assigned_numbers.bin, built by tools/assigned_numbers.py.
+ * It is read on first use and kept as a minimal perfect hash table, so a lookup is
+ * two hash computations and one comparison.  Names are decoded the first time they are asked for
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public final class BleAssignedNumbers {
+    /** What kind of number is being looked up **/
+    public static final int CATEGORY_SERVICE = 0;
+    public static final int CATEGORY_CHARACTERISTIC = 1;
+    public static final int CATEGORY_DESCRIPTOR = 2;
+    public static final int CATEGORY_COMPANY = 3;
+    public static final int CATEGORY_APPEARANCE = 4;
+
+    /** How a Characteristic value is encoded **/
+    public static final int FORMAT_NONE = 0; // unknown or a structure
+    public static final int FORMAT_UINT8 = 1;
+    public static final int FORMAT_UINT16 = 2;
+    public static final int FORMAT_UINT24 = 3;
+    public static final int FORMAT_UINT32 = 4;
+    public static final int FORMAT_SINT8 = 5;
+    public static final int FORMAT_SINT16 = 6;
+    public static final int FORMAT_SINT32 = 7;
+    public static final int FORMAT_SFLOAT = 8;
+    public static final int FORMAT_FLOAT = 9;
+    public static final int FORMAT_UTF8 = 10;
+    public static final int FORMAT_DATE_TIME = 11;
+
+    private static final String[] FORMAT_NAMES = {
+            null, "uint8", "uint16", "uint24", "uint32", "sint8", "sint16", "sint32", "SFLOAT", "FLOAT", "utf8", "date time"
+    };
+
+    private static final int MAGIC = 0x424c414e; // "BLAN"
+    private static final int FORMAT_VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static volatile BleAssignedNumbers sInstance;
+
+    private final char[] mDisplacements;
+    private final int[] mKeys;
+    private final byte[] mFormats;
+    private final char[] mNameOffsets;
+    private final byte[] mNameLengths;
+    private final byte[] mNamePool;
+    private final String[] mNames; // decoded on first use.  Racing threads decode identical strings, so no lock is needed
+
+    private BleAssignedNumbers(char[] displacements, int[] keys, byte[] formats, char[] nameOffsets, byte[] nameLengths, byte[] namePool) {
+        mDisplacements = displacements;
+        mKeys = keys;
+        mFormats = formats;
+        mNameOffsets = nameOffsets;
+        mNameLengths = nameLengths;
+        mNamePool = namePool;
+        mNames = new String[keys.length];
+    }
+
+    /**
+     * Get the table, reading it from the app's resources the first time
+     *
+     * @param context any Context
+     * @return the table
+     * @throws IllegalStateException if the resource is missing or corrupt
+     */
+    public static BleAssignedNumbers getInstance(Context context) {
+        BleAssignedNumbers instance = sInstance;
+        if (instance == null) {
+            synchronized (BleAssignedNumbers.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    InputStream inputStream = context.getApplicationContext().getResources().openRawResource(R.raw.assigned_numbers);
+                    try {
+                        instance = read(inputStream);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Could not read assigned numbers", e);
+                    } finally {
+                        try {
+                            inputStream.close();
+                        } catch (IOException e) {
+                            // nothing left to read
+                        }
+                    }
+                    sInstance = instance;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Read a table written by tools/assigned_numbers.py
+     *
+     * @param inputStream the table
+     * @return the table
+     * @throws IOException if the table can not be read
+     */
+    public static BleAssignedNumbers read(InputStream inputStream) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(inputStream));
+        if (input.readInt() != MAGIC || input.readUnsignedByte() != FORMAT_VERSION) {
+            throw new IOException("Not an assigned numbers table");
+        }
+        int entryCount = input.readUnsignedShort();
+        int bucketCount = input.readUnsignedShort();
+
+        char[] displacements = new char[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            displacements[i] = input.readChar();
+        }
+        int[] keys = new int[entryCount];
+        for (int i = 0; i < entryCount; i++) {
+            keys[i] = input.readInt();
+        }
+        byte[] formats = new byte[entryCount];
+        input.readFully(formats);
+        char[] nameOffsets = new char[entryCount];
+        for (int i = 0; i < entryCount; i++) {
+            nameOffsets[i] = input.readChar();
+        }
+        byte[] nameLengths = new byte[entryCount];
+        input.readFully(nameLengths);
+        byte[] namePool = new byte[input.readUnsignedShort()];
+        input.readFully(namePool);
+
+        return new BleAssignedNumbers(displacements, keys, formats, nameOffsets, nameLengths, namePool);
+    }
+
+    /**
+     * The same 32 bit hash that tools/assigned_numbers.py uses
+     */
+    private static int mix(int key, int seed) {
+        int x = key ^ (seed * 0x9E3779B9);
+        x ^= x >>> 16;
+        x *= 0x85EBCA6B;
+        x ^= x >>> 13;
+        x *= 0xC2B2AE35;
+        x ^= x >>> 16;
+        return x & 0x7fffffff;
+    }
+
+    /**
+     * @return the slot of the number in the table, or -1 if it is not listed
+     */
+    private int find(int category, int number) {
+        if ((number & 0xffff0000) != 0 || mKeys.length == 0) {
+            return -1; // every listed number fits in 16 bits
+        }
+        int key = (category << 16) | number;
+        int displacement = mDisplacements[mix(key, 0) % mDisplacements.length];
+        int slot = mix(key, displacement) % mKeys.length;
+        return mKeys[slot] == key ? slot : -1;
+    }
+
+    /**
+     * @param category one of the CATEGORY_ values
+     * @param number the assigned number, such as 0x180F
+     * @return the name of the number, or null if it is not listed
+     */
+    public String getName(int category, int number) {
+        int slot = find(category, number);
+        if (slot < 0) {
+            return null;
+        }
+        String name = mNames[slot];
+        if (name == null) {
+            name = new String(mNamePool, mNameOffsets[slot], mNameLengths[slot] & 0xff, UTF8);
+            mNames[slot] = name;
+        }
+        return name;
+    }
+
+    /**
+     * @param category CATEGORY_SERVICE, CATEGORY_CHARACTERISTIC, or CATEGORY_DESCRIPTOR
+     * @param uuid the UUID of the attribute
+     * @return the name of the attribute, or null if it is not a listed SIG UUID
+     */
+    public String getName(int category, BleUuid uuid) {
+        return uuid.isShort() ? getName(category, uuid.getShortUuid()) : null;
+    }
+
+    /**
+     * @param characteristicUuid the UUID of a Characteristic
+     * @return one of the FORMAT_ values.  FORMAT_NONE if the format is not known
+     */
+    public int getFormat(BleUuid characteristicUuid) {
+        if (!characteristicUuid.isShort()) {
+            return FORMAT_NONE;
+        }
+        int slot = find(CATEGORY_CHARACTERISTIC, characteristicUuid.getShortUuid());
+        return slot < 0 ? FORMAT_NONE : mFormats[slot];
+    }
+
+    /**
+     * @param format one of the FORMAT_ values
+     * @return a short name for the format, such as "uint8", or null for FORMAT_NONE
+     */
+    public static String getFormatName(int format) {
+        return format >= 0 && format < FORMAT_NAMES.length ? FORMAT_NAMES[format] : null;
+    }
+
+    /**
+     * @return how many numbers are listed
+     */
+    public int size() {
+        return mKeys.length;
+    }
+}
@@ -1,8 +1,6 @@
 package tonyg.example.com.exampleblescan.models;
 
 
-import android.bluetooth.BluetoothGattCharacteristic;
-
 /**
  * A visual representation of the characteristics available in a BLE service
  * This is paired with a list_item_ble_characteristic.xml that lists the services found by the BleCommManager
@@ -13,14 +11,29 @@ import android.bluetooth.BluetoothGattCharacteristic;
  * @date 2015-12-21
  */
 public class BleGattCharacteristicListItem {
-    private int mItemId;
-    private BluetoothGattCharacteristic mCharacteristic;
+    private final long mItemId;
+    private final BleGattProfile.Characteristic mCharacteristic;
+    private final BleUuid mBleUuid;
+    private final String mName;
+    private final int mFormat;
 
-    public BleGattCharacteristicListItem(BluetoothGattCharacteristic characteristic, int itemId) {
+    public BleGattCharacteristicListItem(BleGattProfile.Characteristic characteristic, long itemId, BleAssignedNumbers assignedNumbers) {
         mCharacteristic = characteristic;
         mItemId = itemId;
+        mBleUuid = BleUuid.fromUuid(characteristic.getUuid());
+        int format = assignedNumbers.getFormat(mBleUuid);
+        String name = assignedNumbers.getName(BleAssignedNumbers.CATEGORY_CHARACTERISTIC, mBleUuid);
+        // the label is built once here, not every time the list item is drawn
+        if (name != null && format != BleAssignedNumbers.FORMAT_NONE) {
+            name += " (" + BleAssignedNumbers.getFormatName(format) + ")";
+        }
+        mName = name;
+        mFormat = format;
     }
 
-    public int getItemId() { return mItemId; }
-    public BluetoothGattCharacteristic getCharacteristic() { return mCharacteristic; }
+    public long getItemId() { return mItemId; }
+    public BleUuid getBleUuid() { return mBleUuid; }
+    public String getName() { return mName; } // null if this is not a known SIG Characteristic
+    public int getFormat() { return mFormat; } // one of the BleAssignedNumbers.FORMAT_ values
+    public BleGattProfile.Characteristic getCharacteristic() { return mCharacteristic; }
 }
@@ -0,0 +1,401 @@
+package tonyg.example.com.exampleblescan.models;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The GATT Profile of a Peripheral: its Services, their Characteristics, and their Descriptors.
+ *
+ * Unlike the BluetoothGattService objects it is built from, a profile holds no Android
+ * classes and never changes once built, so it can be shared between threads without locking,
+ * saved in its compact binary form, and tested on a plain JVM
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public final class BleGattProfile {
+    /** Service types, as in BluetoothGattService **/
+    public static final int SERVICE_TYPE_PRIMARY = 0;
+    public static final int SERVICE_TYPE_SECONDARY = 1;
+
+    /** Characteristic property bits, as in BluetoothGattCharacteristic **/
+    public static final int PROPERTY_BROADCAST = 0x01;
+    public static final int PROPERTY_READ = 0x02;
+    public static final int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+    public static final int PROPERTY_WRITE = 0x08;
+    public static final int PROPERTY_NOTIFY = 0x10;
+    public static final int PROPERTY_INDICATE = 0x20;
+    public static final int PROPERTY_SIGNED_WRITE = 0x40;
+    public static final int PROPERTY_EXTENDED_PROPS = 0x80;
+
+    private static final int FORMAT_VERSION = 1;
+
+    // UUIDs built on the Bluetooth Base UUID are stored in 2 or 4 bytes instead of 16
+    private static final int UUID_16_BIT = 0;
+    private static final int UUID_32_BIT = 1;
+    private static final int UUID_128_BIT = 2;
+
+    private final List<Service> mServices;
+    private final Map<UUID, Service> mServicesByUuid;
+    private final Map<UUID, Characteristic> mCharacteristicsByUuid;
+
+    /**
+     * Build a profile
+     *
+     * @param services the Services, in discovery order
+     */
+    public BleGattProfile(List<Service> services) {
+        mServices = Collections.unmodifiableList(new ArrayList<>(services));
+        Map<UUID, Service> servicesByUuid = new HashMap<>();
+        Map<UUID, Characteristic> characteristicsByUuid = new HashMap<>();
+        for (Service service : mServices) {
+            // the first Service or Characteristic with a UUID wins, as with BluetoothGatt.getService()
+            if (!servicesByUuid.containsKey(service.getUuid())) {
+                servicesByUuid.put(service.getUuid(), service);
+            }
+            for (Characteristic characteristic : service.getCharacteristics()) {
+                if (!characteristicsByUuid.containsKey(characteristic.getUuid())) {
+                    characteristicsByUuid.put(characteristic.getUuid(), characteristic);
+                }
+            }
+        }
+        mServicesByUuid = servicesByUuid;
+        mCharacteristicsByUuid = characteristicsByUuid;
+    }
+
+    /**
+     * @return the Services, in discovery order
+     */
+    public List<Service> getServices() {
+        return mServices;
+    }
+
+    /**
+     * @param serviceUuid a Service UUID
+     * @return the Service, or null if the Peripheral does not have it
+     */
+    public Service getService(UUID serviceUuid) {
+        return mServicesByUuid.get(serviceUuid);
+    }
+
+    /**
+     * @param characteristicUuid a Characteristic UUID
+     * @return the Characteristic from any Service, or null if the Peripheral does not have it
+     */
+    public Characteristic findCharacteristic(UUID characteristicUuid) {
+        return mCharacteristicsByUuid.get(characteristicUuid);
+    }
+
+    /**
+     * @return the number of Characteristics in every Service
+     */
+    public int getCharacteristicCount() {
+        int count = 0;
+        for (Service service : mServices) {
+            count += service.getCharacteristics().size();
+        }
+        return count;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof BleGattProfile && mServices.equals(((BleGattProfile) o).mServices);
+    }
+
+    @Override
+    public int hashCode() {
+        return mServices.hashCode();
+    }
+
+    /** SERIALIZATION **/
+
+    /**
+     * Write the profile in its compact binary form
+     *
+     * @return the serialized profile
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(byteArrayOutputStream);
+        try {
+            output.writeByte(FORMAT_VERSION);
+            writeVarInt(output, mServices.size());
+            for (Service service : mServices) {
+                writeUuid(output, service.getUuid());
+                writeVarInt(output, service.getInstanceId());
+                output.writeByte(service.getType());
+                writeVarInt(output, service.getCharacteristics().size());
+                for (Characteristic characteristic : service.getCharacteristics()) {
+                    writeUuid(output, characteristic.getUuid());
+                    writeVarInt(output, characteristic.getInstanceId());
+                    output.writeByte(characteristic.getProperties());
+                    writeVarInt(output, characteristic.getPermissions());
+                    writeVarInt(output, characteristic.getDescriptors().size());
+                    for (Descriptor descriptor : characteristic.getDescriptors()) {
+                        writeUuid(output, descriptor.getUuid());
+                        writeVarInt(output, descriptor.getPermissions());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // a ByteArrayOutputStream never throws
+            throw new IllegalStateException(e);
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    /**
+     * Read a profile written by toByteArray()
+     *
+     * @param bytes the serialized profile
+     * @return the profile
+     * @throws IOException if the bytes are not a serialized profile
+     */
+    public static BleGattProfile fromByteArray(byte[] bytes) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+        int version = input.readUnsignedByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported profile format: " + version);
+        }
+        int serviceCount = readVarInt(input);
+        List<Service> services = new ArrayList<>(serviceCount);
+        for (int s = 0; s < serviceCount; s++) {
+            UUID serviceUuid = readUuid(input);
+            int serviceInstanceId = readVarInt(input);
+            int serviceType = input.readUnsignedByte();
+            int characteristicCount = readVarInt(input);
+            List<Characteristic> characteristics = new ArrayList<>(characteristicCount);
+            for (int c = 0; c < characteristicCount; c++) {
+                UUID characteristicUuid = readUuid(input);
+                int characteristicInstanceId = readVarInt(input);
+                int properties = input.readUnsignedByte();
+                int permissions = readVarInt(input);
+                int descriptorCount = readVarInt(input);
+                List<Descriptor> descriptors = new ArrayList<>(descriptorCount);
+                for (int d = 0; d < descriptorCount; d++) {
+                    descriptors.add(new Descriptor(readUuid(input), readVarInt(input)));
+                }
+                characteristics.add(new Characteristic(characteristicUuid, characteristicInstanceId, properties, permissions, descriptors));
+            }
+            services.add(new Service(serviceUuid, serviceInstanceId, serviceType, characteristics));
+        }
+        if (input.read() != -1) {
+            throw new IOException("Unexpected data after profile");
+        }
+        return new BleGattProfile(services);
+    }
+
+    /**
+     * Write an unsigned int in as few bytes as possible, 7 bits at a time
+     */
+    private static void writeVarInt(DataOutputStream output, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            output.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream input) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = input.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed number");
+    }
+
+    private static void writeUuid(DataOutputStream output, UUID uuid) throws IOException {
+        if (BleUuid.isShortUuid(uuid)) {
+            int shortUuid = (int) (uuid.getMostSignificantBits() >>> 32);
+            if ((shortUuid & 0xffff0000) == 0) {
+                output.writeByte(UUID_16_BIT);
+                output.writeShort(shortUuid);
+            } else {
+                output.writeByte(UUID_32_BIT);
+                output.writeInt(shortUuid);
+            }
+        } else {
+            output.writeByte(UUID_128_BIT);
+            output.writeLong(uuid.getMostSignificantBits());
+            output.writeLong(uuid.getLeastSignificantBits());
+        }
+    }
+
+    private static UUID readUuid(DataInputStream input) throws IOException {
+        int format = input.readUnsignedByte();
+        switch (format) {
+            case UUID_16_BIT:
+                return BleUuid.toUuid(input.readUnsignedShort());
+            case UUID_32_BIT:
+                return BleUuid.toUuid(input.readInt());
+            case UUID_128_BIT:
+                return new UUID(input.readLong(), input.readLong());
+            default:
+                throw new IOException("Unknown UUID format: " + format);
+        }
+    }
+
+    /** PROFILE ELEMENTS **/
+
+    /**
+     * A GATT Service
+     */
+    public static final class Service {
+        private final UUID mUuid;
+        private final int mInstanceId;
+        private final int mType;
+        private final List<Characteristic> mCharacteristics;
+
+        /**
+         * @param uuid the Service UUID
+         * @param instanceId tells apart Services that share a UUID
+         * @param type SERVICE_TYPE_PRIMARY or SERVICE_TYPE_SECONDARY
+         * @param characteristics the Characteristics, in discovery order
+         */
+        public Service(UUID uuid, int instanceId, int type, List<Characteristic> characteristics) {
+            mUuid = uuid;
+            mInstanceId = instanceId;
+            mType = type;
+            mCharacteristics = Collections.unmodifiableList(new ArrayList<>(characteristics));
+        }
+
+        public UUID getUuid() { return mUuid; }
+        public int getInstanceId() { return mInstanceId; }
+        public int getType() { return mType; }
+        public boolean isPrimary() { return mType == SERVICE_TYPE_PRIMARY; }
+        public List<Characteristic> getCharacteristics() { return mCharacteristics; }
+
+        /**
+         * @param characteristicUuid a Characteristic UUID
+         * @return the Characteristic, or null if this Service does not have it
+         */
+        public Characteristic getCharacteristic(UUID characteristicUuid) {
+            for (Characteristic characteristic : mCharacteristics) {
+                if (characteristic.getUuid().equals(characteristicUuid)) {
+                    return characteristic;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Service)) return false;
+            Service other = (Service) o;
+            return mUuid.equals(other.mUuid) && mInstanceId == other.mInstanceId
+                    && mType == other.mType && mCharacteristics.equals(other.mCharacteristics);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * mUuid.hashCode() + mInstanceId) + mCharacteristics.hashCode();
+        }
+    }
+
+    /**
+     * A GATT Characteristic
+     */
+    public static final class Characteristic {
+        private final UUID mUuid;
+        private final int mInstanceId;
+        private final int mProperties;
+        private final int mPermissions;
+        private final List<Descriptor> mDescriptors;
+
+        /**
+         * @param uuid the Characteristic UUID
+         * @param instanceId tells apart Characteristics that share a UUID
+         * @param properties a bitmask of PROPERTY_ values
+         * @param permissions a bitmask of BluetoothGattCharacteristic PERMISSION_ values
+         * @param descriptors the Descriptors, in discovery order
+         */
+        public Characteristic(UUID uuid, int instanceId, int properties, int permissions, List<Descriptor> descriptors) {
+            mUuid = uuid;
+            mInstanceId = instanceId;
+            mProperties = properties;
+            mPermissions = permissions;
+            mDescriptors = Collections.unmodifiableList(new ArrayList<>(descriptors));
+        }
+
+        public UUID getUuid() { return mUuid; }
+        public int getInstanceId() { return mInstanceId; }
+        public int getProperties() { return mProperties; }
+        public int getPermissions() { return mPermissions; }
+        public List<Descriptor> getDescriptors() { return mDescriptors; }
+
+        public boolean isReadable() { return (mProperties & PROPERTY_READ) != 0; }
+        public boolean isWritable() { return (mProperties & (PROPERTY_WRITE | PROPERTY_WRITE_NO_RESPONSE)) != 0; }
+        public boolean isNotifiable() { return (mProperties & PROPERTY_NOTIFY) != 0; }
+
+        /**
+         * @param descriptorUuid a Descriptor UUID
+         * @return the Descriptor, or null if this Characteristic does not have it
+         */
+        public Descriptor getDescriptor(UUID descriptorUuid) {
+            for (Descriptor descriptor : mDescriptors) {
+                if (descriptor.getUuid().equals(descriptorUuid)) {
+                    return descriptor;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Characteristic)) return false;
+            Characteristic other = (Characteristic) o;
+            return mUuid.equals(other.mUuid) && mInstanceId == other.mInstanceId && mProperties == other.mProperties
+                    && mPermissions == other.mPermissions && mDescriptors.equals(other.mDescriptors);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * (31 * mUuid.hashCode() + mInstanceId) + mProperties) + mDescriptors.hashCode();
+        }
+    }
+
+    /**
+     * A GATT Descriptor
+     */
+    public static final class Descriptor {
+        private final UUID mUuid;
+        private final int mPermissions;
+
+        /**
+         * @param uuid the Descriptor UUID
+         * @param permissions a bitmask of BluetoothGattDescriptor PERMISSION_ values
+         */
+        public Descriptor(UUID uuid, int permissions) {
+            mUuid = uuid;
+            mPermissions = permissions;
+        }
+
+        public UUID getUuid() { return mUuid; }
+        public int getPermissions() { return mPermissions; }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Descriptor)) return false;
+            Descriptor other = (Descriptor) o;
+            return mUuid.equals(other.mUuid) && mPermissions == other.mPermissions;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mUuid.hashCode() + mPermissions;
+        }
+    }
+}
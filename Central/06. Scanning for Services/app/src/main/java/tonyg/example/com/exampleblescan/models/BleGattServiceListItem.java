@@ -1,8 +1,6 @@
 package tonyg.example.com.exampleblescan.models;
 
 
-import android.bluetooth.BluetoothGattService;
-
 import java.util.UUID;
 
 /**
@@ -15,16 +13,22 @@ import java.util.UUID;
  * @date 2015-12-21
  */
 public class BleGattServiceListItem {
-    private final int mItemId;
-    private final BluetoothGattService mService;
+    private final long mItemId;
+    private final BleGattProfile.Service mService;
+    private final BleUuid mBleUuid;
+    private final String mName;
 
-    public BleGattServiceListItem(BluetoothGattService gattService, int serviceItemID) {
+    public BleGattServiceListItem(BleGattProfile.Service gattService, long serviceItemID, BleAssignedNumbers assignedNumbers) {
         mItemId = serviceItemID;
         mService = gattService;
+        mBleUuid = BleUuid.fromUuid(gattService.getUuid());
+        mName = assignedNumbers.getName(BleAssignedNumbers.CATEGORY_SERVICE, mBleUuid);
     }
 
-    public int getItemId() { return mItemId; }
+    public long getItemId() { return mItemId; }
     public UUID getUuid() { return mService.getUuid(); }
+    public BleUuid getBleUuid() { return mBleUuid; }
+    public String getName() { return mName; } // null if this is not a known SIG Service
     public int getType() { return mService.getType(); }
-    public BluetoothGattService getService() { return mService; }
+    public BleGattProfile.Service getService() { return mService; }
 }
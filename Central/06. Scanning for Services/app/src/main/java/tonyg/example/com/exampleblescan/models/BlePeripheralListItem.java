@@ -2,6 +2,10 @@ package tonyg.example.com.exampleblescan.models;
 
 import android.bluetooth.BluetoothDevice;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+
 /**
  * A visual representation of a Bluetooth Low Energy Device.
  * This is paired with a ble_list_item.xml that lets us list all the devices found by the BleCommManager
@@ -13,6 +17,7 @@ public class BlePeripheralListItem {
     private int mItemId;
     private int mRssi;
     private BluetoothDevice mBluetoothDevice;
+    private Map<UUID, Object> mBroadcastValues = Collections.emptyMap();
 
     public BlePeripheralListItem(BluetoothDevice bluetoothDevice) {
         mBluetoothDevice = bluetoothDevice;
@@ -29,5 +34,7 @@ public class BlePeripheralListItem {
         return mBluetoothDevice.getAddress();
     }
     public int getRssi() { return mRssi; }
+    public void setBroadcastValues(Map<UUID, Object> broadcastValues) { mBroadcastValues = broadcastValues; }
+    public Map<UUID, Object> getBroadcastValues() { return mBroadcastValues; }
     public BluetoothDevice getDevice() { return mBluetoothDevice; }
 }
@@ -0,0 +1,177 @@
+package tonyg.example.com.exampleblescan.models;
+
+import java.util.UUID;
+
+/**
+ * A compact Bluetooth UUID.
+ *
+ * UUIDs assigned by the Bluetooth SIG are 16 or 32 bit numbers added to the Bluetooth
+ * Base UUID, 00000000-0000-1000-8000-00805f9b34fb.  Those are recognized and handled as a
+ * single int, and only expanded into a java.util.UUID when asked.  Comparisons never allocate,
+ * and the formatted string is built once and then reused
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public final class BleUuid {
+    /** The Bluetooth Base UUID, split into its two halves **/
+    public static final long BASE_UUID_MOST_SIGNIFICANT_BITS = 0x0000000000001000L;
+    public static final long BASE_UUID_LEAST_SIGNIFICANT_BITS = 0x800000805f9b34fbL;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final boolean mIsShort;
+    private final int mShortUuid; // the 16 or 32 bit value, when mIsShort
+    private final long mMostSignificantBits;
+    private final long mLeastSignificantBits;
+    private String mString; // formatted on first use.  Racing threads build identical strings, so no lock is needed
+
+    private BleUuid(boolean isShort, int shortUuid, long mostSignificantBits, long leastSignificantBits) {
+        mIsShort = isShort;
+        mShortUuid = shortUuid;
+        mMostSignificantBits = mostSignificantBits;
+        mLeastSignificantBits = leastSignificantBits;
+    }
+
+    /**
+     * @param shortUuid a 16 or 32 bit UUID assigned by the Bluetooth SIG, such as 0x180A
+     * @return the compact UUID
+     */
+    public static BleUuid fromShortUuid(int shortUuid) {
+        return new BleUuid(true, shortUuid, toMostSignificantBits(shortUuid), BASE_UUID_LEAST_SIGNIFICANT_BITS);
+    }
+
+    /**
+     * @param uuid any UUID
+     * @return the compact UUID, which only keeps 32 bits if the UUID is built on the Bluetooth Base UUID
+     */
+    public static BleUuid fromUuid(UUID uuid) {
+        long mostSignificantBits = uuid.getMostSignificantBits();
+        long leastSignificantBits = uuid.getLeastSignificantBits();
+        boolean isShort = isShortUuid(mostSignificantBits, leastSignificantBits);
+        return new BleUuid(isShort, (int) (mostSignificantBits >>> 32), mostSignificantBits, leastSignificantBits);
+    }
+
+    /**
+     * Expand a SIG-assigned number into a UUID without parsing a string
+     *
+     * @param shortUuid a 16 or 32 bit UUID assigned by the Bluetooth SIG
+     * @return the full 128 bit UUID
+     */
+    public static UUID toUuid(int shortUuid) {
+        return new UUID(toMostSignificantBits(shortUuid), BASE_UUID_LEAST_SIGNIFICANT_BITS);
+    }
+
+    /**
+     * @param uuid any UUID
+     * @return <b>true</b> if the UUID is built on the Bluetooth Base UUID
+     */
+    public static boolean isShortUuid(UUID uuid) {
+        return isShortUuid(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    private static boolean isShortUuid(long mostSignificantBits, long leastSignificantBits) {
+        return leastSignificantBits == BASE_UUID_LEAST_SIGNIFICANT_BITS
+                && (mostSignificantBits & 0xffffffffL) == BASE_UUID_MOST_SIGNIFICANT_BITS;
+    }
+
+    private static long toMostSignificantBits(int shortUuid) {
+        return ((shortUuid & 0xffffffffL) << 32) | BASE_UUID_MOST_SIGNIFICANT_BITS;
+    }
+
+    /**
+     * @return <b>true</b> if this UUID is built on the Bluetooth Base UUID
+     */
+    public boolean isShort() {
+        return mIsShort;
+    }
+
+    /**
+     * @return <b>true</b> if this UUID fits in 16 bits, which is what advertisements prefer
+     */
+    public boolean is16Bit() {
+        return mIsShort && (mShortUuid & 0xffff0000) == 0;
+    }
+
+    /**
+     * @return the 16 or 32 bit value of a SIG-assigned UUID
+     * @throws IllegalStateException if this UUID is not built on the Bluetooth Base UUID
+     */
+    public int getShortUuid() {
+        if (!mIsShort) {
+            throw new IllegalStateException("Not a Bluetooth SIG UUID: " + toString());
+        }
+        return mShortUuid;
+    }
+
+    /**
+     * @return the full 128 bit UUID.  This allocates a new UUID
+     */
+    public UUID toUuid() {
+        return new UUID(mMostSignificantBits, mLeastSignificantBits);
+    }
+
+    /**
+     * Compare with a UUID without allocating anything
+     *
+     * @param uuid a UUID
+     * @return <b>true</b> if both are the same UUID
+     */
+    public boolean matches(UUID uuid) {
+        return uuid != null && mMostSignificantBits == uuid.getMostSignificantBits()
+                && mLeastSignificantBits == uuid.getLeastSignificantBits();
+    }
+
+    /**
+     * @return the UUID as "0x180a" if it is SIG-assigned, or as its full 128 bit form otherwise
+     */
+    public String toShortString() {
+        if (!mIsShort) {
+            return toString();
+        }
+        return "0x" + (is16Bit() ? toHex(mShortUuid, 4) : toHex(mShortUuid, 8));
+    }
+
+    /**
+     * @return the full 128 bit form, as UUID.toString() would format it.  Built once, then cached
+     */
+    @Override
+    public String toString() {
+        String string = mString;
+        if (string == null) {
+            string = toHex(mMostSignificantBits >>> 32, 8) + "-"
+                    + toHex(mMostSignificantBits >>> 16, 4) + "-"
+                    + toHex(mMostSignificantBits, 4) + "-"
+                    + toHex(mLeastSignificantBits >>> 48, 4) + "-"
+                    + toHex(mLeastSignificantBits, 12);
+            mString = string;
+        }
+        return string;
+    }
+
+    private static String toHex(long value, int digits) {
+        char[] chars = new char[digits];
+        for (int i = digits - 1; i >= 0; i--) {
+            chars[i] = HEX_DIGITS[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof BleUuid)) return false;
+        BleUuid other = (BleUuid) o;
+        return mMostSignificantBits == other.mMostSignificantBits && mLeastSignificantBits == other.mLeastSignificantBits;
+    }
+
+    /**
+     * @return the same hash code as the equivalent java.util.UUID
+     */
+    @Override
+    public int hashCode() {
+        long bits = mMostSignificantBits ^ mLeastSignificantBits;
+        return ((int) (bits >> 32)) ^ (int) bits;
+    }
+}
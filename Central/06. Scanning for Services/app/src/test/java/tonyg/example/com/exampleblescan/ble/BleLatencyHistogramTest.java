@@ -0,0 +1,78 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the histogram's percentiles against a sorted copy of the recorded values
+ */
+public class BleLatencyHistogramTest {
+
+    @Test
+    public void empty_reportsZero() throws Exception {
+        BleLatencyHistogram histogram = new BleLatencyHistogram();
+        assertEquals(0, histogram.getTotalCount());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        assertEquals(0, histogram.getMinValue());
+        assertEquals(0, histogram.getMean(), 0);
+    }
+
+    @Test
+    public void smallValues_areExact() throws Exception {
+        BleLatencyHistogram histogram = new BleLatencyHistogram();
+        for (int value = 1; value <= 100; value++) {
+            histogram.recordValue(value);
+        }
+        assertEquals(100, histogram.getTotalCount());
+        assertEquals(1, histogram.getMinValue());
+        assertEquals(100, histogram.getMaxValue());
+        assertEquals(50, histogram.getValueAtPercentile(50));
+        assertEquals(99, histogram.getValueAtPercentile(99));
+        assertEquals(100, histogram.getValueAtPercentile(100));
+        assertEquals(50.5, histogram.getMean(), 0.0001);
+    }
+
+    @Test
+    public void percentiles_areWithinOnePercent() throws Exception {
+        Random random = new Random(7);
+        BleLatencyHistogram histogram = new BleLatencyHistogram();
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextDouble() * 20); // 1 to about 500 million
+            histogram.recordValue(values[i]);
+        }
+        Arrays.sort(values);
+        double[] percentiles = { 1, 25, 50, 90, 99, 99.9 };
+        for (double percentile : percentiles) {
+            long expected = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long actual = histogram.getValueAtPercentile(percentile);
+            assertTrue(percentile + ": " + actual + " < " + expected, actual >= expected);
+            assertTrue(percentile + ": " + actual + " > " + expected, actual <= expected + expected / 100);
+        }
+        assertEquals(values[values.length - 1], histogram.getMaxValue());
+    }
+
+    @Test
+    public void outOfRangeValues_areClamped() throws Exception {
+        BleLatencyHistogram histogram = new BleLatencyHistogram();
+        histogram.recordValue(-5);
+        histogram.recordValue(Long.MAX_VALUE);
+        assertEquals(0, histogram.getMinValue());
+        assertEquals(BleLatencyHistogram.MAX_VALUE, histogram.getMaxValue());
+        assertEquals(BleLatencyHistogram.MAX_VALUE, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void reset_forgetsValues() throws Exception {
+        BleLatencyHistogram histogram = new BleLatencyHistogram();
+        histogram.recordValue(1234);
+        histogram.reset();
+        assertEquals(0, histogram.getTotalCount());
+        assertEquals(0, histogram.getMaxValue());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+}
@@ -0,0 +1,110 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Calendar;
+import java.util.Random;
+import java.util.UUID;
+
+import tonyg.example.com.exampleblescan.models.BleUuid;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the value decoders against ByteBuffer's own little-endian reads
+ * and against IEEE-11073 examples
+ */
+public class BleValueDecoderTest {
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    @Test
+    public void integers_matchByteBuffer() throws Exception {
+        Random random = new Random(42);
+        byte[] value = new byte[64];
+        for (int run = 0; run < 100; run++) {
+            random.nextBytes(value);
+            ByteBuffer reference = ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer readOnly = ByteBuffer.wrap(value).asReadOnlyBuffer();
+            for (int offset = 0; offset < value.length - 4; offset++) {
+                assertEquals(reference.get(offset) & 0xff, BleValueDecoder.getUint8(value, offset));
+                assertEquals(reference.getShort(offset) & 0xffff, BleValueDecoder.getUint16(value, offset));
+                assertEquals(reference.getShort(offset), BleValueDecoder.getSint16(readOnly, offset));
+                assertEquals(reference.getInt(offset), BleValueDecoder.getSint32(value, offset));
+                assertEquals(reference.getInt(offset) & 0xffffffffL, BleValueDecoder.getUint32(readOnly, offset));
+                assertEquals(reference.getInt(offset) << 8 >> 8, BleValueDecoder.getSint24(value, offset));
+            }
+        }
+    }
+
+    @Test
+    public void sfloat_decodesIeee11073() throws Exception {
+        assertEquals(114f, BleValueDecoder.getSfloat(bytes(0x72, 0x00), 0), 0.0001);
+        assertEquals(11.4f, BleValueDecoder.getSfloat(bytes(0x72, 0xF0), 0), 0.0001); // exponent -1
+        assertEquals(-2f, BleValueDecoder.getSfloat(bytes(0xFE, 0x0F), 0), 0.0001); // mantissa -2
+        assertTrue(Float.isNaN(BleValueDecoder.getSfloat(bytes(0xFF, 0x07), 0)));
+        assertEquals(Float.POSITIVE_INFINITY, BleValueDecoder.getSfloat(bytes(0xFE, 0x07), 0), 0);
+    }
+
+    @Test
+    public void float_decodesIeee11073() throws Exception {
+        assertEquals(36.4f, BleValueDecoder.getFloat(bytes(0x6C, 0x01, 0x00, 0xFF), 0), 0.0001); // 364 x 10^-1
+        assertEquals(-5000f, BleValueDecoder.getFloat(bytes(0xFB, 0xFF, 0xFF, 0x03), 0), 0.0001); // -5 x 10^3
+        assertTrue(Float.isNaN(BleValueDecoder.getFloat(bytes(0xFF, 0xFF, 0x7F, 0x00), 0)));
+    }
+
+    @Test
+    public void float_specialMantissaWithAnExponentIsANumber() throws Exception {
+        // the NaN and infinity mantissas only mean that with an exponent of 0
+        assertEquals(83886070f, BleValueDecoder.getFloat(bytes(0xFF, 0xFF, 0x7F, 0x01), 0), 1); // 8388607 x 10^1
+        assertEquals(-838860.6f, BleValueDecoder.getFloat(bytes(0x02, 0x00, 0x80, 0xFF), 0), 0.1); // -8388606 x 10^-1
+        assertEquals(Float.POSITIVE_INFINITY, BleValueDecoder.getFloat(bytes(0xFE, 0xFF, 0x7F, 0x00), 0), 0);
+    }
+
+    @Test
+    public void dateTime_decodesFields() throws Exception {
+        Calendar calendar = BleValueDecoder.getDateTime(bytes(0xE0, 0x07, 3, 6, 13, 45, 30), 0);
+        assertEquals(2016, calendar.get(Calendar.YEAR));
+        assertEquals(Calendar.MARCH, calendar.get(Calendar.MONTH));
+        assertEquals(6, calendar.get(Calendar.DAY_OF_MONTH));
+        assertEquals(13, calendar.get(Calendar.HOUR_OF_DAY));
+        assertEquals(30, calendar.get(Calendar.SECOND));
+        assertNull(BleValueDecoder.getDateTime(bytes(0, 0, 0, 0, 0, 0, 0), 0));
+    }
+
+    @Test
+    public void utf8_readsReadOnlyBuffers() throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap("xx1AB2".getBytes("UTF-8")).asReadOnlyBuffer();
+        assertEquals("1AB2", BleValueDecoder.getUtf8(buffer, 2, 4));
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void registry_prefersRegisteredDecoders() throws Exception {
+        UUID batteryLevelUuid = BleUuid.toUuid(0x2A19);
+        BleValueDecoderRegistry registry = new BleValueDecoderRegistry(null);
+        assertNull(registry.getDecoder(batteryLevelUuid));
+        registry.register(batteryLevelUuid, BleValueDecoder.UINT8);
+        assertEquals(200, registry.decode(batteryLevelUuid, bytes(200, 0xFF), 1));
+        assertEquals(200, registry.decode(batteryLevelUuid, ByteBuffer.wrap(bytes(200)).asReadOnlyBuffer()));
+    }
+
+    @Test
+    public void registry_skipsBroadcastValuesTooShortForTheFormat() throws Exception {
+        UUID batteryLevelUuid = BleUuid.toUuid(0x2A19);
+        BleValueDecoderRegistry registry = new BleValueDecoderRegistry(null);
+        registry.register(batteryLevelUuid, BleValueDecoder.UINT8);
+        registry.register(BleUuid.toUuid(0x2A6E), BleValueDecoder.SINT16);
+        assertNull(registry.tryDecode(batteryLevelUuid, new byte[0], 0));
+        assertNull(registry.tryDecode(BleUuid.toUuid(0x2A6E), bytes(0x10), 1));
+        assertEquals(87, registry.tryDecode(batteryLevelUuid, bytes(87), 1));
+    }
+}
@@ -0,0 +1,52 @@
+package tonyg.example.com.exampleblescan.models;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads the assigned numbers table that ships in res/raw
+ */
+public class BleAssignedNumbersTest {
+    private static BleAssignedNumbers sAssignedNumbers;
+
+    @BeforeClass
+    public static void readTable() throws Exception {
+        // unit tests run from the module directory
+        InputStream inputStream = new FileInputStream("src/main/res/raw/assigned_numbers.bin");
+        try {
+            sAssignedNumbers = BleAssignedNumbers.read(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @Test
+    public void knownNumbers_haveNames() throws Exception {
+        assertEquals("Device Information", sAssignedNumbers.getName(BleAssignedNumbers.CATEGORY_SERVICE, 0x180A));
+        assertEquals("Battery Service", sAssignedNumbers.getName(BleAssignedNumbers.CATEGORY_SERVICE, BleUuid.fromShortUuid(0x180F)));
+        assertEquals("Client Characteristic Configuration", sAssignedNumbers.getName(BleAssignedNumbers.CATEGORY_DESCRIPTOR, 0x2902));
+        assertEquals("Apple, Inc.", sAssignedNumbers.getName(BleAssignedNumbers.CATEGORY_COMPANY, 0x004C));
+        assertEquals("Heart Rate Belt", sAssignedNumbers.getName(BleAssignedNumbers.CATEGORY_APPEARANCE, 833));
+    }
+
+    @Test
+    public void unknownNumbers_haveNoName() throws Exception {
+        // 0x180A is a Service, not a Characteristic
+        assertNull(sAssignedNumbers.getName(BleAssignedNumbers.CATEGORY_CHARACTERISTIC, 0x180A));
+        assertNull(sAssignedNumbers.getName(BleAssignedNumbers.CATEGORY_SERVICE, 0xFFFF));
+        assertNull(sAssignedNumbers.getName(BleAssignedNumbers.CATEGORY_SERVICE, 0x1180A));
+    }
+
+    @Test
+    public void characteristics_haveFormats() throws Exception {
+        assertEquals(BleAssignedNumbers.FORMAT_UINT8, sAssignedNumbers.getFormat(BleUuid.fromShortUuid(0x2A19)));
+        assertEquals(BleAssignedNumbers.FORMAT_UTF8, sAssignedNumbers.getFormat(BleUuid.fromShortUuid(0x2A24)));
+        assertEquals(BleAssignedNumbers.FORMAT_NONE, sAssignedNumbers.getFormat(BleUuid.fromShortUuid(0x180A)));
+        assertEquals("uint8", BleAssignedNumbers.getFormatName(BleAssignedNumbers.FORMAT_UINT8));
+    }
+}
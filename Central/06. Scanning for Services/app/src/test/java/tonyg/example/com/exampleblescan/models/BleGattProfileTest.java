@@ -0,0 +1,79 @@
+package tonyg.example.com.exampleblescan.models;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Builds and serializes GATT Profiles without a Bluetooth stack
+ */
+public class BleGattProfileTest {
+    private static final UUID DEVICE_INFORMATION_SERVICE_UUID = UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb");
+    private static final UUID MODEL_NUMBER_UUID = UUID.fromString("00002a24-0000-1000-8000-00805f9b34fb");
+    private static final UUID CUSTOM_SERVICE_UUID = UUID.fromString("0000fe00-1234-5678-9abc-def012345678");
+    private static final UUID CUSTOM_CHARACTERISTIC_UUID = UUID.fromString("0001fe01-0000-1000-8000-00805f9b34fb");
+    private static final UUID CLIENT_CHARACTERISTIC_CONFIGURATION_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private static BleGattProfile buildProfile() {
+        BleGattProfile.Characteristic modelNumber = new BleGattProfile.Characteristic(MODEL_NUMBER_UUID, 3,
+                BleGattProfile.PROPERTY_READ, 0x01, Collections.<BleGattProfile.Descriptor>emptyList());
+        BleGattProfile.Characteristic custom = new BleGattProfile.Characteristic(CUSTOM_CHARACTERISTIC_UUID, 300,
+                BleGattProfile.PROPERTY_WRITE | BleGattProfile.PROPERTY_NOTIFY, 0x10,
+                Arrays.asList(new BleGattProfile.Descriptor(CLIENT_CHARACTERISTIC_CONFIGURATION_UUID, 0x11)));
+        return new BleGattProfile(Arrays.asList(
+                new BleGattProfile.Service(DEVICE_INFORMATION_SERVICE_UUID, 1, BleGattProfile.SERVICE_TYPE_PRIMARY, Arrays.asList(modelNumber)),
+                new BleGattProfile.Service(CUSTOM_SERVICE_UUID, 200, BleGattProfile.SERVICE_TYPE_SECONDARY, Arrays.asList(custom))));
+    }
+
+    @Test
+    public void serialization_roundTrips() throws Exception {
+        BleGattProfile profile = buildProfile();
+        BleGattProfile copy = BleGattProfile.fromByteArray(profile.toByteArray());
+        assertEquals(profile, copy);
+        assertEquals(CUSTOM_SERVICE_UUID, copy.getServices().get(1).getUuid());
+        assertEquals(300, copy.findCharacteristic(CUSTOM_CHARACTERISTIC_UUID).getInstanceId());
+    }
+
+    @Test
+    public void serialization_isCompact() throws Exception {
+        // 16 and 32 bit UUIDs take 3 and 5 bytes, a custom UUID takes 17
+        assertEquals(50, buildProfile().toByteArray().length);
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void fromByteArray_rejectsTruncatedData() throws Exception {
+        byte[] bytes = buildProfile().toByteArray();
+        BleGattProfile.fromByteArray(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    @Test
+    public void lookups_findServicesAndCharacteristics() throws Exception {
+        BleGattProfile profile = buildProfile();
+        assertTrue(profile.getService(DEVICE_INFORMATION_SERVICE_UUID).isPrimary());
+        assertTrue(profile.findCharacteristic(MODEL_NUMBER_UUID).isReadable());
+        assertFalse(profile.findCharacteristic(MODEL_NUMBER_UUID).isWritable());
+        assertTrue(profile.findCharacteristic(CUSTOM_CHARACTERISTIC_UUID).isNotifiable());
+        assertNotNull(profile.findCharacteristic(CUSTOM_CHARACTERISTIC_UUID).getDescriptor(CLIENT_CHARACTERISTIC_CONFIGURATION_UUID));
+        assertNull(profile.getService(UUID.randomUUID()));
+        assertEquals(2, profile.getCharacteristicCount());
+    }
+
+    @Test
+    public void profile_isNotChangedByItsSourceList() throws Exception {
+        List<BleGattProfile.Service> services = new ArrayList<>(buildProfile().getServices());
+        BleGattProfile profile = new BleGattProfile(services);
+        services.clear();
+        assertEquals(2, profile.getServices().size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void profile_cannotBeModified() throws Exception {
+        buildProfile().getServices().clear();
+    }
+}
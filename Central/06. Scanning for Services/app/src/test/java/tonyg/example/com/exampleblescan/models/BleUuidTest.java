@@ -0,0 +1,43 @@
+package tonyg.example.com.exampleblescan.models;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that BleUuid behaves like the java.util.UUID it stands for
+ */
+public class BleUuidTest {
+    private static final UUID DEVICE_INFORMATION_SERVICE_UUID = UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb");
+    private static final UUID CUSTOM_UUID = UUID.fromString("0000fe00-1234-5678-9abc-def012345678");
+
+    @Test
+    public void shortUuid_expandsToTheBaseUuid() throws Exception {
+        BleUuid bleUuid = BleUuid.fromShortUuid(0x180A);
+        assertTrue(bleUuid.is16Bit());
+        assertEquals(DEVICE_INFORMATION_SERVICE_UUID, bleUuid.toUuid());
+        assertEquals(DEVICE_INFORMATION_SERVICE_UUID, BleUuid.toUuid(0x180A));
+        assertTrue(bleUuid.matches(DEVICE_INFORMATION_SERVICE_UUID));
+        assertEquals(BleUuid.fromUuid(DEVICE_INFORMATION_SERVICE_UUID), bleUuid);
+        assertEquals("0x180a", bleUuid.toShortString());
+    }
+
+    @Test
+    public void customUuid_isKeptWhole() throws Exception {
+        BleUuid bleUuid = BleUuid.fromUuid(CUSTOM_UUID);
+        assertFalse(bleUuid.isShort());
+        assertTrue(bleUuid.matches(CUSTOM_UUID));
+    }
+
+    @Test
+    public void formatting_matchesUuid() throws Exception {
+        for (UUID uuid : new UUID[] { DEVICE_INFORMATION_SERVICE_UUID, CUSTOM_UUID, BleUuid.toUuid(0xfedcba98), UUID.randomUUID() }) {
+            BleUuid bleUuid = BleUuid.fromUuid(uuid);
+            assertEquals(uuid.toString(), bleUuid.toString());
+            assertEquals(uuid.hashCode(), bleUuid.hashCode());
+            assertSame(bleUuid.toString(), bleUuid.toString());
+        }
+    }
+}
@@ -0,0 +1,302 @@
+#!/usr/bin/env python
+"""
+Build app/src/main/res/raw/assigned_numbers.bin, the Bluetooth SIG assigned numbers
+table that BleAssignedNumbers reads.
+
+Every entry is keyed by (category << 16) | number and stored in a minimal perfect hash
+table, so a lookup is two hash computations and one comparison.  Run this script again
+after editing the lists below.
+
+File layout, big-endian:
+    "BLAN", version (u8), entry count n (u16), bucket count r (u16)
+    r displacements (u16)
+    n keys (i32)
+    n formats (u8)
+    n name offsets into the name pool (u16), n name lengths (u8)
+    name pool length (u16), name pool (UTF-8)
+"""
+import os
+import struct
+
+CATEGORY_SERVICE = 0
+CATEGORY_CHARACTERISTIC = 1
+CATEGORY_DESCRIPTOR = 2
+CATEGORY_COMPANY = 3
+CATEGORY_APPEARANCE = 4
+
+# value formats, as in BleAssignedNumbers
+NONE, UINT8, UINT16, UINT24, UINT32, SINT8, SINT16, SINT32, SFLOAT, FLOAT, UTF8, DATE_TIME = range(12)
+
+SERVICES = {
+    0x1800: "Generic Access",
+    0x1801: "Generic Attribute",
+    0x1802: "Immediate Alert",
+    0x1803: "Link Loss",
+    0x1804: "Tx Power",
+    0x1805: "Current Time",
+    0x1806: "Reference Time Update",
+    0x1807: "Next DST Change",
+    0x1808: "Glucose",
+    0x1809: "Health Thermometer",
+    0x180A: "Device Information",
+    0x180D: "Heart Rate",
+    0x180E: "Phone Alert Status",
+    0x180F: "Battery Service",
+    0x1810: "Blood Pressure",
+    0x1811: "Alert Notification",
+    0x1812: "Human Interface Device",
+    0x1813: "Scan Parameters",
+    0x1814: "Running Speed and Cadence",
+    0x1815: "Automation IO",
+    0x1816: "Cycling Speed and Cadence",
+    0x1818: "Cycling Power",
+    0x1819: "Location and Navigation",
+    0x181A: "Environmental Sensing",
+    0x181B: "Body Composition",
+    0x181C: "User Data",
+    0x181D: "Weight Scale",
+    0x181E: "Bond Management",
+    0x181F: "Continuous Glucose Monitoring",
+    0x1820: "Internet Protocol Support",
+    0x1821: "Indoor Positioning",
+    0x1822: "Pulse Oximeter",
+    0x1823: "HTTP Proxy",
+    0x1824: "Transport Discovery",
+    0x1825: "Object Transfer",
+    0x1826: "Fitness Machine",
+}
+
+CHARACTERISTICS = {
+    0x2A00: ("Device Name", UTF8),
+    0x2A01: ("Appearance", UINT16),
+    0x2A02: ("Peripheral Privacy Flag", UINT8),
+    0x2A03: ("Reconnection Address", NONE),
+    0x2A04: ("Peripheral Preferred Connection Parameters", NONE),
+    0x2A05: ("Service Changed", NONE),
+    0x2A06: ("Alert Level", UINT8),
+    0x2A07: ("Tx Power Level", SINT8),
+    0x2A08: ("Date Time", DATE_TIME),
+    0x2A09: ("Day of Week", UINT8),
+    0x2A0C: ("Day Date Time", NONE),
+    0x2A0F: ("Local Time Information", NONE),
+    0x2A16: ("Time Update Control Point", UINT8),
+    0x2A17: ("Time Update State", NONE),
+    0x2A18: ("Glucose Measurement", NONE),
+    0x2A19: ("Battery Level", UINT8),
+    0x2A1C: ("Temperature Measurement", NONE),
+    0x2A1D: ("Temperature Type", UINT8),
+    0x2A1E: ("Intermediate Temperature", NONE),
+    0x2A21: ("Measurement Interval", UINT16),
+    0x2A22: ("Boot Keyboard Input Report", NONE),
+    0x2A23: ("System ID", NONE),
+    0x2A24: ("Model Number String", UTF8),
+    0x2A25: ("Serial Number String", UTF8),
+    0x2A26: ("Firmware Revision String", UTF8),
+    0x2A27: ("Hardware Revision String", UTF8),
+    0x2A28: ("Software Revision String", UTF8),
+    0x2A29: ("Manufacturer Name String", UTF8),
+    0x2A2A: ("IEEE 11073-20601 Regulatory Certification Data List", NONE),
+    0x2A2B: ("Current Time", NONE),
+    0x2A31: ("Scan Refresh", UINT8),
+    0x2A32: ("Boot Keyboard Output Report", NONE),
+    0x2A33: ("Boot Mouse Input Report", NONE),
+    0x2A34: ("Glucose Measurement Context", NONE),
+    0x2A35: ("Blood Pressure Measurement", NONE),
+    0x2A36: ("Intermediate Cuff Pressure", NONE),
+    0x2A37: ("Heart Rate Measurement", NONE),
+    0x2A38: ("Body Sensor Location", UINT8),
+    0x2A39: ("Heart Rate Control Point", UINT8),
+    0x2A3F: ("Alert Status", UINT8),
+    0x2A40: ("Ringer Control Point", UINT8),
+    0x2A41: ("Ringer Setting", UINT8),
+    0x2A4A: ("HID Information", NONE),
+    0x2A4B: ("Report Map", NONE),
+    0x2A4C: ("HID Control Point", UINT8),
+    0x2A4D: ("Report", NONE),
+    0x2A4E: ("Protocol Mode", UINT8),
+    0x2A4F: ("Scan Interval Window", NONE),
+    0x2A50: ("PnP ID", NONE),
+    0x2A51: ("Glucose Feature", UINT16),
+    0x2A52: ("Record Access Control Point", NONE),
+    0x2A53: ("RSC Measurement", NONE),
+    0x2A54: ("RSC Feature", UINT16),
+    0x2A55: ("SC Control Point", NONE),
+    0x2A5B: ("CSC Measurement", NONE),
+    0x2A5C: ("CSC Feature", UINT16),
+    0x2A5D: ("Sensor Location", UINT8),
+    0x2A63: ("Cycling Power Measurement", NONE),
+    0x2A65: ("Cycling Power Feature", UINT32),
+    0x2A6C: ("Elevation", SINT32),
+    0x2A6D: ("Pressure", UINT32),
+    0x2A6E: ("Temperature", SINT16),
+    0x2A6F: ("Humidity", UINT16),
+    0x2A76: ("UV Index", UINT8),
+    0x2A98: ("Weight", UINT16),
+    0x2A9D: ("Weight Measurement", NONE),
+    0x2A9E: ("Weight Scale Feature", UINT32),
+    0x2AA6: ("Central Address Resolution", UINT8),
+    0x2AC9: ("Resolvable Private Address Only", UINT8),
+}
+
+DESCRIPTORS = {
+    0x2900: "Characteristic Extended Properties",
+    0x2901: "Characteristic User Description",
+    0x2902: "Client Characteristic Configuration",
+    0x2903: "Server Characteristic Configuration",
+    0x2904: "Characteristic Presentation Format",
+    0x2905: "Characteristic Aggregate Format",
+    0x2906: "Valid Range",
+    0x2907: "External Report Reference",
+    0x2908: "Report Reference",
+    0x2909: "Number of Digitals",
+    0x290A: "Value Trigger Setting",
+    0x290B: "Environmental Sensing Configuration",
+    0x290C: "Environmental Sensing Measurement",
+    0x290D: "Environmental Sensing Trigger Setting",
+    0x290E: "Time Trigger Setting",
+}
+
+COMPANIES = {
+    0x0000: "Ericsson Technology Licensing",
+    0x0001: "Nokia Mobile Phones",
+    0x0002: "Intel Corp.",
+    0x0003: "IBM Corp.",
+    0x0004: "Toshiba Corp.",
+    0x0005: "3Com",
+    0x0006: "Microsoft",
+    0x0007: "Lucent",
+    0x0008: "Motorola",
+    0x000A: "Qualcomm Technologies International, Ltd. (QTIL)",
+    0x000D: "Texas Instruments Inc.",
+    0x000F: "Broadcom Corporation",
+    0x004C: "Apple, Inc.",
+    0x0059: "Nordic Semiconductor ASA",
+    0x0075: "Samsung Electronics Co. Ltd.",
+    0x0087: "Garmin International, Inc.",
+    0x00E0: "Google",
+}
+
+APPEARANCES = {
+    0: "Unknown",
+    64: "Phone",
+    128: "Computer",
+    192: "Watch",
+    193: "Sports Watch",
+    256: "Clock",
+    320: "Display",
+    384: "Remote Control",
+    448: "Eye-glasses",
+    512: "Tag",
+    576: "Keyring",
+    640: "Media Player",
+    704: "Barcode Scanner",
+    768: "Thermometer",
+    769: "Ear Thermometer",
+    832: "Heart Rate Sensor",
+    833: "Heart Rate Belt",
+    896: "Blood Pressure",
+    897: "Arm Blood Pressure",
+    898: "Wrist Blood Pressure",
+    960: "Human Interface Device",
+    961: "Keyboard",
+    962: "Mouse",
+    963: "Joystick",
+    964: "Gamepad",
+    965: "Digitizer Tablet",
+    966: "Card Reader",
+    967: "Digital Pen",
+    968: "Barcode Scanner",
+    1024: "Glucose Meter",
+    1088: "Running Walking Sensor",
+    1152: "Cycling",
+    1153: "Cycling Computer",
+    1154: "Speed Sensor",
+    1155: "Cadence Sensor",
+    1156: "Power Sensor",
+    1157: "Speed and Cadence Sensor",
+    3136: "Pulse Oximeter",
+    3200: "Weight Scale",
+    5184: "Outdoor Sports Activity",
+}
+
+
+def mix(key, seed):
+    """The same 32 bit hash as BleAssignedNumbers.mix()"""
+    x = (key ^ ((seed * 0x9E3779B9) & 0xFFFFFFFF)) & 0xFFFFFFFF
+    x ^= x >> 16
+    x = (x * 0x85EBCA6B) & 0xFFFFFFFF
+    x ^= x >> 13
+    x = (x * 0xC2B2AE35) & 0xFFFFFFFF
+    x ^= x >> 16
+    return x & 0x7FFFFFFF
+
+
+def build_perfect_hash(keys):
+    """Hash and displace: find one displacement per bucket so that every key gets its own slot"""
+    n = len(keys)
+    r = max(1, (n + 3) // 4)
+    buckets = [[] for _ in range(r)]
+    for key in keys:
+        buckets[mix(key, 0) % r].append(key)
+    displacements = [0] * r
+    slots = [None] * n
+    for b in sorted(range(r), key=lambda b: -len(buckets[b])):
+        if not buckets[b]:
+            continue
+        d = 1
+        while True:
+            positions = [mix(key, d) % n for key in buckets[b]]
+            if len(set(positions)) == len(positions) and all(slots[p] is None for p in positions):
+                break
+            d += 1
+            if d > 0xFFFF:
+                raise Exception("no displacement found for bucket %d" % b)
+        displacements[b] = d
+        for key, p in zip(buckets[b], positions):
+            slots[p] = key
+    return displacements, slots
+
+
+def main():
+    entries = {}
+    for number, name in SERVICES.items():
+        entries[(CATEGORY_SERVICE << 16) | number] = (name, NONE)
+    for number, (name, value_format) in CHARACTERISTICS.items():
+        entries[(CATEGORY_CHARACTERISTIC << 16) | number] = (name, value_format)
+    for number, name in DESCRIPTORS.items():
+        entries[(CATEGORY_DESCRIPTOR << 16) | number] = (name, NONE)
+    for number, name in COMPANIES.items():
+        entries[(CATEGORY_COMPANY << 16) | number] = (name, NONE)
+    for number, name in APPEARANCES.items():
+        entries[(CATEGORY_APPEARANCE << 16) | number] = (name, NONE)
+
+    displacements, slots = build_perfect_hash(sorted(entries))
+
+    pool = bytearray()
+    pool_offsets = {}
+    offsets, lengths = [], []
+    for key in slots:
+        name = entries[key][0].encode("utf-8")
+        if name not in pool_offsets:
+            pool_offsets[name] = len(pool)
+            pool += name
+        offsets.append(pool_offsets[name])
+        lengths.append(len(name))
+
+    out = bytearray(b"BLAN")
+    out += struct.pack(">BHH", 1, len(slots), len(displacements))
+    out += struct.pack(">%dH" % len(displacements), *displacements)
+    out += struct.pack(">%di" % len(slots), *slots)
+    out += struct.pack(">%dB" % len(slots), *[entries[key][1] for key in slots])
+    out += struct.pack(">%dH" % len(slots), *offsets)
+    out += struct.pack(">%dB" % len(slots), *lengths)
+    out += struct.pack(">H", len(pool)) + pool
+
+    path = os.path.join(os.path.dirname(os.path.abspath(__file__)), "..", "app", "src", "main", "res", "raw", "assigned_numbers.bin")
+    with open(path, "wb") as f:
+        f.write(out)
+    print("wrote %d entries, %d bytes to %s" % (len(slots), len(out), os.path.normpath(path)))
+
+
+if __name__ == "__main__":
+    main()
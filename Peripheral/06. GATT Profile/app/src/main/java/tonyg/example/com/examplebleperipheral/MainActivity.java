@@ -66,7 +66,10 @@ public class MainActivity extends AppCompatActivity {
     public void onPause() {
         super.onPause();
         // stop advertising when the activity pauses
-        mMyBlePeripheral.stopAdvertising();
+        if (mMyBlePeripheral != null) {
+            mMyBlePeripheral.stopAdvertising();
+            mMyBlePeripheral.stopBroadcastMode();
+        }
     }
 
     @Override
@@ -79,6 +82,9 @@ public class MainActivity extends AppCompatActivity {
     public void onDestroy() {
         super.onDestroy();
         unregisterReceiver(mBleBroadcastReceiver);
+        if (mMyBlePeripheral != null) {
+            mMyBlePeripheral.close();
+        }
     }
 
 
@@ -100,14 +106,14 @@ public class MainActivity extends AppCompatActivity {
      * Initialize the Bluetooth Radio
      */
     public void initializeBluetooth() {
-        // reset connection variables
-
+        // the same Peripheral is reused every time, so no GATT servers pile up
         try {
-            mMyBlePeripheral = new MyBlePeripheral(this, mBlePeripheralCallback);
+            mMyBlePeripheral = MyBlePeripheral.getInstance(this, mBlePeripheralCallback);
         } catch (Exception e) {
             Toast.makeText(this, "Could not initialize bluetooth", Toast.LENGTH_SHORT).show();
             Log.e(TAG, e.getMessage());
             finish();
+            return;
         }
 
 
@@ -129,7 +135,10 @@ public class MainActivity extends AppCompatActivity {
     public void startAdvertising() {
         Log.v(TAG, "starting advertising...");
         try {
+            mMyBlePeripheral.start();
             mMyBlePeripheral.startAdvertising();
+            // let Centrals read the battery level without connecting
+            mMyBlePeripheral.startBroadcastMode();
         } catch (Exception e) {
             Log.e(TAG, "problem starting advertising");
         }
@@ -171,7 +180,8 @@ public class MainActivity extends AppCompatActivity {
      * @param bluetoothDevice
      */
     public void onBleCentralDisconnected(final BluetoothDevice bluetoothDevice) {
-        mCentralConnectedSwitch.setChecked(false);
+        // other Centrals may still be connected
+        mCentralConnectedSwitch.setChecked(mMyBlePeripheral.getConnectedCentralCount() > 0);
     }
 
 
@@ -189,7 +199,10 @@ public class MainActivity extends AppCompatActivity {
                 switch (state) {
                     case BluetoothAdapter.STATE_OFF:
                         Log.v(TAG, "Bluetooth turned off");
-                        initializeBluetooth();
+                        // the GATT server is gone with the radio.  It is opened again when Bluetooth comes back
+                        if (mMyBlePeripheral != null) {
+                            mMyBlePeripheral.stop();
+                        }
                         break;
                     case BluetoothAdapter.STATE_TURNING_OFF:
                         break;
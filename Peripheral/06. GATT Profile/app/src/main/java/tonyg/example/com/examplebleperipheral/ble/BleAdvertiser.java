@@ -0,0 +1,193 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.util.SparseArray;
+
+import java.util.List;
+import java.util.Map;
+
+import tonyg.example.com.examplebleperipheral.ble.callbacks.BleAdvertiserCallback;
+
+/**
+ * One advertisement, on whatever the Bluetooth controller supports.
+ *
+ * Android 8 controllers with extended and periodic advertising get an advertising set, which
+ * carries up to 251 bytes, adds periodic advertising, and changes its data on the air.  Other
+ * controllers get a legacy advertisement, which is restarted to change its data and
+ * takes turns between the advertising data and the periodic data.  Callers use the same
+ * methods either way.
+ *
+ * An advertiser is only good until the radio turns off.  Once it is off, stop() forgets the
+ * advertisement without asking the controller, which would throw, and a new advertiser is
+ * needed when the radio is back
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public abstract class BleAdvertiser {
+    protected final BluetoothAdapter mBluetoothAdapter;
+    protected final BleAdvertiserCallback mCallback;
+
+    // AdvertiseSettings values, which advertising sets translate
+    protected int mAdvertiseMode = AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY;
+    protected int mTxPowerLevel = AdvertiseSettings.ADVERTISE_TX_POWER_HIGH;
+
+    protected BleAdvertiser(BluetoothAdapter bluetoothAdapter, BleAdvertiserCallback callback) {
+        mBluetoothAdapter = bluetoothAdapter;
+        mCallback = callback;
+    }
+
+    /**
+     * Get the best advertiser the controller supports
+     *
+     * @param bluetoothAdapter the Bluetooth Adapter, which must be on
+     * @param callback told when the advertisement starts or fails
+     * @return the advertiser
+     */
+    public static BleAdvertiser getAdvertiser(BluetoothAdapter bluetoothAdapter, BleAdvertiserCallback callback) {
+        // without periodic advertising, periodic data needs the legacy advertiser's turns
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bluetoothAdapter.isLeExtendedAdvertisingSupported()
+                && bluetoothAdapter.isLePeriodicAdvertisingSupported()) {
+            return new BleAdvertisingSetAdvertiser(bluetoothAdapter, callback);
+        }
+        return new BleLegacyAdvertiser(bluetoothAdapter, callback);
+    }
+
+    /**
+     * Count the bytes of advertising data, the way the controller encodes it
+     *
+     * @param advertiseData the advertising data
+     * @param deviceName the name sent if the data includes the device name
+     * @return the encoded length, without flags
+     */
+    public static int getEncodedLength(AdvertiseData advertiseData, String deviceName) {
+        BleAdvertisingPlan.Packet packet = new BleAdvertisingPlan.Packet(0, Integer.MAX_VALUE);
+        fill(packet, advertiseData, deviceName);
+        return packet.getLength();
+    }
+
+    /**
+     * @param advertiseData advertising data, or null
+     * @param connectable <b>true</b> if the data goes in a connectable advertisement, which also carries flags
+     * @return <b>true</b> if the data fits in a legacy packet
+     */
+    protected boolean fitsLegacyPacket(AdvertiseData advertiseData, boolean connectable) {
+        if (advertiseData == null) {
+            return true;
+        }
+        BleAdvertisingPlan.Packet packet = new BleAdvertisingPlan.Packet(connectable ? BleAdvertisingPlan.FLAGS_LENGTH : 0);
+        return fill(packet, advertiseData, mBluetoothAdapter.getName());
+    }
+
+    /**
+     * Put every field of advertising data in a packet, counting bytes the same way advertising plans do
+     *
+     * @param packet the packet
+     * @param advertiseData the advertising data
+     * @param deviceName the name sent if the data includes the device name
+     * @return <b>true</b> if every field fit
+     */
+    private static boolean fill(BleAdvertisingPlan.Packet packet, AdvertiseData advertiseData, String deviceName) {
+        boolean fits = true;
+        List<ParcelUuid> serviceUuids = advertiseData.getServiceUuids();
+        if (serviceUuids != null) {
+            for (ParcelUuid serviceUuid : serviceUuids) {
+                fits &= packet.addServiceUuid(serviceUuid.getUuid());
+            }
+        }
+        Map<ParcelUuid, byte[]> serviceData = advertiseData.getServiceData();
+        if (serviceData != null) {
+            for (Map.Entry<ParcelUuid, byte[]> entry : serviceData.entrySet()) {
+                fits &= packet.addServiceData(entry.getKey().getUuid(), entry.getValue());
+            }
+        }
+        SparseArray<byte[]> manufacturerData = advertiseData.getManufacturerSpecificData();
+        if (manufacturerData != null) {
+            for (int i = 0; i < manufacturerData.size(); i++) {
+                fits &= packet.addManufacturerData(manufacturerData.valueAt(i));
+            }
+        }
+        if (advertiseData.getIncludeTxPowerLevel()) {
+            fits &= packet.addTxPowerLevel();
+        }
+        if (advertiseData.getIncludeDeviceName() && deviceName != null) {
+            fits &= packet.addName(deviceName);
+        }
+        return fits;
+    }
+
+    /**
+     * @param advertiseMode one of the ADVERTISE_MODE_ values of AdvertiseSettings.  Used from the next start
+     */
+    public void setAdvertiseMode(int advertiseMode) {
+        mAdvertiseMode = advertiseMode;
+    }
+
+    /**
+     * @param txPowerLevel one of the ADVERTISE_TX_POWER_ values of AdvertiseSettings.  Used from the next start
+     */
+    public void setTxPowerLevel(int txPowerLevel) {
+        mTxPowerLevel = txPowerLevel;
+    }
+
+    /**
+     * @return <b>true</b> if advertising data can be longer than 31 bytes
+     */
+    public abstract boolean isExtended();
+
+    /**
+     * @return <b>true</b> if periodic data is sent by periodic advertising, instead of taking turns with the advertising data
+     */
+    public abstract boolean isPeriodicAdvertisingSupported();
+
+    /**
+     * Start advertising, replacing any advertisement already started
+     *
+     * @param connectable <b>true</b> if Centrals can connect.  A connectable advertisement is limited to 31 bytes
+     * @param advertiseData the advertising data
+     * @param scanResponse the scan response, or null
+     * @param periodicData data for listeners that follow the advertisement, or null
+     * @throws IllegalArgumentException if periodic data is asked for with a connectable advertisement or a scan response
+     */
+    public final synchronized void start(boolean connectable, AdvertiseData advertiseData, AdvertiseData scanResponse, AdvertiseData periodicData) {
+        if (periodicData != null && (connectable || scanResponse != null)) {
+            throw new IllegalArgumentException("Periodic advertising needs an advertisement that is neither connectable nor scannable");
+        }
+        stop();
+        startAdvertising(connectable, advertiseData, scanResponse, periodicData);
+    }
+
+    /**
+     * Start advertising.  Nothing is being advertised
+     *
+     * @param connectable <b>true</b> if Centrals can connect
+     * @param advertiseData the advertising data
+     * @param scanResponse the scan response, or null
+     * @param periodicData data for listeners that follow the advertisement, or null
+     */
+    protected abstract void startAdvertising(boolean connectable, AdvertiseData advertiseData, AdvertiseData scanResponse, AdvertiseData periodicData);
+
+    /**
+     * Change the advertising data without stopping the advertisement
+     *
+     * @param advertiseData the new advertising data
+     */
+    public abstract void setAdvertiseData(AdvertiseData advertiseData);
+
+    /**
+     * Change the periodic data without stopping the advertisement
+     *
+     * @param periodicData the new periodic data
+     */
+    public abstract void setPeriodicData(AdvertiseData periodicData);
+
+    /**
+     * Stop advertising.  Does nothing if not advertising.
+     * If the radio is already off, the advertisement is only forgotten
+     */
+    public abstract void stop();
+}
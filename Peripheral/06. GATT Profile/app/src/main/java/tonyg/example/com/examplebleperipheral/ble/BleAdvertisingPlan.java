@@ -0,0 +1,443 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import tonyg.example.com.examplebleperipheral.utilities.BleUuid;
+
+/**
+ * Decides what goes into the advertisement and what goes into the scan response, counting
+ * the exact bytes each field takes, so that advertising never fails with
+ * ADVERTISE_FAILED_DATA_TOO_LARGE.
+ *
+ * Each legacy packet holds 31 bytes.  Every field costs a length byte and a type byte, and a
+ * connectable advertisement also carries 3 bytes of flags.  Service UUIDs built on the
+ * Bluetooth Base UUID are sent as 16 or 32 bits instead of 128.  Fields are placed in the
+ * order Service UUIDs, service data, name, transmission power, each in the advertisement if
+ * it fits and in the scan response if not.  A name that fits in neither is shortened, down to its
+ * minimum length.  A configuration that still does not fit is rejected when it is built
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleAdvertisingPlan {
+    /** The most bytes in a legacy advertisement or scan response **/
+    public static final int MAX_PAYLOAD_LENGTH = 31;
+    /** Each field starts with a length byte and a type byte **/
+    public static final int FIELD_HEADER_LENGTH = 2;
+    /** The flags field that Android adds to connectable advertisements **/
+    public static final int FLAGS_LENGTH = FIELD_HEADER_LENGTH + 1;
+    /** The transmission power field **/
+    public static final int TX_POWER_LENGTH = FIELD_HEADER_LENGTH + 1;
+
+    private static final Charset NAME_CHARSET = Charset.forName("UTF-8");
+
+    private final String mName;
+    private final boolean mNameInScanResponse;
+    private final boolean mIncludeTxPowerLevel;
+    private final boolean mTxPowerLevelInScanResponse;
+    private final List<UUID> mAdvertisedServiceUuids;
+    private final List<UUID> mScanResponseServiceUuids;
+    private final Map<UUID, byte[]> mAdvertisedServiceData;
+    private final Map<UUID, byte[]> mScanResponseServiceData;
+    private final int mAdvertisementLength;
+    private final int mScanResponseLength;
+
+    private BleAdvertisingPlan(Packet advertisement, Packet scanResponse, String name, boolean includeTxPowerLevel) {
+        mName = name;
+        mNameInScanResponse = scanResponse.mHasName;
+        mIncludeTxPowerLevel = includeTxPowerLevel;
+        mTxPowerLevelInScanResponse = scanResponse.mHasTxPowerLevel;
+        mAdvertisedServiceUuids = Collections.unmodifiableList(advertisement.getServiceUuids());
+        mScanResponseServiceUuids = Collections.unmodifiableList(scanResponse.getServiceUuids());
+        mAdvertisedServiceData = Collections.unmodifiableMap(advertisement.mServiceData);
+        mScanResponseServiceData = Collections.unmodifiableMap(scanResponse.mServiceData);
+        mAdvertisementLength = advertisement.mLength;
+        mScanResponseLength = scanResponse.mLength;
+    }
+
+    /**
+     * @return the name to advertise, which may be shorter than the one asked for, or null to advertise no name
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return <b>true</b> if the name is sent in the scan response instead of the advertisement
+     */
+    public boolean isNameInScanResponse() {
+        return mNameInScanResponse;
+    }
+
+    /**
+     * @return <b>true</b> if the transmission power is sent
+     */
+    public boolean isTxPowerLevelIncluded() {
+        return mIncludeTxPowerLevel;
+    }
+
+    /**
+     * @return <b>true</b> if the transmission power is sent in the scan response instead of the advertisement
+     */
+    public boolean isTxPowerLevelInScanResponse() {
+        return mTxPowerLevelInScanResponse;
+    }
+
+    /**
+     * @return the Service UUIDs in the advertisement
+     */
+    public List<UUID> getAdvertisedServiceUuids() {
+        return mAdvertisedServiceUuids;
+    }
+
+    /**
+     * @return the Service UUIDs in the scan response
+     */
+    public List<UUID> getScanResponseServiceUuids() {
+        return mScanResponseServiceUuids;
+    }
+
+    /**
+     * @return the service data in the advertisement, by Service UUID
+     */
+    public Map<UUID, byte[]> getAdvertisedServiceData() {
+        return mAdvertisedServiceData;
+    }
+
+    /**
+     * @return the service data in the scan response, by Service UUID
+     */
+    public Map<UUID, byte[]> getScanResponseServiceData() {
+        return mScanResponseServiceData;
+    }
+
+    /**
+     * @return the encoded length of the advertisement, including flags
+     */
+    public int getAdvertisementLength() {
+        return mAdvertisementLength;
+    }
+
+    /**
+     * @return the encoded length of the scan response
+     */
+    public int getScanResponseLength() {
+        return mScanResponseLength;
+    }
+
+    /**
+     * @return <b>true</b> if anything is sent in the scan response
+     */
+    public boolean hasScanResponse() {
+        return mScanResponseLength > 0;
+    }
+
+    /**
+     * Check if this plan can replace another on the air by changing the advertisement data only:
+     * every field is where it was, the scan response is unchanged, and only the values of the
+     * service data in the advertisement may differ
+     *
+     * @param other the plan on the air
+     * @return <b>true</b> if only the advertised service data values differ from the other plan
+     */
+    public boolean hasSameLayout(BleAdvertisingPlan other) {
+        if (other == null) {
+            return false;
+        }
+        boolean sameName = mName == null ? other.mName == null : mName.equals(other.mName);
+        if (!sameName || mNameInScanResponse != other.mNameInScanResponse
+                || mIncludeTxPowerLevel != other.mIncludeTxPowerLevel
+                || mTxPowerLevelInScanResponse != other.mTxPowerLevelInScanResponse
+                || !mAdvertisedServiceUuids.equals(other.mAdvertisedServiceUuids)
+                || !mScanResponseServiceUuids.equals(other.mScanResponseServiceUuids)) {
+            return false;
+        }
+        if (!new ArrayList<>(mAdvertisedServiceData.keySet()).equals(new ArrayList<>(other.mAdvertisedServiceData.keySet()))
+                || !mScanResponseServiceData.keySet().equals(other.mScanResponseServiceData.keySet())) {
+            return false;
+        }
+        for (Map.Entry<UUID, byte[]> entry : mScanResponseServiceData.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), other.mScanResponseServiceData.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "advertisement " + mAdvertisementLength + "/" + MAX_PAYLOAD_LENGTH
+                + " bytes, scan response " + mScanResponseLength + "/" + MAX_PAYLOAD_LENGTH + " bytes";
+    }
+
+    /**
+     * @param uuid a Service UUID
+     * @return how many bytes the UUID takes in a list of Service UUIDs
+     */
+    public static int getEncodedLength(UUID uuid) {
+        if (BleUuid.is16BitUuid(uuid)) {
+            return 2;
+        }
+        if (BleUuid.isShortUuid(uuid)) {
+            return 4;
+        }
+        return 16;
+    }
+
+    /**
+     * @param serviceUuid the UUID of a Service
+     * @param data the service data
+     * @return how many bytes the service data field takes
+     */
+    public static int getEncodedServiceDataLength(UUID serviceUuid, byte[] data) {
+        return FIELD_HEADER_LENGTH + getEncodedLength(serviceUuid) + data.length;
+    }
+
+    /**
+     * @param name a name
+     * @return how many bytes the name field takes
+     */
+    public static int getEncodedNameLength(String name) {
+        return FIELD_HEADER_LENGTH + name.getBytes(NAME_CHARSET).length;
+    }
+
+
+    /**
+     * One advertising packet being filled, which BleAdvertiser also counts advertising data with.
+     * Service UUIDs of the same size share a field
+     */
+    static class Packet {
+        private final List<UUID> m16BitServiceUuids = new ArrayList<>();
+        private final List<UUID> m32BitServiceUuids = new ArrayList<>();
+        private final List<UUID> m128BitServiceUuids = new ArrayList<>();
+        private final Map<UUID, byte[]> mServiceData = new LinkedHashMap<>();
+        private final int mMaxLength;
+        private int mLength;
+        private boolean mHasName;
+        private boolean mHasTxPowerLevel;
+
+        /**
+         * @param length the bytes already taken, such as by flags
+         */
+        Packet(int length) {
+            this(length, MAX_PAYLOAD_LENGTH);
+        }
+
+        /**
+         * @param length the bytes already taken, such as by flags
+         * @param maxLength the most bytes the packet holds
+         */
+        Packet(int length, int maxLength) {
+            mLength = length;
+            mMaxLength = maxLength;
+        }
+
+        int getLength() {
+            return mLength;
+        }
+
+        int getFreeLength() {
+            return mMaxLength - mLength;
+        }
+
+        private List<UUID> getServiceUuidField(UUID uuid) {
+            switch (getEncodedLength(uuid)) {
+                case 2:
+                    return m16BitServiceUuids;
+                case 4:
+                    return m32BitServiceUuids;
+                default:
+                    return m128BitServiceUuids;
+            }
+        }
+
+        boolean addServiceUuid(UUID uuid) {
+            List<UUID> field = getServiceUuidField(uuid);
+            // the first UUID of each size also pays for the field header
+            int length = getEncodedLength(uuid) + (field.isEmpty() ? FIELD_HEADER_LENGTH : 0);
+            if (length > getFreeLength()) {
+                return false;
+            }
+            field.add(uuid);
+            mLength += length;
+            return true;
+        }
+
+        boolean addServiceData(UUID serviceUuid, byte[] data) {
+            int length = getEncodedServiceDataLength(serviceUuid, data);
+            if (length > getFreeLength()) {
+                return false;
+            }
+            mServiceData.put(serviceUuid, data);
+            mLength += length;
+            return true;
+        }
+
+        boolean addName(String name) {
+            int length = getEncodedNameLength(name);
+            if (length > getFreeLength()) {
+                return false;
+            }
+            mHasName = true;
+            mLength += length;
+            return true;
+        }
+
+        boolean addManufacturerData(byte[] data) {
+            // the 2 byte manufacturer ID comes first
+            int length = FIELD_HEADER_LENGTH + 2 + data.length;
+            if (length > getFreeLength()) {
+                return false;
+            }
+            mLength += length;
+            return true;
+        }
+
+        boolean addTxPowerLevel() {
+            if (TX_POWER_LENGTH > getFreeLength()) {
+                return false;
+            }
+            mHasTxPowerLevel = true;
+            mLength += TX_POWER_LENGTH;
+            return true;
+        }
+
+        List<UUID> getServiceUuids() {
+            List<UUID> serviceUuids = new ArrayList<>(m16BitServiceUuids);
+            serviceUuids.addAll(m32BitServiceUuids);
+            serviceUuids.addAll(m128BitServiceUuids);
+            return serviceUuids;
+        }
+    }
+
+
+    /**
+     * Describe what to advertise
+     */
+    public static class Builder {
+        private String mName;
+        private int mMinimumNameLength;
+        private boolean mIncludeTxPowerLevel;
+        private boolean mConnectable = true;
+        private final List<UUID> mServiceUuids = new ArrayList<>();
+        private final Map<UUID, byte[]> mServiceData = new LinkedHashMap<>();
+
+        /**
+         * Advertise a name
+         *
+         * @param name the name
+         * @param minimumLength the fewest characters the name can be shortened to
+         * @return this Builder
+         */
+        public Builder setName(String name, int minimumLength) {
+            if (minimumLength < 1 || minimumLength > name.length()) {
+                throw new IllegalArgumentException("Minimum name length must be from 1 to " + name.length());
+            }
+            mName = name;
+            mMinimumNameLength = minimumLength;
+            return this;
+        }
+
+        /**
+         * Advertise a name, which is never shortened
+         *
+         * @param name the name
+         * @return this Builder
+         */
+        public Builder setName(String name) {
+            return setName(name, name.length());
+        }
+
+        /**
+         * Advertise a Service, so that Centrals can scan for it
+         *
+         * @param serviceUuid the UUID of the Service
+         * @return this Builder
+         */
+        public Builder addServiceUuid(UUID serviceUuid) {
+            if (!mServiceUuids.contains(serviceUuid)) {
+                mServiceUuids.add(serviceUuid);
+            }
+            return this;
+        }
+
+        /**
+         * Advertise a small value as the service data of a Service, so that Centrals can read it
+         * from their scan results.  Replaces any service data already added for the Service
+         *
+         * @param serviceUuid the UUID of the Service
+         * @param data the service data, which is kept, not copied
+         * @return this Builder
+         */
+        public Builder addServiceData(UUID serviceUuid, byte[] data) {
+            mServiceData.put(serviceUuid, data);
+            return this;
+        }
+
+        public Builder setIncludeTxPowerLevel(boolean includeTxPowerLevel) {
+            mIncludeTxPowerLevel = includeTxPowerLevel;
+            return this;
+        }
+
+        /**
+         * @param connectable <b>true</b> if Centrals can connect.  Connectable advertisements carry flags
+         * @return this Builder
+         */
+        public Builder setConnectable(boolean connectable) {
+            mConnectable = connectable;
+            return this;
+        }
+
+        /**
+         * @return the plan
+         * @throws IllegalArgumentException if everything can not fit in an advertisement and a scan response
+         */
+        public BleAdvertisingPlan build() {
+            Packet advertisement = new Packet(mConnectable ? FLAGS_LENGTH : 0);
+            Packet scanResponse = new Packet(0);
+
+            for (UUID serviceUuid : mServiceUuids) {
+                if (!advertisement.addServiceUuid(serviceUuid) && !scanResponse.addServiceUuid(serviceUuid)) {
+                    throw new IllegalArgumentException("No room to advertise service " + serviceUuid);
+                }
+            }
+
+            for (Map.Entry<UUID, byte[]> entry : mServiceData.entrySet()) {
+                if (!advertisement.addServiceData(entry.getKey(), entry.getValue())
+                        && !scanResponse.addServiceData(entry.getKey(), entry.getValue())) {
+                    throw new IllegalArgumentException("No room to advertise service data of " + entry.getKey());
+                }
+            }
+
+            String name = mName;
+            if (name != null && !advertisement.addName(name) && !scanResponse.addName(name)) {
+                // shorten the name to fit whichever packet has more room
+                Packet packet = advertisement.getFreeLength() >= scanResponse.getFreeLength() ? advertisement : scanResponse;
+                int length = name.length();
+                while (length > mMinimumNameLength && getEncodedNameLength(name.substring(0, length)) > packet.getFreeLength()) {
+                    length--;
+                }
+                if (length > 1 && Character.isHighSurrogate(name.charAt(length - 1))) {
+                    length--; // do not split a character in two
+                }
+                name = name.substring(0, length);
+                if (!packet.addName(name)) {
+                    throw new IllegalArgumentException("No room to advertise name " + mName + " in " + mMinimumNameLength + " characters or more");
+                }
+            }
+
+            if (mIncludeTxPowerLevel && !advertisement.addTxPowerLevel() && !scanResponse.addTxPowerLevel()) {
+                throw new IllegalArgumentException("No room to advertise the transmission power");
+            }
+
+            return new BleAdvertisingPlan(advertisement, scanResponse, name, mIncludeTxPowerLevel);
+        }
+    }
+}
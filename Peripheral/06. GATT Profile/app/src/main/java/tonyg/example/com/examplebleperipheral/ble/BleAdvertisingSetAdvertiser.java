@@ -0,0 +1,258 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.bluetooth.le.PeriodicAdvertisingParameters;
+import android.os.Build;
+import android.util.Log;
+
+import tonyg.example.com.examplebleperipheral.ble.callbacks.BleAdvertiserCallback;
+
+/**
+ * Advertises with an advertising set, for Android 8 controllers with extended and periodic advertising.
+ *
+ * Connectable advertisements, and broadcasts that fit in 31 bytes, use a legacy mode set, so
+ * that every Central can see them, including those without extended scanning.  Longer
+ * broadcasts use extended advertising, with periodic advertising for the periodic data.
+ * New data is sent to the set on the air.  Only one change of each kind is in flight at a
+ * time; changes made meanwhile are coalesced and the latest is sent when the set is ready.
+ * Every set started gets its own callback, so that late reports from a stopped set are ignored
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+@TargetApi(Build.VERSION_CODES.O)
+public class BleAdvertisingSetAdvertiser extends BleAdvertiser {
+    private static final String TAG = BleAdvertisingSetAdvertiser.class.getSimpleName();
+
+    // 1 second, in units of 1.25 ms
+    private static final int PERIODIC_ADVERTISING_INTERVAL = 800;
+
+    private final BluetoothLeAdvertiser mBluetoothAdvertiser;
+
+    private boolean mAdvertising = false;
+    private AdvertisingSet mAdvertisingSet;
+    // the callback of the set being advertised
+    private AdvertisingSetCallback mAdvertisingSetCallback;
+    private boolean mConnectable;
+    private boolean mLegacyMode;
+    private AdvertiseData mScanResponse;
+
+    // the data asked for, and the data last sent to the set
+    private AdvertiseData mAdvertiseData;
+    private AdvertiseData mSentAdvertiseData;
+    private boolean mAdvertiseDataInFlight = false;
+    private AdvertiseData mPeriodicData;
+    private AdvertiseData mSentPeriodicData;
+    private boolean mPeriodicDataInFlight = false;
+
+    public BleAdvertisingSetAdvertiser(BluetoothAdapter bluetoothAdapter, BleAdvertiserCallback callback) {
+        super(bluetoothAdapter, callback);
+        mBluetoothAdvertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
+    }
+
+    @Override
+    public boolean isExtended() {
+        return true;
+    }
+
+    @Override
+    public boolean isPeriodicAdvertisingSupported() {
+        return true;
+    }
+
+    @Override
+    protected synchronized void startAdvertising(boolean connectable, AdvertiseData advertiseData, AdvertiseData scanResponse, AdvertiseData periodicData) {
+        PeriodicAdvertisingParameters periodicParameters = null;
+        if (periodicData != null) {
+            periodicParameters = new PeriodicAdvertisingParameters.Builder()
+                    .setInterval(PERIODIC_ADVERTISING_INTERVAL)
+                    .build();
+        }
+
+        // extended advertisements can not be connectable and scannable at once, so connectable ones stay legacy.
+        // Centrals without extended scanning only see legacy advertisements, so anything that fits stays legacy too
+        boolean legacyMode = connectable || (periodicData == null
+                && fitsLegacyPacket(advertiseData, false) && fitsLegacyPacket(scanResponse, false));
+        AdvertisingSetParameters parameters = new AdvertisingSetParameters.Builder()
+                .setLegacyMode(legacyMode)
+                .setConnectable(connectable)
+                .setScannable(connectable || scanResponse != null)
+                .setInterval(getInterval(mAdvertiseMode))
+                .setTxPowerLevel(getTxPowerLevel(mTxPowerLevel))
+                .build();
+
+        mAdvertising = true;
+        mAdvertisingSet = null;
+        mConnectable = connectable;
+        mLegacyMode = legacyMode;
+        mScanResponse = scanResponse;
+        mAdvertiseData = mSentAdvertiseData = advertiseData;
+        mPeriodicData = mSentPeriodicData = periodicData;
+        mAdvertiseDataInFlight = false;
+        mPeriodicDataInFlight = false;
+        mAdvertisingSetCallback = new SetCallback();
+        mBluetoothAdvertiser.startAdvertisingSet(parameters, advertiseData, scanResponse,
+                periodicParameters, periodicData, mAdvertisingSetCallback);
+    }
+
+    @Override
+    public synchronized void setAdvertiseData(AdvertiseData advertiseData) {
+        if (mAdvertising && mLegacyMode && !mConnectable && !fitsLegacyPacket(advertiseData, false)) {
+            // a legacy set can not carry more than 31 bytes, so start again as an extended one
+            stop();
+            startAdvertising(false, advertiseData, mScanResponse, null);
+            return;
+        }
+        mAdvertiseData = advertiseData;
+        sendAdvertiseData();
+    }
+
+    @Override
+    public synchronized void setPeriodicData(AdvertiseData periodicData) {
+        if (mSentPeriodicData == null) {
+            // periodic advertising was not started with the set
+            Log.w(TAG, "Not advertising periodically, periodic data is not sent");
+            return;
+        }
+        mPeriodicData = periodicData;
+        sendPeriodicData();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!mAdvertising) {
+            return;
+        }
+        mAdvertising = false;
+        mAdvertisingSet = null;
+        // with the radio off the set is already gone
+        if (mBluetoothAdapter.isEnabled()) {
+            mBluetoothAdvertiser.stopAdvertisingSet(mAdvertisingSetCallback);
+        }
+        mAdvertisingSetCallback = null;
+    }
+
+    /**
+     * Send the latest advertising data, unless a change is in flight or the set has not started
+     */
+    private void sendAdvertiseData() {
+        if (mAdvertisingSet == null || mAdvertiseDataInFlight || mAdvertiseData == mSentAdvertiseData) {
+            return;
+        }
+        mAdvertiseDataInFlight = true;
+        mSentAdvertiseData = mAdvertiseData;
+        mAdvertisingSet.setAdvertisingData(mAdvertiseData);
+    }
+
+    /**
+     * Send the latest periodic data, unless a change is in flight or the set has not started
+     */
+    private void sendPeriodicData() {
+        if (mAdvertisingSet == null || mPeriodicDataInFlight || mPeriodicData == mSentPeriodicData) {
+            return;
+        }
+        mPeriodicDataInFlight = true;
+        mSentPeriodicData = mPeriodicData;
+        mAdvertisingSet.setPeriodicAdvertisingData(mPeriodicData);
+    }
+
+    /**
+     * @param advertiseMode an ADVERTISE_MODE_ value of AdvertiseSettings
+     * @return the matching advertising set interval
+     */
+    private static int getInterval(int advertiseMode) {
+        switch (advertiseMode) {
+            case AdvertiseSettings.ADVERTISE_MODE_LOW_POWER:
+                return AdvertisingSetParameters.INTERVAL_HIGH;
+            case AdvertiseSettings.ADVERTISE_MODE_BALANCED:
+                return AdvertisingSetParameters.INTERVAL_MEDIUM;
+            default:
+                return AdvertisingSetParameters.INTERVAL_LOW;
+        }
+    }
+
+    /**
+     * @param txPowerLevel an ADVERTISE_TX_POWER_ value of AdvertiseSettings
+     * @return the matching advertising set transmission power
+     */
+    private static int getTxPowerLevel(int txPowerLevel) {
+        switch (txPowerLevel) {
+            case AdvertiseSettings.ADVERTISE_TX_POWER_ULTRA_LOW:
+                return AdvertisingSetParameters.TX_POWER_ULTRA_LOW;
+            case AdvertiseSettings.ADVERTISE_TX_POWER_LOW:
+                return AdvertisingSetParameters.TX_POWER_LOW;
+            case AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM:
+                return AdvertisingSetParameters.TX_POWER_MEDIUM;
+            default:
+                return AdvertisingSetParameters.TX_POWER_HIGH;
+        }
+    }
+
+
+    /**
+     * Reports of one set.  Reports that arrive after the set was stopped or replaced are ignored
+     */
+    private class SetCallback extends AdvertisingSetCallback {
+        @Override
+        public void onAdvertisingSetStarted(AdvertisingSet advertisingSet, int txPower, int status) {
+            if (status != AdvertisingSetCallback.ADVERTISE_SUCCESS) {
+                synchronized (BleAdvertisingSetAdvertiser.this) {
+                    if (this != mAdvertisingSetCallback) {
+                        return;
+                    }
+                    mAdvertising = false;
+                    mAdvertisingSetCallback = null;
+                }
+                // the error codes are the same as AdvertiseCallback's
+                Log.e(TAG, "Advertising set failed with status " + status);
+                mCallback.onAdvertisingFailed(status);
+                return;
+            }
+            synchronized (BleAdvertisingSetAdvertiser.this) {
+                if (this != mAdvertisingSetCallback) {
+                    return;
+                }
+                mAdvertisingSet = advertisingSet;
+                // send anything that changed while the set was starting
+                sendAdvertiseData();
+                sendPeriodicData();
+            }
+            mCallback.onAdvertisingStarted();
+        }
+
+        @Override
+        public void onAdvertisingDataSet(AdvertisingSet advertisingSet, int status) {
+            if (status != AdvertisingSetCallback.ADVERTISE_SUCCESS) {
+                Log.e(TAG, "Could not change advertising data, status " + status);
+            }
+            synchronized (BleAdvertisingSetAdvertiser.this) {
+                if (this != mAdvertisingSetCallback) {
+                    return;
+                }
+                mAdvertiseDataInFlight = false;
+                sendAdvertiseData();
+            }
+        }
+
+        @Override
+        public void onPeriodicAdvertisingDataSet(AdvertisingSet advertisingSet, int status) {
+            if (status != AdvertisingSetCallback.ADVERTISE_SUCCESS) {
+                Log.e(TAG, "Could not change periodic advertising data, status " + status);
+            }
+            synchronized (BleAdvertisingSetAdvertiser.this) {
+                if (this != mAdvertisingSetCallback) {
+                    return;
+                }
+                mPeriodicDataInFlight = false;
+                sendPeriodicData();
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The values served by the GATT server, indexed by the Characteristic and Descriptor
+ * objects that the server passes to its callbacks.
+ *
+ * Finding the value for a request is one hash map lookup, with no searching through
+ * Services.  Values are kept encoded, ready to send, so a read only copies bytes when a
+ * Central asks for part of a long value.  An attribute can take its value from a
+ * BleValueProvider instead, which is asked when a read starts
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleAttributeTable {
+    /** The longest value an attribute can hold **/
+    public static final int MAX_ATTRIBUTE_LENGTH = 512;
+
+    /** Every permission that lets a Central read, with or without security.  Descriptors use the same values **/
+    public static final int READ_PERMISSIONS = BluetoothGattCharacteristic.PERMISSION_READ
+            | BluetoothGattCharacteristic.PERMISSION_READ_ENCRYPTED
+            | BluetoothGattCharacteristic.PERMISSION_READ_ENCRYPTED_MITM;
+    /** Every permission that lets a Central write, with or without security.  Descriptors use the same values **/
+    public static final int WRITE_PERMISSIONS = BluetoothGattCharacteristic.PERMISSION_WRITE
+            | BluetoothGattCharacteristic.PERMISSION_WRITE_ENCRYPTED
+            | BluetoothGattCharacteristic.PERMISSION_WRITE_ENCRYPTED_MITM
+            | BluetoothGattCharacteristic.PERMISSION_WRITE_SIGNED
+            | BluetoothGattCharacteristic.PERMISSION_WRITE_SIGNED_MITM;
+
+    private static final byte[] EMPTY_VALUE = new byte[0];
+
+    /**
+     * One Characteristic or Descriptor value
+     */
+    public static class Attribute {
+        private final UUID mUuid;
+        private final boolean mReadable;
+        private final boolean mWritable;
+        private volatile byte[] mValue = EMPTY_VALUE;
+        private volatile BleValueProvider mValueProvider;
+
+        private Attribute(UUID uuid, boolean readable, boolean writable) {
+            mUuid = uuid;
+            mReadable = readable;
+            mWritable = writable;
+        }
+
+        public UUID getUuid() {
+            return mUuid;
+        }
+
+        public boolean isReadable() {
+            return mReadable;
+        }
+
+        public boolean isWritable() {
+            return mWritable;
+        }
+
+        /**
+         * @return the encoded value.  Do not change the array
+         */
+        public byte[] getValue() {
+            BleValueProvider valueProvider = mValueProvider;
+            return valueProvider == null ? mValue : valueProvider.getCachedValue();
+        }
+
+        /**
+         * @return where the value comes from, or null if it is kept in the attribute
+         */
+        public BleValueProvider getValueProvider() {
+            return mValueProvider;
+        }
+
+        /**
+         * Take the value from a provider when it is read
+         *
+         * @param valueProvider the provider, or null to keep the value in the attribute
+         */
+        public void setValueProvider(BleValueProvider valueProvider) {
+            mValueProvider = valueProvider;
+        }
+
+        /**
+         * Replace the value.  The array is kept, not copied, so do not change it afterwards
+         *
+         * @param value the encoded value
+         */
+        public void setValue(byte[] value) {
+            mValue = value == null ? EMPTY_VALUE : value;
+        }
+
+        /**
+         * Get the value from an offset, for a long read
+         *
+         * @param offset where the Central wants the value from
+         * @return the value from the offset, or null if the offset is past the end of the value
+         */
+        public byte[] getValue(int offset) {
+            BleValueProvider valueProvider = mValueProvider;
+            if (offset == 0) {
+                return valueProvider == null ? mValue : valueProvider.getValue();
+            }
+            // the rest of a long read comes from the value its first part came from
+            byte[] value = valueProvider == null ? mValue : valueProvider.getCachedValue();
+            if (offset < 0 || offset > value.length) {
+                return null;
+            }
+            return Arrays.copyOfRange(value, offset, value.length);
+        }
+
+        /**
+         * Write part of the value, for a long write
+         *
+         * @param offset where the data goes
+         * @param data the data
+         * @return <b>true</b> if the data fits
+         */
+        public synchronized boolean setValue(int offset, byte[] data) {
+            byte[] newValue = write(mValue, offset, data);
+            if (newValue == null) {
+                return false;
+            }
+            mValue = newValue;
+            return true;
+        }
+
+        /**
+         * Write part of a value into a copy of it
+         *
+         * @param value the value
+         * @param offset where the data goes
+         * @param data the data
+         * @return the written copy, or null if the data does not fit
+         */
+        static byte[] write(byte[] value, int offset, byte[] data) {
+            if (offset < 0 || offset > value.length || offset + data.length > MAX_ATTRIBUTE_LENGTH) {
+                return null;
+            }
+            byte[] newValue = Arrays.copyOf(value, Math.max(value.length, offset + data.length));
+            System.arraycopy(data, 0, newValue, offset, data.length);
+            return newValue;
+        }
+    }
+
+    private final ConcurrentHashMap<BluetoothGattCharacteristic, Attribute> mCharacteristics = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<BluetoothGattDescriptor, Attribute> mDescriptors = new ConcurrentHashMap<>();
+
+    /**
+     * Serve every Characteristic and Descriptor of a Service
+     *
+     * @param service the Service, before it is added to the GATT server
+     */
+    public void addService(BluetoothGattService service) {
+        for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+            Attribute attribute = new Attribute(characteristic.getUuid(),
+                    (characteristic.getPermissions() & READ_PERMISSIONS) != 0,
+                    (characteristic.getPermissions() & WRITE_PERMISSIONS) != 0);
+            attribute.setValue(characteristic.getValue());
+            mCharacteristics.put(characteristic, attribute);
+            for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                Attribute descriptorAttribute = new Attribute(descriptor.getUuid(),
+                        (descriptor.getPermissions() & READ_PERMISSIONS) != 0,
+                        (descriptor.getPermissions() & WRITE_PERMISSIONS) != 0);
+                descriptorAttribute.setValue(descriptor.getValue());
+                mDescriptors.put(descriptor, descriptorAttribute);
+            }
+        }
+    }
+
+    /**
+     * @param characteristic a Characteristic passed to a BluetoothGattServerCallback
+     * @return its attribute, or null if it is not served
+     */
+    public Attribute get(BluetoothGattCharacteristic characteristic) {
+        return mCharacteristics.get(characteristic);
+    }
+
+    /**
+     * @param descriptor a Descriptor passed to a BluetoothGattServerCallback
+     * @return its attribute, or null if it is not served
+     */
+    public Attribute get(BluetoothGattDescriptor descriptor) {
+        return mDescriptors.get(descriptor);
+    }
+
+    /**
+     * Change the value of a Characteristic
+     *
+     * @param characteristic the Characteristic
+     * @param value the encoded value, which is kept, not copied
+     */
+    public void setValue(BluetoothGattCharacteristic characteristic, byte[] value) {
+        Attribute attribute = mCharacteristics.get(characteristic);
+        if (attribute != null) {
+            attribute.setValue(value);
+        }
+    }
+}
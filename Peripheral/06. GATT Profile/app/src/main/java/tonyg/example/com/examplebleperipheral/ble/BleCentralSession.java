@@ -0,0 +1,175 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One connected Central, with its subscriptions, its pending writes, and how busy it keeps the Peripheral.
+ *
+ * Each Central gets its own session, so requests from several Centrals never see each
+ * other's state.  Request counts and response latencies are kept per Central, to tell
+ * which Central is polling hardest
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleCentralSession {
+    /** The most writes a Central can prepare before executing them, enough for a 512 byte value in 18 byte parts **/
+    public static final int MAX_PREPARED_WRITES = 64;
+
+    private final BluetoothDevice mDevice;
+    private final long mConnectedAtNanos = SystemClock.elapsedRealtimeNanos();
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mTotalLatencyNanos = new AtomicLong();
+    private final AtomicLong mMaxLatencyNanos = new AtomicLong();
+
+    // the Client Characteristic Configuration this Central wrote for each Characteristic it subscribed to
+    private final ConcurrentHashMap<BluetoothGattCharacteristic, byte[]> mSubscriptions = new ConcurrentHashMap<>();
+
+    // values waiting to be notified to this Central
+    private final BleNotificationQueue mNotificationQueue = new BleNotificationQueue();
+
+    // writes waiting for onExecuteWrite
+    private final List<BleGattRequestDispatcher.PreparedWrite> mPreparedWrites = new ArrayList<>();
+
+    /**
+     * @param device the connected Central
+     */
+    public BleCentralSession(BluetoothDevice device) {
+        mDevice = device;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * @param characteristic a Characteristic
+     * @return <b>true</b> if this Central asked for notifications or indications of the Characteristic
+     */
+    public boolean isSubscribed(BluetoothGattCharacteristic characteristic) {
+        return mSubscriptions.containsKey(characteristic);
+    }
+
+    /**
+     * @param characteristic a Characteristic
+     * @return the Client Characteristic Configuration value this Central wrote for the Characteristic
+     */
+    byte[] getClientCharacteristicConfiguration(BluetoothGattCharacteristic characteristic) {
+        byte[] value = mSubscriptions.get(characteristic);
+        return value == null ? BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE : value;
+    }
+
+    /**
+     * Remember a Client Characteristic Configuration write
+     *
+     * @param characteristic the Characteristic
+     * @param value ENABLE_NOTIFICATION_VALUE, ENABLE_INDICATION_VALUE, or DISABLE_NOTIFICATION_VALUE
+     */
+    void setClientCharacteristicConfiguration(BluetoothGattCharacteristic characteristic, byte[] value) {
+        if (value[0] == 0 && value[1] == 0) {
+            mSubscriptions.remove(characteristic);
+        } else {
+            mSubscriptions.put(characteristic, value);
+        }
+    }
+
+    /**
+     * @return the notifications waiting for this Central, with its notification throughput
+     */
+    public BleNotificationQueue getNotificationQueue() {
+        return mNotificationQueue;
+    }
+
+    /**
+     * Count an answered request
+     *
+     * @param latencyNanos how long it took to answer
+     */
+    void onRequestHandled(long latencyNanos) {
+        mRequestCount.incrementAndGet();
+        mTotalLatencyNanos.addAndGet(latencyNanos);
+        long maxLatencyNanos = mMaxLatencyNanos.get();
+        while (latencyNanos > maxLatencyNanos && !mMaxLatencyNanos.compareAndSet(maxLatencyNanos, latencyNanos)) {
+            maxLatencyNanos = mMaxLatencyNanos.get();
+        }
+    }
+
+    /**
+     * Hold a write until the Central executes it
+     *
+     * @return <b>false</b> if MAX_PREPARED_WRITES are already waiting, so the write is refused
+     */
+    boolean addPreparedWrite(BleGattRequestDispatcher.PreparedWrite preparedWrite) {
+        synchronized (mPreparedWrites) {
+            if (mPreparedWrites.size() >= MAX_PREPARED_WRITES) {
+                return false;
+            }
+            mPreparedWrites.add(preparedWrite);
+            return true;
+        }
+    }
+
+    /**
+     * @return the writes waiting to be executed, which are forgotten
+     */
+    List<BleGattRequestDispatcher.PreparedWrite> takePreparedWrites() {
+        synchronized (mPreparedWrites) {
+            List<BleGattRequestDispatcher.PreparedWrite> preparedWrites = new ArrayList<>(mPreparedWrites);
+            mPreparedWrites.clear();
+            return preparedWrites;
+        }
+    }
+
+    /**
+     * @return how many requests were answered
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return how many milliseconds the Central has been connected
+     */
+    public long getConnectedTimeMs() {
+        return (SystemClock.elapsedRealtimeNanos() - mConnectedAtNanos) / 1000000;
+    }
+
+    /**
+     * @return requests per second since the Central connected
+     */
+    public double getRequestRate() {
+        long connectedTimeMs = Math.max(1, getConnectedTimeMs());
+        return mRequestCount.get() * 1000.0 / connectedTimeMs;
+    }
+
+    /**
+     * @return the average time to answer a request, in microseconds
+     */
+    public long getMeanLatencyMicros() {
+        long requestCount = mRequestCount.get();
+        return requestCount == 0 ? 0 : mTotalLatencyNanos.get() / requestCount / 1000;
+    }
+
+    /**
+     * @return the longest time to answer a request, in microseconds
+     */
+    public long getMaxLatencyMicros() {
+        return mMaxLatencyNanos.get() / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return mDevice.getAddress() + ": " + getRequestCount() + " requests in " + getConnectedTimeMs() + "ms ("
+                + String.format("%.2f", getRequestRate()) + "/s), latency mean " + getMeanLatencyMicros()
+                + "us, max " + getMaxLatencyMicros() + "us; " + mNotificationQueue;
+    }
+}
@@ -0,0 +1,279 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattService;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+
+import tonyg.example.com.examplebleperipheral.ble.callbacks.BleGattProfileCallback;
+import tonyg.example.com.examplebleperipheral.utilities.BleUuid;
+
+/**
+ * The Services a Peripheral serves, described once with a Builder.
+ *
+ * The Builder checks the layout before any Service reaches the GATT server, and builds the
+ * BleAttributeTable and the lookups by UUID that requests are answered from.  A Characteristic
+ * can have a fixed value or a BleValueProvider.  Android only
+ * adds one Service at a time, so addServices() adds the next Service from onServiceAdded
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleGattProfile {
+    private static final String TAG = BleGattProfile.class.getSimpleName();
+
+    public static final UUID CLIENT_CHARACTERISTIC_CONFIGURATION_UUID = BleUuid.toUuid(0x2902);
+
+    private final List<BluetoothGattService> mServices;
+    private final Map<UUID, BluetoothGattCharacteristic> mCharacteristics;
+    private final BleAttributeTable mAttributeTable;
+    private final Map<UUID, BleValueProvider> mValueProviders;
+
+    // Services are added to the GATT server one at a time
+    private int mNextServiceIndex;
+    private BleGattProfileCallback mCallback;
+
+    private BleGattProfile(List<BluetoothGattService> services, Map<UUID, BluetoothGattCharacteristic> characteristics,
+                           BleAttributeTable attributeTable, Map<UUID, BleValueProvider> valueProviders) {
+        mServices = Collections.unmodifiableList(services);
+        mCharacteristics = characteristics;
+        mAttributeTable = attributeTable;
+        mValueProviders = Collections.unmodifiableMap(valueProviders);
+    }
+
+    public List<BluetoothGattService> getServices() {
+        return mServices;
+    }
+
+    /**
+     * @return the values served for the profile
+     */
+    public BleAttributeTable getAttributeTable() {
+        return mAttributeTable;
+    }
+
+    /**
+     * @param characteristicUuid the UUID of a Characteristic
+     * @return the Characteristic, or null if the profile does not have it
+     */
+    public BluetoothGattCharacteristic getCharacteristic(UUID characteristicUuid) {
+        return mCharacteristics.get(characteristicUuid);
+    }
+
+    /**
+     * @return the value providers by Characteristic UUID, with their cache hit rates
+     */
+    public Map<UUID, BleValueProvider> getValueProviders() {
+        return mValueProviders;
+    }
+
+    /**
+     * Start sampling every sampled value
+     *
+     * @param scheduler the scheduler to sample on
+     */
+    public void startSampling(ScheduledExecutorService scheduler) {
+        for (BleValueProvider valueProvider : mValueProviders.values()) {
+            if (valueProvider instanceof BleSampledValueProvider) {
+                ((BleSampledValueProvider) valueProvider).start(scheduler);
+            }
+        }
+    }
+
+    /**
+     * Stop sampling every sampled value
+     */
+    public void stopSampling() {
+        for (BleValueProvider valueProvider : mValueProviders.values()) {
+            if (valueProvider instanceof BleSampledValueProvider) {
+                ((BleSampledValueProvider) valueProvider).stop();
+            }
+        }
+    }
+
+    /**
+     * Add every Service to a GATT server, one after the other
+     *
+     * @param gattServer a newly opened GATT server.  Its callback must pass onServiceAdded to this profile
+     * @param callback told when every Service is added, or when one fails
+     */
+    public synchronized void addServices(BluetoothGattServer gattServer, BleGattProfileCallback callback) {
+        mCallback = callback;
+        mNextServiceIndex = 0;
+        addNextService(gattServer);
+    }
+
+    /**
+     * A Service was added, so the next one can be
+     *
+     * @param gattServer the GATT server
+     * @param status GATT_SUCCESS if the Service was added
+     * @param service the Service
+     */
+    public synchronized void onServiceAdded(BluetoothGattServer gattServer, int status, BluetoothGattService service) {
+        if (mCallback == null) {
+            return;
+        }
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            failed(service, status);
+            return;
+        }
+        addNextService(gattServer);
+    }
+
+    private void addNextService(BluetoothGattServer gattServer) {
+        if (mNextServiceIndex == mServices.size()) {
+            BleGattProfileCallback callback = mCallback;
+            mCallback = null;
+            callback.onServicesAdded();
+            return;
+        }
+        BluetoothGattService service = mServices.get(mNextServiceIndex++);
+        if (!gattServer.addService(service)) {
+            failed(service, BluetoothGatt.GATT_FAILURE);
+        }
+    }
+
+    private void failed(BluetoothGattService service, int status) {
+        Log.e(TAG, "Could not add service " + service.getUuid() + ", status " + status);
+        BleGattProfileCallback callback = mCallback;
+        mCallback = null;
+        callback.onServiceAddFailed(service, status);
+    }
+
+
+    /**
+     * Describe a GATT profile, Service by Service
+     */
+    public static class Builder {
+        private final List<BluetoothGattService> mServices = new ArrayList<>();
+        private final Map<UUID, BluetoothGattCharacteristic> mCharacteristics = new HashMap<>();
+        private final Set<UUID> mServiceUuids = new HashSet<>();
+        private final Set<UUID> mServiceCharacteristicUuids = new HashSet<>();
+        private final Map<BluetoothGattCharacteristic, BleValueProvider> mCharacteristicValueProviders = new HashMap<>();
+        private final Map<UUID, BleValueProvider> mValueProviders = new LinkedHashMap<>();
+        private BluetoothGattService mService;
+
+        /**
+         * Start a primary Service.  Characteristics added next belong to it
+         *
+         * @param serviceUuid the UUID of the Service
+         * @return this Builder
+         * @throws IllegalArgumentException if the profile already has the Service
+         */
+        public Builder addService(UUID serviceUuid) {
+            if (!mServiceUuids.add(serviceUuid)) {
+                throw new IllegalArgumentException("Service " + serviceUuid + " is already in the profile");
+            }
+            mService = new BluetoothGattService(serviceUuid, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+            mServices.add(mService);
+            mServiceCharacteristicUuids.clear();
+            return this;
+        }
+
+        /**
+         * Add a Characteristic to the last Service.
+         * Characteristics that notify or indicate get a Client Characteristic Configuration Descriptor
+         *
+         * @param characteristicUuid the UUID of the Characteristic
+         * @param properties the PROPERTY_ values of BluetoothGattCharacteristic
+         * @param permissions the PERMISSION_ values of BluetoothGattCharacteristic
+         * @param value the encoded initial value, or null
+         * @return this Builder
+         * @throws IllegalArgumentException if the Characteristic does not fit the profile
+         */
+        public Builder addCharacteristic(UUID characteristicUuid, int properties, int permissions, byte[] value) {
+            if (mService == null) {
+                throw new IllegalArgumentException("Characteristic " + characteristicUuid + " is not in a Service");
+            }
+            if (!mServiceCharacteristicUuids.add(characteristicUuid)) {
+                throw new IllegalArgumentException("Characteristic " + characteristicUuid + " is already in Service " + mService.getUuid());
+            }
+            boolean readable = (properties & BluetoothGattCharacteristic.PROPERTY_READ) != 0;
+            boolean writable = (properties & (BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE
+                    | BluetoothGattCharacteristic.PROPERTY_SIGNED_WRITE)) != 0;
+            if (readable != ((permissions & BleAttributeTable.READ_PERMISSIONS) != 0)) {
+                throw new IllegalArgumentException("Characteristic " + characteristicUuid + " needs PROPERTY_READ and a read permission together");
+            }
+            if (writable != ((permissions & BleAttributeTable.WRITE_PERMISSIONS) != 0)) {
+                throw new IllegalArgumentException("Characteristic " + characteristicUuid + " needs a write property and a write permission together");
+            }
+            if (value != null && value.length > BleAttributeTable.MAX_ATTRIBUTE_LENGTH) {
+                throw new IllegalArgumentException("Value of characteristic " + characteristicUuid + " is longer than " + BleAttributeTable.MAX_ATTRIBUTE_LENGTH + " bytes");
+            }
+
+            BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(characteristicUuid, properties, permissions);
+            if ((properties & (BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE)) != 0) {
+                // Centrals subscribe through this Descriptor
+                characteristic.addDescriptor(new BluetoothGattDescriptor(
+                        CLIENT_CHARACTERISTIC_CONFIGURATION_UUID,
+                        BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+            }
+            if (value != null) {
+                characteristic.setValue(value);
+            }
+            mService.addCharacteristic(characteristic);
+            if (!mCharacteristics.containsKey(characteristicUuid)) {
+                mCharacteristics.put(characteristicUuid, characteristic); // the first one wins
+            }
+            return this;
+        }
+
+        /**
+         * Add a Characteristic whose value comes from a provider to the last Service
+         *
+         * @param characteristicUuid the UUID of the Characteristic
+         * @param properties the PROPERTY_ values of BluetoothGattCharacteristic
+         * @param permissions the PERMISSION_ values of BluetoothGattCharacteristic
+         * @param valueProvider where the value comes from
+         * @return this Builder
+         * @throws IllegalArgumentException if the Characteristic does not fit the profile
+         */
+        public Builder addDynamicCharacteristic(UUID characteristicUuid, int properties, int permissions, BleValueProvider valueProvider) {
+            if ((permissions & BleAttributeTable.WRITE_PERMISSIONS) != 0) {
+                throw new IllegalArgumentException("Characteristic " + characteristicUuid + " gets its value from a provider, so it can not be written");
+            }
+            addCharacteristic(characteristicUuid, properties, permissions, null);
+            mCharacteristicValueProviders.put(mService.getCharacteristic(characteristicUuid), valueProvider);
+            if (!mValueProviders.containsKey(characteristicUuid)) {
+                mValueProviders.put(characteristicUuid, valueProvider);
+            }
+            return this;
+        }
+
+        /**
+         * @return the profile
+         * @throws IllegalArgumentException if the profile is empty, or a Service has no Characteristics
+         */
+        public BleGattProfile build() {
+            if (mServices.isEmpty()) {
+                throw new IllegalArgumentException("The profile has no Services");
+            }
+            BleAttributeTable attributeTable = new BleAttributeTable();
+            for (BluetoothGattService service : mServices) {
+                if (service.getCharacteristics().isEmpty()) {
+                    throw new IllegalArgumentException("Service " + service.getUuid() + " has no Characteristics");
+                }
+                attributeTable.addService(service);
+            }
+            for (Map.Entry<BluetoothGattCharacteristic, BleValueProvider> entry : mCharacteristicValueProviders.entrySet()) {
+                attributeTable.get(entry.getKey()).setValueProvider(entry.getValue());
+            }
+            return new BleGattProfile(new ArrayList<>(mServices), new HashMap<>(mCharacteristics), attributeTable,
+                    new LinkedHashMap<>(mValueProviders));
+        }
+    }
+}
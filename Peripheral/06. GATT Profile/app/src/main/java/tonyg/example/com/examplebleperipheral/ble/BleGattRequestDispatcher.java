@@ -0,0 +1,222 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattServer;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answer read and write requests from Centrals out of a BleAttributeTable.
+ *
+ * Android's GATT server does not answer requests by itself: every request needs a
+ * sendResponse, or the Central times out.  Reads are answered from the offset the Central
+ * asks for, so values longer than the MTU are read in pieces.  Requests are handled in the
+ * BleCentralSession of the Central that sent them: prepared writes are held in the session
+ * until the Central executes or cancels them, subscriptions are kept there, and every answer is timed there
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleGattRequestDispatcher {
+    private static final String TAG = BleGattRequestDispatcher.class.getSimpleName();
+
+    // the ATT error for a prepared write that does not fit in the queue, which BluetoothGatt has no name for
+    private static final int GATT_PREPARE_QUEUE_FULL = 0x09;
+
+    /**
+     * A write that waits for onExecuteWrite
+     */
+    static class PreparedWrite {
+        final BleAttributeTable.Attribute mAttribute;
+        final int mOffset;
+        final byte[] mValue;
+
+        PreparedWrite(BleAttributeTable.Attribute attribute, int offset, byte[] value) {
+            mAttribute = attribute;
+            mOffset = offset;
+            mValue = value;
+        }
+    }
+
+    private final BleAttributeTable mAttributeTable;
+    private volatile BluetoothGattServer mGattServer;
+
+    /**
+     * @param attributeTable the values to serve
+     */
+    public BleGattRequestDispatcher(BleAttributeTable attributeTable) {
+        mAttributeTable = attributeTable;
+    }
+
+    /**
+     * @return the values being served
+     */
+    public BleAttributeTable getAttributeTable() {
+        return mAttributeTable;
+    }
+
+    /**
+     * @param gattServer the server to send responses through
+     */
+    public void setGattServer(BluetoothGattServer gattServer) {
+        mGattServer = gattServer;
+    }
+
+    /**
+     * Answer a read
+     *
+     * @param session the Central
+     * @param requestId the request to answer
+     * @param offset where the Central wants the value from
+     * @param attribute what the Central is reading, or null if it is not served
+     */
+    public void onReadRequest(BleCentralSession session, int requestId, int offset, BleAttributeTable.Attribute attribute) {
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        BluetoothDevice device = session.getDevice();
+        if (attribute == null) {
+            sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, offset, null);
+        } else if (!attribute.isReadable()) {
+            sendResponse(device, requestId, BluetoothGatt.GATT_READ_NOT_PERMITTED, offset, null);
+        } else {
+            byte[] value = attribute.getValue(offset);
+            if (value == null) {
+                sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+            } else {
+                sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
+            }
+        }
+        session.onRequestHandled(SystemClock.elapsedRealtimeNanos() - startTime);
+    }
+
+    /**
+     * Answer a write, or hold it until it is executed
+     *
+     * @param session the Central
+     * @param requestId the request to answer
+     * @param attribute what the Central is writing, or null if it is not served
+     * @param preparedWrite <b>true</b> if this is part of a long or reliable write
+     * @param responseNeeded <b>false</b> for writes without response
+     * @param offset where the data goes
+     * @param value the data
+     */
+    public void onWriteRequest(BleCentralSession session, int requestId, BleAttributeTable.Attribute attribute,
+                               boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        int status;
+        if (attribute == null) {
+            status = BluetoothGatt.GATT_FAILURE;
+        } else if (!attribute.isWritable()) {
+            status = BluetoothGatt.GATT_WRITE_NOT_PERMITTED;
+        } else if (preparedWrite) {
+            status = session.addPreparedWrite(new PreparedWrite(attribute, offset, value))
+                    ? BluetoothGatt.GATT_SUCCESS : GATT_PREPARE_QUEUE_FULL;
+        } else if (attribute.setValue(offset, value)) {
+            status = BluetoothGatt.GATT_SUCCESS;
+        } else {
+            status = offset > attribute.getValue().length ? BluetoothGatt.GATT_INVALID_OFFSET : BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+        }
+        if (responseNeeded) {
+            // a prepared write is acknowledged by echoing the data back
+            sendResponse(session.getDevice(), requestId, status, offset, preparedWrite ? value : null);
+        }
+        session.onRequestHandled(SystemClock.elapsedRealtimeNanos() - startTime);
+    }
+
+    /**
+     * Answer a read of a Client Characteristic Configuration Descriptor, which is different for every Central
+     *
+     * @param session the Central
+     * @param requestId the request to answer
+     * @param offset where the Central wants the value from
+     * @param characteristic the Characteristic the Descriptor configures
+     */
+    public void onSubscriptionReadRequest(BleCentralSession session, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        byte[] value = session.getClientCharacteristicConfiguration(characteristic);
+        if (offset > value.length) {
+            sendResponse(session.getDevice(), requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+        } else {
+            sendResponse(session.getDevice(), requestId, BluetoothGatt.GATT_SUCCESS, offset, Arrays.copyOfRange(value, offset, value.length));
+        }
+        session.onRequestHandled(SystemClock.elapsedRealtimeNanos() - startTime);
+    }
+
+    /**
+     * Subscribe a Central to, or unsubscribe it from, a Characteristic
+     *
+     * @param session the Central
+     * @param requestId the request to answer
+     * @param characteristic the Characteristic the Client Characteristic Configuration Descriptor configures
+     * @param responseNeeded <b>false</b> for writes without response
+     * @param offset where the data goes
+     * @param value the Client Characteristic Configuration
+     */
+    public void onSubscriptionWriteRequest(BleCentralSession session, int requestId, BluetoothGattCharacteristic characteristic,
+                                           boolean responseNeeded, int offset, byte[] value) {
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        int status;
+        if (offset != 0) {
+            status = BluetoothGatt.GATT_INVALID_OFFSET;
+        } else if (value == null || value.length != 2) {
+            status = BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+        } else if (((value[0] & 0x01) != 0 && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) == 0)
+                || ((value[0] & 0x02) != 0 && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) == 0)) {
+            status = BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED;
+        } else {
+            session.setClientCharacteristicConfiguration(characteristic, value);
+            status = BluetoothGatt.GATT_SUCCESS;
+        }
+        if (responseNeeded) {
+            sendResponse(session.getDevice(), requestId, status, offset, null);
+        }
+        session.onRequestHandled(SystemClock.elapsedRealtimeNanos() - startTime);
+    }
+
+    /**
+     * Apply or drop the prepared writes of a Central
+     *
+     * @param session the Central
+     * @param requestId the request to answer
+     * @param execute <b>true</b> to apply the writes, <b>false</b> to cancel them
+     */
+    public void onExecuteWrite(BleCentralSession session, int requestId, boolean execute) {
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        List<PreparedWrite> preparedWrites = session.takePreparedWrites();
+        int status = BluetoothGatt.GATT_SUCCESS;
+        if (execute) {
+            // write every value aside first, so that either every write is applied or none is
+            Map<BleAttributeTable.Attribute, byte[]> newValues = new LinkedHashMap<>();
+            for (PreparedWrite preparedWrite : preparedWrites) {
+                byte[] value = newValues.containsKey(preparedWrite.mAttribute)
+                        ? newValues.get(preparedWrite.mAttribute) : preparedWrite.mAttribute.getValue();
+                byte[] newValue = BleAttributeTable.Attribute.write(value, preparedWrite.mOffset, preparedWrite.mValue);
+                if (newValue == null) {
+                    status = preparedWrite.mOffset > value.length ? BluetoothGatt.GATT_INVALID_OFFSET : BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+                    break;
+                }
+                newValues.put(preparedWrite.mAttribute, newValue);
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                for (Map.Entry<BleAttributeTable.Attribute, byte[]> entry : newValues.entrySet()) {
+                    entry.getKey().setValue(entry.getValue());
+                }
+            }
+        }
+        sendResponse(session.getDevice(), requestId, status, 0, null);
+        session.onRequestHandled(SystemClock.elapsedRealtimeNanos() - startTime);
+    }
+
+    private void sendResponse(BluetoothDevice device, int requestId, int status, int offset, byte[] value) {
+        BluetoothGattServer gattServer = mGattServer;
+        if (gattServer == null || !gattServer.sendResponse(device, requestId, status, offset, value)) {
+            Log.e(TAG, "Could not respond to request " + requestId + " from " + device.getAddress());
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.AdvertiseCallback;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.util.Log;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import tonyg.example.com.examplebleperipheral.ble.callbacks.BleAdvertiserCallback;
+
+/**
+ * Advertises with the legacy BluetoothLeAdvertiser, for controllers without extended advertising.
+ *
+ * A legacy advertisement can not change while it is on the air, so new data restarts it.
+ * There is no periodic advertising either, so periodic data takes turns on the air with the
+ * advertising data, switching on the shared BleScheduler
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleLegacyAdvertiser extends BleAdvertiser {
+    private static final String TAG = BleLegacyAdvertiser.class.getSimpleName();
+
+    /** How long the advertising data or the periodic data stays on the air before the other takes its turn **/
+    public static final long ROTATION_PERIOD_MS = 1000;
+
+    private final BluetoothLeAdvertiser mBluetoothAdvertiser;
+
+    private boolean mAdvertising = false;
+    private boolean mStartReported = false;
+    private boolean mConnectable;
+    private AdvertiseData mAdvertiseData;
+    private AdvertiseData mScanResponse;
+    private AdvertiseData mPeriodicData;
+
+    // taking turns between the advertising data and the periodic data
+    private boolean mPeriodicDataOnAir = false;
+    private ScheduledFuture<?> mRotation;
+
+    public BleLegacyAdvertiser(BluetoothAdapter bluetoothAdapter, BleAdvertiserCallback callback) {
+        super(bluetoothAdapter, callback);
+        mBluetoothAdvertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
+    }
+
+    @Override
+    public boolean isExtended() {
+        return false;
+    }
+
+    @Override
+    public boolean isPeriodicAdvertisingSupported() {
+        return false;
+    }
+
+    @Override
+    protected synchronized void startAdvertising(boolean connectable, AdvertiseData advertiseData, AdvertiseData scanResponse, AdvertiseData periodicData) {
+        mConnectable = connectable;
+        mAdvertiseData = advertiseData;
+        mScanResponse = scanResponse;
+        mPeriodicData = periodicData;
+        mAdvertising = true;
+        mStartReported = false;
+        mPeriodicDataOnAir = false;
+        startLegacyAdvertising();
+        updateRotation();
+    }
+
+    @Override
+    public synchronized void setAdvertiseData(AdvertiseData advertiseData) {
+        mAdvertiseData = advertiseData;
+        if (mAdvertising && !mPeriodicDataOnAir) {
+            restart();
+        }
+    }
+
+    @Override
+    public synchronized void setPeriodicData(AdvertiseData periodicData) {
+        mPeriodicData = periodicData;
+        if (!mAdvertising) {
+            return;
+        }
+        if (mPeriodicDataOnAir) {
+            mPeriodicDataOnAir = periodicData != null;
+            restart();
+        }
+        updateRotation();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!mAdvertising) {
+            return;
+        }
+        mAdvertising = false;
+        stopRotation();
+        // with the radio off the advertisement is already gone, and asking to stop it throws
+        if (mBluetoothAdapter.isEnabled()) {
+            mBluetoothAdvertiser.stopAdvertising(mAdvertiseCallback);
+        }
+    }
+
+    private void startLegacyAdvertising() {
+        AdvertiseSettings advertiseSettings = new AdvertiseSettings.Builder()
+                .setAdvertiseMode(mAdvertiseMode)
+                .setTxPowerLevel(mTxPowerLevel)
+                .setConnectable(mConnectable)
+                .build();
+        AdvertiseData advertiseData = mPeriodicDataOnAir ? mPeriodicData : mAdvertiseData;
+        if (mScanResponse != null) {
+            mBluetoothAdvertiser.startAdvertising(advertiseSettings, advertiseData, mScanResponse, mAdvertiseCallback);
+        } else {
+            mBluetoothAdvertiser.startAdvertising(advertiseSettings, advertiseData, mAdvertiseCallback);
+        }
+    }
+
+    private void restart() {
+        if (!mBluetoothAdapter.isEnabled()) {
+            return; // stop() follows when the radio turns off
+        }
+        mBluetoothAdvertiser.stopAdvertising(mAdvertiseCallback);
+        startLegacyAdvertising();
+    }
+
+    /**
+     * Take turns while there is periodic data, and stop taking turns when there is not
+     */
+    private void updateRotation() {
+        if (mPeriodicData != null && mRotation == null) {
+            ScheduledExecutorService scheduler = BleScheduler.acquire();
+            mRotation = scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    rotate();
+                }
+            }, ROTATION_PERIOD_MS, ROTATION_PERIOD_MS, TimeUnit.MILLISECONDS);
+        } else if (mPeriodicData == null && mRotation != null) {
+            stopRotation();
+        }
+    }
+
+    private void stopRotation() {
+        if (mRotation != null) {
+            mRotation.cancel(false);
+            mRotation = null;
+            BleScheduler.release();
+        }
+    }
+
+    private synchronized void rotate() {
+        if (!mAdvertising || mPeriodicData == null) {
+            return;
+        }
+        mPeriodicDataOnAir = !mPeriodicDataOnAir;
+        restart();
+    }
+
+
+    private final AdvertiseCallback mAdvertiseCallback = new AdvertiseCallback() {
+        @Override
+        public void onStartSuccess(AdvertiseSettings settingsInEffect) {
+            super.onStartSuccess(settingsInEffect);
+            // every restart succeeds again, but the advertisement only started once
+            synchronized (BleLegacyAdvertiser.this) {
+                if (mStartReported || !mAdvertising) {
+                    return;
+                }
+                mStartReported = true;
+            }
+            mCallback.onAdvertisingStarted();
+        }
+
+        @Override
+        public void onStartFailure(int errorCode) {
+            super.onStartFailure(errorCode);
+            Log.e(TAG, "Legacy advertising failed with error " + errorCode);
+            mCallback.onAdvertisingFailed(errorCode);
+        }
+    };
+}
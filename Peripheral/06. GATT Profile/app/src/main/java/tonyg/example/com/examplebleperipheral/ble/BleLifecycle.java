@@ -0,0 +1,114 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Open and close the resources a Peripheral holds while it runs, such as its GATT server.
+ *
+ * start() opens every resource in order and stop() closes them in reverse, so a Peripheral
+ * can be started and stopped any number of times without leaking any of them.  If a resource
+ * fails to open, the ones already open are closed again.  Once close() is called the
+ * lifecycle can not be started again
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleLifecycle {
+    /** Lifecycle states **/
+    public enum State {
+        STOPPED,
+        STARTED,
+        CLOSED
+    }
+
+    /**
+     * Something that is held only while started
+     */
+    public static abstract class Resource {
+        /**
+         * Acquire the resource
+         *
+         * @throws Exception if the resource is not available
+         */
+        public abstract void open() throws Exception;
+
+        /**
+         * Release the resource.  Called once for every successful open()
+         */
+        public abstract void close();
+    }
+
+    private final List<Resource> mResources;
+    private final List<Resource> mOpenResources = new ArrayList<>();
+    private State mState = State.STOPPED;
+
+    /**
+     * @param resources the resources, in the order they are opened
+     */
+    public BleLifecycle(Resource... resources) {
+        mResources = Arrays.asList(resources);
+    }
+
+    /**
+     * Open every resource.  Does nothing if already started
+     *
+     * @throws Exception if a resource could not be opened.  Nothing is left open
+     * @throws IllegalStateException if the lifecycle is closed
+     */
+    public synchronized void start() throws Exception {
+        if (mState == State.CLOSED) {
+            throw new IllegalStateException("Closed");
+        }
+        if (mState == State.STARTED) {
+            return;
+        }
+        try {
+            for (Resource resource : mResources) {
+                resource.open();
+                mOpenResources.add(resource);
+            }
+        } catch (Exception e) {
+            closeOpenResources();
+            throw e;
+        }
+        mState = State.STARTED;
+    }
+
+    /**
+     * Close every resource.  Does nothing unless started
+     */
+    public synchronized void stop() {
+        if (mState == State.STARTED) {
+            closeOpenResources();
+            mState = State.STOPPED;
+        }
+    }
+
+    /**
+     * Close every resource for good
+     */
+    public synchronized void close() {
+        stop();
+        mState = State.CLOSED;
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * @return how many resources are open
+     */
+    public synchronized int getOpenResourceCount() {
+        return mOpenResources.size();
+    }
+
+    private void closeOpenResources() {
+        for (int i = mOpenResources.size() - 1; i >= 0; i--) {
+            mOpenResources.get(i).close();
+        }
+        mOpenResources.clear();
+    }
+}
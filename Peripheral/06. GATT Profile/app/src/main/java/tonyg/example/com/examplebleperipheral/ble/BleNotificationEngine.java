@@ -0,0 +1,132 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattServer;
+import android.util.Log;
+
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Send Characteristic changes to every subscribed Central, as fast as each one can take them.
+ *
+ * Every Central has its own BleNotificationQueue, so a slow Central never holds up a fast
+ * one.  The next notification to a Central goes out as soon as onNotificationSent reports
+ * the last one, or once the last one times out.  A notification Android refuses to send is
+ * tried again after a short delay
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleNotificationEngine {
+    private static final String TAG = BleNotificationEngine.class.getSimpleName();
+
+    // how long to wait for onNotificationSent before the notification counts as failed
+    private static final long NOTIFICATION_TIMEOUT_MS = 2000;
+    // how long to wait before trying a refused notification again
+    private static final long RETRY_DELAY_MS = 50;
+
+    private volatile BluetoothGattServer mGattServer;
+    private volatile ScheduledExecutorService mScheduler;
+
+    /**
+     * @param gattServer the server to send notifications through, or null
+     * @param scheduler the scheduler for timeouts and retries, or null
+     */
+    public void setGattServer(BluetoothGattServer gattServer, ScheduledExecutorService scheduler) {
+        mGattServer = gattServer;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Send a new value to every Central that subscribed to the Characteristic
+     *
+     * @param sessions the connected Centrals
+     * @param characteristic the Characteristic
+     * @param value the new value, which is kept, not copied
+     */
+    public void notifySubscribers(Iterable<BleCentralSession> sessions, BluetoothGattCharacteristic characteristic, byte[] value) {
+        for (BleCentralSession session : sessions) {
+            if (session.isSubscribed(characteristic)) {
+                session.getNotificationQueue().offer(characteristic, value);
+                sendNext(session);
+            }
+        }
+    }
+
+    /**
+     * The last notification to a Central was sent, so the next one can go
+     *
+     * @param session the Central
+     * @param status GATT_SUCCESS if the notification was sent
+     */
+    public void onNotificationSent(BleCentralSession session, int status) {
+        if (!session.getNotificationQueue().onSentReported(status == BluetoothGatt.GATT_SUCCESS)) {
+            Log.w(TAG, "Ignored a late notification report from " + session.getDevice().getAddress());
+        }
+        sendNext(session);
+    }
+
+    /**
+     * The Central disconnected, so nothing more is sent to it
+     *
+     * @param session the Central
+     */
+    public void onDisconnected(BleCentralSession session) {
+        session.getNotificationQueue().clear();
+    }
+
+    /**
+     * Send the next waiting notification to a Central, unless one is on its way already
+     */
+    private void sendNext(final BleCentralSession session) {
+        BleNotificationQueue queue = session.getNotificationQueue();
+        Map.Entry<BluetoothGattCharacteristic, byte[]> next = queue.poll();
+        if (next == null) {
+            return;
+        }
+        final long inFlightId = queue.getInFlightId();
+        BluetoothGattCharacteristic characteristic = next.getKey();
+        // indicate to a Central that asked for indications, so it confirms each value
+        boolean confirm = (session.getClientCharacteristicConfiguration(characteristic)[0] & 0x02) != 0;
+        BluetoothGattServer gattServer = mGattServer;
+        boolean sent = false;
+        if (gattServer != null) {
+            // the notification carries the Characteristic's own value, so no other Central's value may slip in between
+            synchronized (characteristic) {
+                characteristic.setValue(next.getValue());
+                sent = gattServer.notifyCharacteristicChanged(session.getDevice(), characteristic, confirm);
+            }
+        }
+        if (sent) {
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (session.getNotificationQueue().onTimeout(inFlightId)) {
+                        Log.w(TAG, "Notification to " + session.getDevice().getAddress() + " timed out");
+                        sendNext(session);
+                    }
+                }
+            }, NOTIFICATION_TIMEOUT_MS);
+        } else {
+            // no onNotificationSent will come.  The value waits to be tried again
+            Log.w(TAG, "Could not notify " + session.getDevice().getAddress());
+            queue.onSent(false);
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    sendNext(session);
+                }
+            }, RETRY_DELAY_MS);
+        }
+    }
+
+    private void schedule(Runnable runnable, long delayMs) {
+        ScheduledExecutorService scheduler = mScheduler;
+        if (scheduler != null) {
+            scheduler.schedule(runnable, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The notifications waiting to be sent to one Central.
+ *
+ * Android sends one notification to a Central at a time, and reports each one through
+ * onNotificationSent.  While one is on its way, new values wait here.  Only the latest
+ * value of each Characteristic waits: a newer value replaces an older one that has not been
+ * sent yet, so a slow Central gets fresh values instead of a growing backlog.
+ *
+ * The value on its way is kept until it is reported.  If it fails, it waits again, unless a
+ * newer value replaced it meanwhile, and is given up after MAX_ATTEMPTS.  A value that is
+ * never reported can be timed out, so that it does not hold up the queue for good
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleNotificationQueue {
+    /** How many times a value is tried before it is given up **/
+    public static final int MAX_ATTEMPTS = 3;
+
+    private LinkedHashMap<BluetoothGattCharacteristic, byte[]> mPending = new LinkedHashMap<>();
+    // attempts made so far at values waiting to be tried again
+    private final Map<BluetoothGattCharacteristic, Integer> mAttempts = new HashMap<>();
+    private boolean mInFlight = false;
+    private BluetoothGattCharacteristic mInFlightCharacteristic;
+    private byte[] mInFlightValue;
+    private int mInFlightAttempts;
+    // tells apart the sends of the same value
+    private long mInFlightId;
+    // the send that timed out while its report may still come, or 0
+    private long mLateReportId;
+    // the send whose report may have been taken for a late one, or 0
+    private long mIgnoredReportId;
+
+    private long mSentCount, mSentBytes, mCoalescedCount, mFailedCount;
+    private int mMaxDepth;
+    private long mFirstSentAt;
+
+    /**
+     * Queue a value, replacing any value of the same Characteristic that is still waiting
+     *
+     * @param characteristic the Characteristic
+     * @param value the value to send
+     */
+    synchronized void offer(BluetoothGattCharacteristic characteristic, byte[] value) {
+        if (mPending.put(characteristic, value) != null) {
+            mCoalescedCount++;
+        }
+        // a new value gets its own attempts
+        mAttempts.remove(characteristic);
+        mMaxDepth = Math.max(mMaxDepth, mPending.size());
+    }
+
+    /**
+     * Take the next value to send, unless one is already on its way
+     *
+     * @return the Characteristic and its value, or null if there is nothing to send now
+     */
+    synchronized Map.Entry<BluetoothGattCharacteristic, byte[]> poll() {
+        if (mInFlight || mPending.isEmpty()) {
+            return null;
+        }
+        Iterator<Map.Entry<BluetoothGattCharacteristic, byte[]>> iterator = mPending.entrySet().iterator();
+        Map.Entry<BluetoothGattCharacteristic, byte[]> next = iterator.next();
+        iterator.remove();
+        Integer attempts = mAttempts.remove(next.getKey());
+        mInFlight = true;
+        mInFlightCharacteristic = next.getKey();
+        mInFlightValue = next.getValue();
+        mInFlightAttempts = (attempts != null ? attempts : 0) + 1;
+        mInFlightId++;
+        if (mFirstSentAt == 0) {
+            mFirstSentAt = SystemClock.elapsedRealtime();
+        }
+        return next;
+    }
+
+    /**
+     * The value on its way was sent, or failed.  A failed value waits to be tried again,
+     * ahead of the others, unless a newer value replaced it or it was tried MAX_ATTEMPTS times
+     *
+     * @param success <b>true</b> if the Central got it
+     */
+    synchronized void onSent(boolean success) {
+        if (!mInFlight) {
+            return;
+        }
+        mInFlight = false;
+        if (success) {
+            mSentCount++;
+            mSentBytes += mInFlightValue.length;
+        } else if (mInFlightAttempts < MAX_ATTEMPTS && !mPending.containsKey(mInFlightCharacteristic)) {
+            LinkedHashMap<BluetoothGattCharacteristic, byte[]> pending = new LinkedHashMap<>();
+            pending.put(mInFlightCharacteristic, mInFlightValue);
+            pending.putAll(mPending);
+            mPending = pending;
+            mAttempts.put(mInFlightCharacteristic, mInFlightAttempts);
+        } else {
+            mFailedCount++;
+        }
+        mInFlightCharacteristic = null;
+        mInFlightValue = null;
+    }
+
+    /**
+     * onNotificationSent reported a send.  The report does not say which send it is for, so
+     * after a send times out, the next report is taken to be its late one and ignored
+     *
+     * @param success <b>true</b> if the Central got it
+     * @return <b>true</b> if the report was for the value on its way
+     */
+    synchronized boolean onSentReported(boolean success) {
+        if (mLateReportId != 0) {
+            mLateReportId = 0;
+            if (mInFlight) {
+                mIgnoredReportId = mInFlightId;
+            }
+            return false;
+        }
+        onSent(success);
+        return true;
+    }
+
+    /**
+     * @return the send of the value on its way, to time it out with
+     */
+    synchronized long getInFlightId() {
+        return mInFlightId;
+    }
+
+    /**
+     * Count a send as failed if it is still on its way
+     *
+     * @param inFlightId the send, from getInFlightId()
+     * @return <b>true</b> if it timed out, so the next value can go
+     */
+    synchronized boolean onTimeout(long inFlightId) {
+        if (!mInFlight || inFlightId != mInFlightId) {
+            return false;
+        }
+        // a send whose report was ignored has had its report, so no late one is coming
+        mLateReportId = inFlightId != mIgnoredReportId ? inFlightId : 0;
+        onSent(false);
+        return true;
+    }
+
+    /**
+     * Drop every waiting value and forget the one on its way, such as when the Central disconnects
+     */
+    synchronized void clear() {
+        mPending.clear();
+        mLateReportId = 0;
+        mAttempts.clear();
+        mInFlight = false;
+        mInFlightCharacteristic = null;
+        mInFlightValue = null;
+    }
+
+    /**
+     * @return <b>true</b> if a value is on its way
+     */
+    public synchronized boolean isInFlight() {
+        return mInFlight;
+    }
+
+    /**
+     * @return how many values are waiting
+     */
+    public synchronized int getDepth() {
+        return mPending.size();
+    }
+
+    /**
+     * @return the most values that have waited at once
+     */
+    public synchronized int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * @return how many notifications were sent
+     */
+    public synchronized long getSentCount() {
+        return mSentCount;
+    }
+
+    /**
+     * @return how many values were replaced by newer ones before they were sent
+     */
+    public synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * @return how many notifications could not be sent
+     */
+    public synchronized long getFailedCount() {
+        return mFailedCount;
+    }
+
+    /**
+     * @return bytes per second sent since the first notification
+     */
+    public synchronized double getThroughput() {
+        if (mFirstSentAt == 0) {
+            return 0;
+        }
+        long durationMs = Math.max(1, SystemClock.elapsedRealtime() - mFirstSentAt);
+        return mSentBytes * 1000.0 / durationMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mSentCount + " notifications, " + String.format("%.1f", getThroughput()) + " B/s, "
+                + mCoalescedCount + " coalesced, " + mFailedCount + " failed, depth " + mPending.size() + " (max " + mMaxDepth + ")";
+    }
+}
@@ -0,0 +1,62 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.util.Log;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A value that is sampled on a schedule instead of when it is read, such as a sensor
+ * that is cheap to poll but slow to answer.  Reads always get the latest sample.
+ * Sampling runs on the shared BleScheduler while the Peripheral is started
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public abstract class BleSampledValueProvider extends BleValueProvider {
+    private static final String TAG = BleSampledValueProvider.class.getSimpleName();
+
+    private final long mPeriodMs;
+    private ScheduledFuture<?> mSampling;
+
+    /**
+     * @param periodMs how often to take a sample
+     */
+    protected BleSampledValueProvider(long periodMs) {
+        super(CACHE_FOREVER);
+        mPeriodMs = periodMs;
+    }
+
+    /**
+     * Start sampling, beginning now.  Does nothing if already sampling
+     *
+     * @param scheduler the scheduler to sample on
+     */
+    public synchronized void start(ScheduledExecutorService scheduler) {
+        if (mSampling != null) {
+            return;
+        }
+        mSampling = scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    setValue(computeValue());
+                } catch (RuntimeException e) {
+                    // an exception would end the schedule, so skip this sample instead
+                    Log.e(TAG, "Could not take a sample: " + e.getMessage());
+                }
+            }
+        }, 0, mPeriodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop sampling.  The last sample is still served
+     */
+    public synchronized void stop() {
+        if (mSampling != null) {
+            mSampling.cancel(false);
+            mSampling = null;
+        }
+    }
+}
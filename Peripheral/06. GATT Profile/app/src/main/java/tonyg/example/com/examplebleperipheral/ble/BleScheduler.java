@@ -0,0 +1,63 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * One background thread for all periodic Peripheral work.
+ *
+ * Every user acquires the scheduler while it runs and releases it when it stops.
+ * The thread starts with the first user and ends with the last, so no timer threads
+ * are left behind however often a Peripheral is started and stopped
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleScheduler {
+    private static ScheduledExecutorService sExecutor;
+    private static int sUserCount = 0;
+
+    private BleScheduler() {
+    }
+
+    /**
+     * Start using the scheduler
+     *
+     * @return the shared scheduler.  Do not shut it down, release it instead
+     */
+    public static synchronized ScheduledExecutorService acquire() {
+        if (sUserCount++ == 0) {
+            sExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "BleScheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Stop using the scheduler.  The last user to release it stops its thread,
+     * cancelling anything that is still scheduled
+     */
+    public static synchronized void release() {
+        if (sUserCount == 0) {
+            throw new IllegalStateException("Released more often than acquired");
+        }
+        if (--sUserCount == 0) {
+            sExecutor.shutdownNow();
+            sExecutor = null;
+        }
+    }
+
+    /**
+     * @return how many users hold the scheduler
+     */
+    public static synchronized int getUserCount() {
+        return sUserCount;
+    }
+}
@@ -0,0 +1,123 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where the value of a Characteristic comes from.
+ *
+ * A provider computes its value when a Central reads it, and caches the encoded value for
+ * a time to live, so an expensive source such as BatteryManager is only asked when a read
+ * arrives and the cached value is stale.  A fixed value never expires, and a value pushed
+ * in with setValue() is fresh from that moment.  Two reads racing on a stale value may
+ * both compute it; the later one wins.  Cache hits and misses are counted
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public abstract class BleValueProvider {
+    /** Time to live for values that never go stale **/
+    public static final long CACHE_FOREVER = Long.MAX_VALUE;
+
+    private final long mTimeToLiveMs;
+    private volatile byte[] mValue;
+    private volatile long mUpdatedAt;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+
+    /**
+     * @param timeToLiveMs how long a computed value is served before it is computed again.  0 to compute on every read
+     */
+    protected BleValueProvider(long timeToLiveMs) {
+        mTimeToLiveMs = timeToLiveMs;
+    }
+
+    /**
+     * A value that never changes
+     *
+     * @param value the encoded value
+     * @return the provider
+     */
+    public static BleValueProvider fromValue(final byte[] value) {
+        BleValueProvider provider = new BleValueProvider(CACHE_FOREVER) {
+            @Override
+            protected byte[] computeValue() {
+                return value;
+            }
+        };
+        provider.setValue(value);
+        return provider;
+    }
+
+    /**
+     * Compute the value.  Called only when the cached value is stale
+     *
+     * @return the encoded value
+     */
+    protected abstract byte[] computeValue();
+
+    /**
+     * @return the value, computed again if the cached one is stale
+     */
+    public byte[] getValue() {
+        byte[] value = mValue;
+        if (value != null && SystemClock.elapsedRealtime() - mUpdatedAt < mTimeToLiveMs) {
+            mHitCount.incrementAndGet();
+            return value;
+        }
+        mMissCount.incrementAndGet();
+        value = computeValue();
+        setValue(value);
+        return value;
+    }
+
+    /**
+     * Get the value last served, even if it is stale, so that every part of a long read comes from the same value
+     *
+     * @return the cached value, or a new one if there is none
+     */
+    public byte[] getCachedValue() {
+        byte[] value = mValue;
+        return value != null ? value : getValue();
+    }
+
+    /**
+     * Replace the cached value, for example when the source reports a change
+     *
+     * @param value the encoded value, which is kept, not copied
+     */
+    public void setValue(byte[] value) {
+        mUpdatedAt = SystemClock.elapsedRealtime();
+        mValue = value;
+    }
+
+    /**
+     * @return how many reads were served from the cache
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return how many reads had to compute the value
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * @return the share of reads served from the cache, from 0 to 1
+     */
+    public double getHitRate() {
+        long hitCount = mHitCount.get();
+        long readCount = hitCount + mMissCount.get();
+        return readCount == 0 ? 0 : (double) hitCount / readCount;
+    }
+
+    @Override
+    public String toString() {
+        return getHitCount() + " hits, " + getMissCount() + " misses (" + Math.round(getHitRate() * 100) + "%)";
+    }
+}
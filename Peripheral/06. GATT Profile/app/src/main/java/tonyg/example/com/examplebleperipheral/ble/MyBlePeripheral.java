@@ -12,19 +12,30 @@ import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
-import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.os.BatteryManager;
 import android.os.ParcelUuid;
 import android.util.Log;
 
+import java.nio.charset.Charset;
 import java.util.Arrays;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
 
+import tonyg.example.com.examplebleperipheral.ble.callbacks.BleAdvertiserCallback;
+import tonyg.example.com.examplebleperipheral.ble.callbacks.BleGattProfileCallback;
 import tonyg.example.com.examplebleperipheral.ble.callbacks.BlePeripheralCallback;
+import tonyg.example.com.examplebleperipheral.utilities.BleUuid;
 import tonyg.example.com.examplebleperipheral.utilities.DataConverter;
 
 import static android.content.Context.BATTERY_SERVICE;
@@ -41,22 +52,26 @@ public class MyBlePeripheral {
 
     public static final String CHARSET = "ASCII";
 
-    private static final int BATTERY_STATUS_CHECK_TIME_MS = 5*1000; // 5 minutes
-
     private static final String MODEL_NUMBER = "1AB2";
     private static final String SERIAL_NUMBER = "1234";
 
     /** Peripheral and GATT Profile **/
     public static final String ADVERTISING_NAME =  "MyDevice";
+    // the advertised name can be shortened to this many characters to make room
+    private static final int MINIMUM_ADVERTISING_NAME_LENGTH = 4;
+
+    public static final UUID DEVICE_INFORMATION_SERVICE_UUID = BleUuid.toUuid(0x180A);
+    public static final UUID BATTERY_LEVEL_SERVICE = BleUuid.toUuid(0x180F);
 
-    public static final UUID DEVICE_INFORMATION_SERVICE_UUID = UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb");
-    public static final UUID BATTERY_LEVEL_SERVICE = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    public static final UUID DEVICE_NAME_CHARACTERISTIC_UUID = BleUuid.toUuid(0x2A00);
+    public static final UUID MODEL_NUMBER_CHARACTERISTIC_UUID = BleUuid.toUuid(0x2A24);
+    public static final UUID SERIAL_NUMBER_CHARACTERISTIC_UUID = BleUuid.toUuid(0x2A04);
 
-    public static final UUID DEVICE_NAME_CHARACTERISTIC_UUID = UUID.fromString("00002a00-0000-1000-8000-00805f9b34fb");
-    public static final UUID MODEL_NUMBER_CHARACTERISTIC_UUID = UUID.fromString("00002a24-0000-1000-8000-00805f9b34fb");
-    public static final UUID SERIAL_NUMBER_CHARACTERISTIC_UUID = UUID.fromString("00002a04-0000-1000-8000-00805f9b34fb");
+    public static final UUID BATTERY_LEVEL_CHARACTERISTIC_UUID = BleUuid.toUuid(0x2A19);
 
-    public static final UUID BATTERY_LEVEL_CHARACTERISTIC_UUID = UUID.fromString("00002a19-0000-1000-8000-00805f9b34fb");
+    // how long a read value is served before it is read from the system again
+    private static final long DEVICE_NAME_TIME_TO_LIVE_MS = 60000;
+    private static final long BATTERY_LEVEL_TIME_TO_LIVE_MS = 60000;
 
     /** Advertising settings **/
 
@@ -66,6 +81,10 @@ public class MyBlePeripheral {
     // transmission power mode
     int mTransmissionPower = AdvertiseSettings.ADVERTISE_TX_POWER_HIGH;
 
+    // keep advertising until this many Centrals are connected
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+    private volatile int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+
 
 
     /** Callback Handlers **/
@@ -74,27 +93,150 @@ public class MyBlePeripheral {
     /** Bluetooth Stuff **/
     private Context mContext;
     private BluetoothAdapter mBluetoothAdapter;
-    private BluetoothLeAdvertiser mBluetoothAdvertiser;
+    private BleAdvertiser mAdvertiser;
+    private BleAdvertiser mBroadcaster;
 
     private BluetoothGattServer mGattServer;
-    private BluetoothGattService mDeviceInformationService, mBatteryLevelService;
-    private BluetoothGattCharacteristic mDeviceNameCharacteristic,
-            mModelNumberCharacteristic,
-            mSerialNumberCharacteristic,
-            mBatteryLevelCharactersitic;
+    private BleGattProfile mGattProfile;
+    private BleAdvertisingPlan mAdvertisingPlan;
+    private BluetoothGattCharacteristic mBatteryLevelCharactersitic;
+
+    /** Values served to Centrals **/
+    private BleAttributeTable mAttributeTable;
+    private BleGattRequestDispatcher mRequestDispatcher;
+    private final BleNotificationEngine mNotificationEngine = new BleNotificationEngine();
+
+    // the name can be changed in the system settings
+    private final BleValueProvider mDeviceNameProvider = new BleValueProvider(DEVICE_NAME_TIME_TO_LIVE_MS) {
+        @Override
+        protected byte[] computeValue() {
+            String name = mBluetoothAdapter.getName();
+            return (name != null ? name : ADVERTISING_NAME).getBytes(Charset.forName(CHARSET));
+        }
+    };
+
+    // asking BatteryManager is a system call, so only do it for a read when no change was broadcast lately
+    private final BleValueProvider mBatteryLevelProvider = new BleValueProvider(BATTERY_LEVEL_TIME_TO_LIVE_MS) {
+        @Override
+        protected byte[] computeValue() {
+            return new byte[] { (byte) getBatteryLevel() };
+        }
+    };
+
+    // the last battery level served, so that only changes are sent
+    private int mBatteryLevel = -1;
+
+    /** Connectionless broadcast **/
+    // values broadcast as service data in the advertisement, by Service UUID
+    private final Map<UUID, byte[]> mBroadcastValues = new LinkedHashMap<>();
+    private boolean mBroadcastMode = false;
+
+    // whether advertising was asked for, and whether the advertisement is on the air.
+    // It waits for the GATT profile, and is taken off the air while the most Centrals are connected
+    private boolean mAdvertisingRequested = false;
+    private boolean mAdvertising = false;
+    private boolean mServicesAdded = false;
+
+    /** Connected Centrals **/
+    private final ConcurrentHashMap<BluetoothDevice, BleCentralSession> mSessions = new ConcurrentHashMap<>();
+
+
+    /** Lifecycle **/
+    private static MyBlePeripheral sInstance;
+
+    private BluetoothManager mBluetoothManager;
+    private ScheduledExecutorService mScheduler;
+    private final BleLifecycle mLifecycle = new BleLifecycle(
+            // shared background thread
+            new BleLifecycle.Resource() {
+                @Override
+                public void open() {
+                    mScheduler = BleScheduler.acquire();
+                    mGattProfile.startSampling(mScheduler);
+                }
+
+                @Override
+                public void close() {
+                    mGattProfile.stopSampling();
+                    mScheduler = null;
+                    BleScheduler.release();
+                }
+            },
+            // GATT server
+            new BleLifecycle.Resource() {
+                @Override
+                public void open() throws Exception {
+                    openGattServer();
+                }
+
+                @Override
+                public void close() {
+                    closeGattServer();
+                }
+            },
+            // advertisers, made new each time since the old ones are gone once the radio turns off
+            new BleLifecycle.Resource() {
+                @Override
+                public void open() throws Exception {
+                    if (mBluetoothAdapter.getBluetoothLeAdvertiser() == null) {
+                        throw new Exception("Bluetooth is off");
+                    }
+                    // the advertisement Centrals connect to.  The broadcaster is only made once it is used
+                    mAdvertiser = BleAdvertiser.getAdvertiser(mBluetoothAdapter, mAdvertiserCallback);
+                }
+
+                @Override
+                public void close() {
+                    mAdvertiser.stop();
+                    mAdvertiser = null;
+                    if (mBroadcaster != null) {
+                        mBroadcaster.stop();
+                        mBroadcaster = null;
+                    }
+                }
+            },
+            // battery level, pushed when it changes.  The current level arrives right away
+            new BleLifecycle.Resource() {
+                @Override
+                public void open() {
+                    mBatteryLevel = -1;
+                    mContext.registerReceiver(mBatteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+                }
 
+                @Override
+                public void close() {
+                    mContext.unregisterReceiver(mBatteryReceiver);
+                }
+            });
 
 
+    /**
+     * Get the Peripheral, creating it the first time.
+     * It holds no Bluetooth resources until it is started
+     *
+     * @param context any Context.  The Application Context is kept
+     * @param blePeripheralCallback The callback handler that interfaces with this Peripheral, replacing any earlier one
+     * @return the Peripheral
+     * @throws Exception Exception thrown if Bluetooth is not supported
+     */
+    public static synchronized MyBlePeripheral getInstance(Context context, BlePeripheralCallback blePeripheralCallback) throws Exception {
+        if (sInstance == null) {
+            Context applicationContext = context.getApplicationContext();
+            sInstance = new MyBlePeripheral(applicationContext,
+                    (BluetoothManager) applicationContext.getSystemService(Context.BLUETOOTH_SERVICE));
+        }
+        sInstance.mBlePeripheralCallback = blePeripheralCallback;
+        return sInstance;
+    }
 
     /**
-     * Construct a new Peripheral
+     * Construct a new Peripheral.  Tests pass a simulated Bluetooth Manager
      *
      * @param context The Application Context
-     * @param blePeripheralCallback The callback handler that interfaces with this Peripheral
+     * @param bluetoothManager the Bluetooth Manager, which allows us to talk to the BLE radio
      * @throws Exception Exception thrown if Bluetooth is not supported
      */
-    public MyBlePeripheral(final Context context, BlePeripheralCallback blePeripheralCallback) throws Exception {
-        mBlePeripheralCallback = blePeripheralCallback;
+    MyBlePeripheral(final Context context, BluetoothManager bluetoothManager) throws Exception {
         mContext = context;
 
         // make sure Android device supports Bluetooth Low Energy
@@ -102,26 +244,108 @@ public class MyBlePeripheral {
             throw new Exception("Bluetooth Not Supported");
         }
 
-        // get a reference to the Bluetooth Manager class, which allows us to talk to talk to the BLE radio
-        final BluetoothManager bluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+        mBluetoothManager = bluetoothManager;
 
-        mGattServer = bluetoothManager.openGattServer(context, mGattServerCallback);
-        mBluetoothAdapter = bluetoothManager.getAdapter();
+        mBluetoothAdapter = mBluetoothManager.getAdapter();
 
         if(!mBluetoothAdapter.isMultipleAdvertisementSupported()) {
             throw new Exception ("Peripheral mode not supported");
         }
 
-        mBluetoothAdvertiser = mBluetoothAdapter.getBluetoothLeAdvertiser();
-
         // Use this method instead for better support
-        if (mBluetoothAdvertiser == null) {
+        if (mBluetoothAdapter.getBluetoothLeAdvertiser() == null) {
             throw new Exception ("Peripheral mode not supported");
         }
 
         setupDevice();
     }
 
+    /**
+     * Open the GATT server, get the advertisers, and follow the battery level.  Does nothing if already started
+     *
+     * @throws Exception if the GATT server could not be opened, for example because Bluetooth is off
+     */
+    public void start() throws Exception {
+        mLifecycle.start();
+    }
+
+    /**
+     * Stop advertising, disconnect every Central, and release the GATT server.
+     * The Peripheral can be started again
+     */
+    public void stop() {
+        if (mLifecycle.getState() == BleLifecycle.State.STARTED) {
+            stopAdvertising();
+            stopBroadcastMode();
+        }
+        mLifecycle.stop();
+    }
+
+    /**
+     * Stop the Peripheral for good.  The next getInstance() creates a new one
+     */
+    public void close() {
+        stop();
+        mLifecycle.close();
+        synchronized (MyBlePeripheral.class) {
+            if (sInstance == this) {
+                sInstance = null;
+            }
+        }
+    }
+
+    /**
+     * @return <b>true</b> if the GATT server is open
+     */
+    public boolean isStarted() {
+        return mLifecycle.getState() == BleLifecycle.State.STARTED;
+    }
+
+    /**
+     * @return the shared scheduler for periodic work, or null if the Peripheral is not started
+     */
+    public ScheduledExecutorService getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * @return the value providers by Characteristic UUID, with their cache hit rates
+     */
+    public Map<UUID, BleValueProvider> getValueProviders() {
+        return mGattProfile.getValueProviders();
+    }
+
+    /**
+     * Open the GATT server and add the GATT profile to it
+     *
+     * @throws Exception if the server could not be opened
+     */
+    private void openGattServer() throws Exception {
+        mGattServer = mBluetoothManager.openGattServer(mContext, mGattServerCallback);
+        if (mGattServer == null) {
+            throw new Exception("Could not open GATT server");
+        }
+        mRequestDispatcher.setGattServer(mGattServer);
+        mNotificationEngine.setGattServer(mGattServer, mScheduler);
+
+        // add Services to Peripheral, one at a time.  Advertising waits until they are all added
+        synchronized (this) {
+            mServicesAdded = false;
+        }
+        mGattProfile.addServices(mGattServer, mGattProfileCallback);
+    }
+
+    /**
+     * Close the GATT server, which disconnects every Central
+     */
+    private void closeGattServer() {
+        mRequestDispatcher.setGattServer(null);
+        mNotificationEngine.setGattServer(null, null);
+        mGattServer.close();
+        mGattServer = null;
+        mSessions.clear();
+    }
+
     /**
      * Get the system Bluetooth Adapter
      *
@@ -132,6 +356,45 @@ public class MyBlePeripheral {
     }
 
 
+    /**
+     * Set how many Centrals can connect at once.  Advertising stops while this many are connected
+     *
+     * @param maxConnections the most Centrals to serve at once
+     */
+    public void setMaxConnections(int maxConnections) {
+        mMaxConnections = maxConnections;
+        updateAdvertising();
+    }
+
+    /**
+     * @return how many Centrals are connected
+     */
+    public int getConnectedCentralCount() {
+        return mSessions.size();
+    }
+
+    /**
+     * @return the sessions of the connected Centrals, with their request rates and latencies
+     */
+    public Collection<BleCentralSession> getSessions() {
+        return Collections.unmodifiableCollection(mSessions.values());
+    }
+
+    /**
+     * Find the session of a connected Central.  Sessions start only when a connection is
+     * reported, so a request that comes after the Central disconnected has none
+     *
+     * @param device the Central
+     * @return its session, or null if it is not connected
+     */
+    private BleCentralSession getSession(BluetoothDevice device) {
+        BleCentralSession session = mSessions.get(device);
+        if (session == null) {
+            Log.w(TAG, "Ignoring request from " + device.getAddress() + ", which is not connected");
+        }
+        return session;
+    }
+
     /**
      * Get the battery level
      */
@@ -144,101 +407,298 @@ public class MyBlePeripheral {
      * Set up the GATT profile
      */
     private void setupDevice() throws Exception {
-        // build Characteristics
-        mDeviceInformationService = new BluetoothGattService(DEVICE_INFORMATION_SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        // put in fake values for the fixed Characteristics.  The others are read when a Central asks
+        mGattProfile = new BleGattProfile.Builder()
+                .addService(DEVICE_INFORMATION_SERVICE_UUID)
+                .addDynamicCharacteristic(DEVICE_NAME_CHARACTERISTIC_UUID,
+                        BluetoothGattCharacteristic.PROPERTY_READ,
+                        BluetoothGattCharacteristic.PERMISSION_READ,
+                        mDeviceNameProvider)
+                .addCharacteristic(MODEL_NUMBER_CHARACTERISTIC_UUID,
+                        BluetoothGattCharacteristic.PROPERTY_READ,
+                        BluetoothGattCharacteristic.PERMISSION_READ,
+                        MODEL_NUMBER.getBytes(CHARSET))
+                .addCharacteristic(SERIAL_NUMBER_CHARACTERISTIC_UUID,
+                        BluetoothGattCharacteristic.PROPERTY_READ,
+                        BluetoothGattCharacteristic.PERMISSION_READ,
+                        SERIAL_NUMBER.getBytes(CHARSET))
+                .addService(BATTERY_LEVEL_SERVICE)
+                .addDynamicCharacteristic(BATTERY_LEVEL_CHARACTERISTIC_UUID,
+                        BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                        BluetoothGattCharacteristic.PERMISSION_READ,
+                        mBatteryLevelProvider)
+                .build();
 
-        mDeviceNameCharacteristic = new BluetoothGattCharacteristic(
-                DEVICE_NAME_CHARACTERISTIC_UUID,
-                BluetoothGattCharacteristic.PROPERTY_READ,
-                BluetoothGattCharacteristic.PERMISSION_READ);
-        mModelNumberCharacteristic = new BluetoothGattCharacteristic(
-                MODEL_NUMBER_CHARACTERISTIC_UUID,
-                BluetoothGattCharacteristic.PROPERTY_READ,
-                BluetoothGattCharacteristic.PERMISSION_READ);
-        mSerialNumberCharacteristic = new BluetoothGattCharacteristic(
-                SERIAL_NUMBER_CHARACTERISTIC_UUID,
-                BluetoothGattCharacteristic.PROPERTY_READ,
-                BluetoothGattCharacteristic.PERMISSION_READ);
+        mBatteryLevelCharactersitic = mGattProfile.getCharacteristic(BATTERY_LEVEL_CHARACTERISTIC_UUID);
 
-        mBatteryLevelService = new BluetoothGattService(BATTERY_LEVEL_SERVICE, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        // serve the values from a table, encoded once
+        mAttributeTable = mGattProfile.getAttributeTable();
+        mRequestDispatcher = new BleGattRequestDispatcher(mAttributeTable);
 
-        mBatteryLevelCharactersitic = new BluetoothGattCharacteristic(
-                BATTERY_LEVEL_CHARACTERISTIC_UUID,
-                BluetoothGattCharacteristic.PROPERTY_READ,
-                BluetoothGattCharacteristic.PERMISSION_READ);
+        // fit the advertisement in 31 bytes now, instead of failing when advertising starts
+        mAdvertisingPlan = buildAdvertisingPlan(false);
+        Log.v(TAG, "Advertising plan: " + mAdvertisingPlan);
+    }
 
+    /**
+     * Plan the advertisement
+     *
+     * @param includeBroadcastValues <b>true</b> to advertise the broadcast values as service data
+     * @return the plan
+     * @throws IllegalArgumentException if the advertisement can not fit
+     */
+    private BleAdvertisingPlan buildAdvertisingPlan(boolean includeBroadcastValues) {
+        BleAdvertisingPlan.Builder builder = new BleAdvertisingPlan.Builder()
+                .setName(ADVERTISING_NAME, MINIMUM_ADVERTISING_NAME_LENGTH)
+                .addServiceUuid(DEVICE_INFORMATION_SERVICE_UUID)
+                .addServiceUuid(BATTERY_LEVEL_SERVICE)
+                .setConnectable(true);
+        if (includeBroadcastValues) {
+            for (Map.Entry<UUID, byte[]> entry : mBroadcastValues.entrySet()) {
+                builder.addServiceData(entry.getKey(), entry.getValue());
+            }
+        }
+        return builder.build();
+    }
 
 
-        mDeviceInformationService.addCharacteristic(mDeviceNameCharacteristic);
-        mDeviceInformationService.addCharacteristic(mModelNumberCharacteristic);
-        mDeviceInformationService.addCharacteristic(mSerialNumberCharacteristic);
 
-        mBatteryLevelService.addCharacteristic(mBatteryLevelCharactersitic);
+    /**
+     * Serve a new battery level, and notify subscribed Centrals if it changed
+     *
+     * @param batteryLevel the battery level, in percent
+     */
+    private void updateBatteryLevel(int batteryLevel) {
+        if (batteryLevel == mBatteryLevel) {
+            return; // most battery broadcasts are about temperature or voltage
+        }
+        mBatteryLevel = batteryLevel;
+        byte[] value = new byte[] { (byte) batteryLevel };
+        mBatteryLevelProvider.setValue(value);
+        mNotificationEngine.notifySubscribers(mSessions.values(), mBatteryLevelCharactersitic, value);
+        try {
+            setBroadcastValue(BATTERY_LEVEL_SERVICE, value);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Could not broadcast battery level: " + e.getMessage());
+        }
+    }
 
-        // put in fake values for the Characteristic.
-        mDeviceNameCharacteristic.setValue(ADVERTISING_NAME.getBytes(CHARSET));
-        mModelNumberCharacteristic.setValue(MODEL_NUMBER.getBytes(CHARSET));
-        mSerialNumberCharacteristic.setValue(SERIAL_NUMBER.getBytes(CHARSET));
+    /**
+     * Start Advertising.  The advertisement goes on the air once the GATT profile is added,
+     * and stays off the air while the most Centrals are connected
+     *
+     * @throws Exception Exception thrown if Bluetooth Peripheral mode is not supported, or the Peripheral is not started
+     */
+    public synchronized void startAdvertising() throws Exception {
+        if (!isStarted()) {
+            throw new Exception("Peripheral is not started");
+        }
+        mAdvertisingRequested = true;
+        updateAdvertising();
+    }
 
-        // add Services to Peripheral
-        mGattServer.addService(mDeviceInformationService);
-        mGattServer.addService(mBatteryLevelService);
+    /**
+     * Put the advertisement on the air or take it off, as asked for and as connections allow
+     */
+    private synchronized void updateAdvertising() {
+        boolean advertise = mAdvertisingRequested && isStarted() && mServicesAdded && mSessions.size() < mMaxConnections;
+        if (advertise && !mAdvertising) {
+            advertise();
+            mAdvertising = true;
+        } else if (!advertise && mAdvertising) {
+            mAdvertising = false;
+            if (mAdvertiser != null) {
+                mAdvertiser.stop();
+            }
+            mBlePeripheralCallback.onAdvertisingStopped();
+        }
+    }
+
+    /**
+     * Put the advertisement on the air as planned, replacing the one already there
+     */
+    private void advertise() {
+        // set the device name, shortened if the plan needed the room
+        mBluetoothAdapter.setName(mAdvertisingPlan.getName());
 
+        AdvertiseData advertiseData = buildAdvertiseData(mAdvertisingPlan, false);
+        AdvertiseData scanResponse = mAdvertisingPlan.hasScanResponse() ? buildAdvertiseData(mAdvertisingPlan, true) : null;
 
-        // update the battery level every BATTERY_STATUS_CHECK_TIME_MS milliseconds
-        TimerTask updateBatteryTask = new TimerTask() {
-            @Override
-            public void run() {
-                mBatteryLevelCharactersitic.setValue(getBatteryLevel(),BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-            }
-        };
-        Timer randomStringTimer = new Timer();
-        // schedule the battery update and run it once immediately
-        randomStringTimer.schedule(updateBatteryTask, 0, BATTERY_STATUS_CHECK_TIME_MS);
+        // begin advertising with transmission power and advertise speed
+        mAdvertiser.setAdvertiseMode(mAdvertisingMode);
+        mAdvertiser.setTxPowerLevel(mTransmissionPower);
+        mAdvertiser.start(true, advertiseData, scanResponse, null);
+    }
+
+    /**
+     * Build the fields an advertising plan puts in the advertisement or in the scan response
+     *
+     * @param advertisingPlan the advertising plan
+     * @param scanResponse <b>true</b> to build the scan response, <b>false</b> for the advertisement
+     * @return the advertised data
+     */
+    private static AdvertiseData buildAdvertiseData(BleAdvertisingPlan advertisingPlan, boolean scanResponse) {
+        AdvertiseData.Builder builder = new AdvertiseData.Builder();
+        boolean hasName = advertisingPlan.getName() != null;
+        builder.setIncludeDeviceName(hasName && advertisingPlan.isNameInScanResponse() == scanResponse);
+        boolean hasTxPowerLevel = advertisingPlan.isTxPowerLevelIncluded();
+        builder.setIncludeTxPowerLevel(hasTxPowerLevel && advertisingPlan.isTxPowerLevelInScanResponse() == scanResponse);
+        List<UUID> serviceUuids = scanResponse ? advertisingPlan.getScanResponseServiceUuids() : advertisingPlan.getAdvertisedServiceUuids();
+        for (UUID serviceUuid : serviceUuids) {
+            builder.addServiceUuid(new ParcelUuid(serviceUuid));
+        }
+        Map<UUID, byte[]> serviceData = scanResponse ? advertisingPlan.getScanResponseServiceData() : advertisingPlan.getAdvertisedServiceData();
+        for (Map.Entry<UUID, byte[]> entry : serviceData.entrySet()) {
+            builder.addServiceData(new ParcelUuid(entry.getKey()), entry.getValue());
+        }
+        return builder.build();
+    }
 
+    /**
+     * Follow a new advertising plan.  If the advertisement is on the air and only the values of
+     * its service data changed, the new values are sent to it; if fields moved, it is restarted
+     *
+     * @param advertisingPlan the new advertising plan
+     */
+    private void setAdvertisingPlan(BleAdvertisingPlan advertisingPlan) {
+        BleAdvertisingPlan previousPlan = mAdvertisingPlan;
+        mAdvertisingPlan = advertisingPlan;
+        if (!mAdvertising) {
+            return;
+        }
+        if (advertisingPlan.hasSameLayout(previousPlan)) {
+            mAdvertiser.setAdvertiseData(buildAdvertiseData(advertisingPlan, false));
+        } else {
+            advertise();
+        }
     }
 
 
+    /**
+     * Stop advertising
+     */
+    public synchronized void stopAdvertising() {
+        mAdvertisingRequested = false;
+        updateAdvertising();
+    }
 
     /**
-     * Start Advertising
+     * Broadcast data to any number of listeners, without connections.
+     * On controllers with extended advertising the data can be up to 251 bytes and periodic
+     * data is sent by periodic advertising; otherwise the data is limited to 31 bytes and the
+     * periodic data takes turns with it
      *
-     * @throws Exception Exception thrown if Bluetooth Peripheral mode is not supported
+     * @param broadcastData the data in the broadcast
+     * @param periodicData data for listeners that follow the broadcast, or null
+     * @throws Exception Exception thrown if the Peripheral is not started
      */
-    public void startAdvertising() throws Exception {
-        // set the device name
-        mBluetoothAdapter.setName(ADVERTISING_NAME);
+    public void startBroadcasting(AdvertiseData broadcastData, AdvertiseData periodicData) throws Exception {
+        if (!isStarted()) {
+            throw new Exception("Peripheral is not started");
+        }
+        if (mBroadcaster == null) {
+            mBroadcaster = BleAdvertiser.getAdvertiser(mBluetoothAdapter, mBroadcasterCallback);
+        }
+        mBroadcaster.setAdvertiseMode(mAdvertisingMode);
+        mBroadcaster.setTxPowerLevel(mTransmissionPower);
+        mBroadcaster.start(false, broadcastData, null, periodicData);
+    }
 
-        // Build Advertise settings with transmission power and advertise speed
-        AdvertiseSettings advertiseSettings = new AdvertiseSettings.Builder()
-                .setAdvertiseMode(mAdvertisingMode)
-                .setTxPowerLevel(mTransmissionPower)
-                .setConnectable(true)
-                .build();
+    /**
+     * Change the broadcast data while broadcasting
+     *
+     * @param broadcastData the data in the broadcast
+     */
+    public void setBroadcastData(AdvertiseData broadcastData) {
+        if (mBroadcaster != null) {
+            mBroadcaster.setAdvertiseData(broadcastData);
+        }
+    }
 
+    /**
+     * Change the periodic data while broadcasting
+     *
+     * @param periodicData data for listeners that follow the broadcast
+     */
+    public void setPeriodicBroadcastData(AdvertiseData periodicData) {
+        if (mBroadcaster != null) {
+            mBroadcaster.setPeriodicData(periodicData);
+        }
+    }
 
-        AdvertiseData.Builder advertiseBuilder = new AdvertiseData.Builder();
-        // set advertising name
-        advertiseBuilder.setIncludeDeviceName(true);
+    /**
+     * Advertise every broadcast value as service data, so that Centrals can read them from
+     * their scan results without connecting.  The values go in the advertisement Centrals
+     * connect to, next to the name, and the advertisement changes whenever a value does
+     *
+     * @throws IllegalArgumentException if the values do not fit in the advertisement
+     */
+    public synchronized void startBroadcastMode() {
+        mBroadcastMode = true;
+        try {
+            updateAdvertisingPlan();
+        } catch (IllegalArgumentException e) {
+            mBroadcastMode = false;
+            throw e;
+        }
+    }
 
-        // add Services to Advertising Data
-        advertiseBuilder.addServiceUuid(new ParcelUuid(DEVICE_INFORMATION_SERVICE_UUID));
-        advertiseBuilder.addServiceUuid(new ParcelUuid(BATTERY_LEVEL_SERVICE));
+    /**
+     * Stop advertising the broadcast values
+     */
+    public synchronized void stopBroadcastMode() {
+        mBroadcastMode = false;
+        updateAdvertisingPlan();
+    }
 
-        AdvertiseData advertiseData = advertiseBuilder.build();
+    /**
+     * Broadcast a small value as the service data of a Service, such as the battery level
+     *
+     * @param serviceUuid the Service the value belongs to
+     * @param value the encoded value, which is kept, not copied
+     * @throws IllegalArgumentException if the value does not fit in the advertisement
+     */
+    public synchronized void setBroadcastValue(UUID serviceUuid, byte[] value) {
+        byte[] oldValue = mBroadcastValues.put(serviceUuid, value);
+        try {
+            // check that the value fits even when not broadcasting
+            BleAdvertisingPlan advertisingPlan = buildAdvertisingPlan(true);
+            if (mBroadcastMode) {
+                setAdvertisingPlan(advertisingPlan);
+            }
+        } catch (IllegalArgumentException e) {
+            // leave the advertisement as it was
+            if (oldValue != null) {
+                mBroadcastValues.put(serviceUuid, oldValue);
+            } else {
+                mBroadcastValues.remove(serviceUuid);
+            }
+            throw e;
+        }
+    }
 
-        // begin advertising
-        mBluetoothAdvertiser.startAdvertising( advertiseSettings, advertiseData, mAdvertiseCallback );
+    /**
+     * Plan the advertisement again, and send it if it is on the air
+     *
+     * @throws IllegalArgumentException if the advertisement can not fit
+     */
+    private void updateAdvertisingPlan() {
+        setAdvertisingPlan(buildAdvertisingPlan(mBroadcastMode));
     }
 
+    /**
+     * @return <b>true</b> if broadcasts use extended advertising, so they can be longer than 31 bytes
+     */
+    public boolean isBroadcastExtended() {
+        return mBroadcaster != null && mBroadcaster.isExtended();
+    }
 
     /**
-     * Stop advertising
+     * Stop broadcasting
      */
-    public void stopAdvertising() {
-        if (mBluetoothAdvertiser != null) {
-            mBluetoothAdvertiser.stopAdvertising(mAdvertiseCallback);
-            mBlePeripheralCallback.onAdvertisingStopped();
+    public void stopBroadcasting() {
+        if (mBroadcaster != null) {
+            mBroadcaster.stop();
         }
     }
 
@@ -249,41 +709,163 @@ public class MyBlePeripheral {
             super.onConnectionStateChange(device, status, newState);
             Log.v(TAG, "Connected");
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                if (newState == BluetoothGatt.STATE_CONNECTED) {
-                    mBlePeripheralCallback.onCentralConnected(device);
-                    stopAdvertising();
+            if (newState == BluetoothGatt.STATE_CONNECTED && status == BluetoothGatt.GATT_SUCCESS) {
+                mSessions.putIfAbsent(device, new BleCentralSession(device));
+                mBlePeripheralCallback.onCentralConnected(device);
+                // keep advertising so that more Centrals can connect, up to the limit
+                updateAdvertising();
+
+            } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
+                // a dropped connection ends the session too, whatever the status
+                BleCentralSession session = mSessions.remove(device);
+                if (session != null) {
+                    mNotificationEngine.onDisconnected(session);
+                    Log.v(TAG, "Session ended: " + session);
+                }
+                mBlePeripheralCallback.onCentralDisconnected(device);
+                // a connection may be free again
+                updateAdvertising();
+            }
 
+        }
 
-                } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
-                    mBlePeripheralCallback.onCentralDisconnected(device);
-                    try {
-                        startAdvertising();
-                    } catch (Exception e) {
-                        Log.e(TAG, "error starting advertising");
-                    }
-                }
+        @Override
+        public void onServiceAdded(int status, BluetoothGattService service) {
+            BluetoothGattServer gattServer = mGattServer;
+            if (gattServer != null) {
+                mGattProfile.onServiceAdded(gattServer, status, service);
+            }
+        }
+
+        @Override
+        public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
+            BleCentralSession session = getSession(device);
+            if (session != null) {
+                mRequestDispatcher.onReadRequest(session, requestId, offset, mAttributeTable.get(characteristic));
+            }
+        }
+
+        @Override
+        public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId, BluetoothGattCharacteristic characteristic,
+                                                 boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+            BleCentralSession session = getSession(device);
+            if (session != null) {
+                mRequestDispatcher.onWriteRequest(session, requestId, mAttributeTable.get(characteristic), preparedWrite, responseNeeded, offset, value);
             }
+        }
 
+        @Override
+        public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattDescriptor descriptor) {
+            BleCentralSession session = getSession(device);
+            if (session == null) {
+                return;
+            }
+            if (BleGattProfile.CLIENT_CHARACTERISTIC_CONFIGURATION_UUID.equals(descriptor.getUuid())) {
+                mRequestDispatcher.onSubscriptionReadRequest(session, requestId, offset, descriptor.getCharacteristic());
+            } else {
+                mRequestDispatcher.onReadRequest(session, requestId, offset, mAttributeTable.get(descriptor));
+            }
+        }
+
+        @Override
+        public void onDescriptorWriteRequest(BluetoothDevice device, int requestId, BluetoothGattDescriptor descriptor,
+                                             boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+            BleCentralSession session = getSession(device);
+            if (session == null) {
+                return;
+            }
+            if (BleGattProfile.CLIENT_CHARACTERISTIC_CONFIGURATION_UUID.equals(descriptor.getUuid())) {
+                mRequestDispatcher.onSubscriptionWriteRequest(session, requestId, descriptor.getCharacteristic(), responseNeeded, offset, value);
+            } else {
+                mRequestDispatcher.onWriteRequest(session, requestId, mAttributeTable.get(descriptor), preparedWrite, responseNeeded, offset, value);
+            }
+        }
+
+        @Override
+        public void onNotificationSent(BluetoothDevice device, int status) {
+            BleCentralSession session = mSessions.get(device);
+            if (session != null) {
+                mNotificationEngine.onNotificationSent(session, status);
+            }
+        }
+
+        @Override
+        public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+            BleCentralSession session = getSession(device);
+            if (session != null) {
+                mRequestDispatcher.onExecuteWrite(session, requestId, execute);
+            }
         }
 
     };
 
 
-    private AdvertiseCallback mAdvertiseCallback = new AdvertiseCallback() {
+    /**
+     * Report when the GATT profile is ready
+     */
+    private final BleGattProfileCallback mGattProfileCallback = new BleGattProfileCallback() {
+        @Override
+        public void onServicesAdded() {
+            Log.v(TAG, "GATT profile added");
+            synchronized (MyBlePeripheral.this) {
+                mServicesAdded = true;
+                updateAdvertising();
+            }
+        }
 
         @Override
-        public void onStartSuccess(AdvertiseSettings settingsInEffect) {
-            super.onStartSuccess(settingsInEffect);
+        public void onServiceAddFailed(BluetoothGattService service, int status) {
+            Log.e(TAG, "GATT profile incomplete, service " + service.getUuid() + " failed with status " + status);
+            // Centrals would connect to a Peripheral without its Services, so do not advertise
+            boolean advertisingRequested;
+            synchronized (MyBlePeripheral.this) {
+                advertisingRequested = mAdvertisingRequested;
+            }
+            if (advertisingRequested) {
+                mBlePeripheralCallback.onAdvertisingFailed(AdvertiseCallback.ADVERTISE_FAILED_INTERNAL_ERROR);
+            }
+        }
+    };
 
+    /**
+     * Follow the battery level
+     */
+    private final BroadcastReceiver mBatteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            if (level >= 0 && scale > 0) {
+                updateBatteryLevel(level * 100 / scale);
+            }
+        }
+    };
+
+
+    private final BleAdvertiserCallback mAdvertiserCallback = new BleAdvertiserCallback() {
+
+        @Override
+        public void onAdvertisingStarted() {
             mBlePeripheralCallback.onAdvertisingStarted();
         }
 
         @Override
-        public void onStartFailure(int errorCode) {
-            super.onStartFailure(errorCode);
+        public void onAdvertisingFailed(int errorCode) {
             mBlePeripheralCallback.onAdvertisingFailed(errorCode);
         }
     };
 
+    private final BleAdvertiserCallback mBroadcasterCallback = new BleAdvertiserCallback() {
+
+        @Override
+        public void onAdvertisingStarted() {
+            Log.v(TAG, "Broadcasting started, extended: " + mBroadcaster.isExtended());
+        }
+
+        @Override
+        public void onAdvertisingFailed(int errorCode) {
+            Log.e(TAG, "Broadcasting failed with error " + errorCode);
+        }
+    };
+
 }
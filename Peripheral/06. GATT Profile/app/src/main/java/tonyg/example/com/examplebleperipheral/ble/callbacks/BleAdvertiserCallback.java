@@ -0,0 +1,22 @@
+package tonyg.example.com.examplebleperipheral.ble.callbacks;
+
+/**
+ * BleAdvertiserCallback reports whether an advertisement could start
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public abstract class BleAdvertiserCallback {
+
+    /**
+     * The advertisement is on the air
+     */
+    public abstract void onAdvertisingStarted();
+
+    /**
+     * The advertisement could not start
+     *
+     * @param errorCode one of the ADVERTISE_FAILED_ values of AdvertiseCallback
+     */
+    public abstract void onAdvertisingFailed(int errorCode);
+}
@@ -0,0 +1,25 @@
+package tonyg.example.com.examplebleperipheral.ble.callbacks;
+
+import android.bluetooth.BluetoothGattService;
+
+/**
+ * BleGattProfileCallback reports when a GATT profile has been added to a GATT server
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public abstract class BleGattProfileCallback {
+
+    /**
+     * Every Service was added
+     */
+    public abstract void onServicesAdded();
+
+    /**
+     * A Service could not be added.  The Services after it were not added either
+     *
+     * @param service the Service
+     * @param status the GATT status
+     */
+    public abstract void onServiceAddFailed(BluetoothGattService service, int status);
+}
@@ -0,0 +1,58 @@
+package tonyg.example.com.examplebleperipheral.utilities;
+
+import java.util.UUID;
+
+/**
+ * Work with Bluetooth SIG UUIDs as numbers.
+ *
+ * UUIDs assigned by the Bluetooth SIG are 16 or 32 bit numbers added to the Bluetooth
+ * Base UUID, 00000000-0000-1000-8000-00805f9b34fb, so they can be built and taken apart
+ * with a little arithmetic instead of parsing strings
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BleUuid {
+    /** The Bluetooth Base UUID, split into its two halves **/
+    public static final long BASE_UUID_MOST_SIGNIFICANT_BITS = 0x0000000000001000L;
+    public static final long BASE_UUID_LEAST_SIGNIFICANT_BITS = 0x800000805f9b34fbL;
+
+    /**
+     * Expand a SIG-assigned number into a UUID
+     *
+     * @param shortUuid a 16 or 32 bit UUID assigned by the Bluetooth SIG, such as 0x180A
+     * @return the full 128 bit UUID
+     */
+    public static UUID toUuid(int shortUuid) {
+        return new UUID(((shortUuid & 0xffffffffL) << 32) | BASE_UUID_MOST_SIGNIFICANT_BITS, BASE_UUID_LEAST_SIGNIFICANT_BITS);
+    }
+
+    /**
+     * @param uuid any UUID
+     * @return <b>true</b> if the UUID is built on the Bluetooth Base UUID
+     */
+    public static boolean isShortUuid(UUID uuid) {
+        return uuid.getLeastSignificantBits() == BASE_UUID_LEAST_SIGNIFICANT_BITS
+                && (uuid.getMostSignificantBits() & 0xffffffffL) == BASE_UUID_MOST_SIGNIFICANT_BITS;
+    }
+
+    /**
+     * @param uuid any UUID
+     * @return <b>true</b> if the UUID can be sent as 16 bits
+     */
+    public static boolean is16BitUuid(UUID uuid) {
+        return isShortUuid(uuid) && (uuid.getMostSignificantBits() >>> 48) == 0;
+    }
+
+    /**
+     * @param uuid a UUID built on the Bluetooth Base UUID
+     * @return the 16 or 32 bit value of the UUID
+     * @throws IllegalArgumentException if the UUID is not built on the Bluetooth Base UUID
+     */
+    public static int toShortUuid(UUID uuid) {
+        if (!isShortUuid(uuid)) {
+            throw new IllegalArgumentException("Not a Bluetooth SIG UUID: " + uuid);
+        }
+        return (int) (uuid.getMostSignificantBits() >>> 32);
+    }
+}
@@ -0,0 +1,160 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import tonyg.example.com.examplebleperipheral.utilities.BleUuid;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that advertising plans count bytes exactly and never go over 31 bytes a packet
+ */
+public class BleAdvertisingPlanTest {
+    private static final UUID DEVICE_INFORMATION_SERVICE_UUID = BleUuid.toUuid(0x180A);
+    private static final UUID BATTERY_LEVEL_SERVICE = BleUuid.toUuid(0x180F);
+    private static final UUID CUSTOM_SERVICE_UUID = UUID.fromString("12345678-9abc-def0-1234-56789abcdef0");
+    private static final UUID OTHER_CUSTOM_SERVICE_UUID = UUID.fromString("0fedcba9-8765-4321-0fed-cba987654321");
+
+    @Test
+    public void sigUuidsAreSentShort() throws Exception {
+        assertEquals(2, BleAdvertisingPlan.getEncodedLength(BATTERY_LEVEL_SERVICE));
+        assertEquals(4, BleAdvertisingPlan.getEncodedLength(BleUuid.toUuid(0x12345678)));
+        assertEquals(16, BleAdvertisingPlan.getEncodedLength(CUSTOM_SERVICE_UUID));
+    }
+
+    @Test
+    public void countsEveryByte() throws Exception {
+        BleAdvertisingPlan plan = new BleAdvertisingPlan.Builder()
+                .setName("MyDevice")
+                .addServiceUuid(DEVICE_INFORMATION_SERVICE_UUID)
+                .addServiceUuid(BATTERY_LEVEL_SERVICE)
+                .build();
+
+        // flags 3, one 16 bit UUID field 2 + 2 + 2, name 2 + 8
+        assertEquals(3 + 6 + 10, plan.getAdvertisementLength());
+        assertFalse(plan.hasScanResponse());
+        assertEquals("MyDevice", plan.getName());
+        assertEquals(2, plan.getAdvertisedServiceUuids().size());
+    }
+
+    @Test
+    public void movesWhatDoesNotFitToTheScanResponse() throws Exception {
+        BleAdvertisingPlan plan = new BleAdvertisingPlan.Builder()
+                .setName("MyDevice")
+                .addServiceUuid(CUSTOM_SERVICE_UUID)
+                .addServiceUuid(BATTERY_LEVEL_SERVICE)
+                .setIncludeTxPowerLevel(true)
+                .build();
+
+        // flags 3, 128 bit UUID 18, 16 bit UUID 4 leaves 6 bytes, too few for the name
+        assertEquals(3 + 18 + 4 + 3, plan.getAdvertisementLength());
+        assertTrue(plan.isNameInScanResponse());
+        assertFalse(plan.isTxPowerLevelInScanResponse());
+        assertEquals(10, plan.getScanResponseLength());
+    }
+
+    @Test
+    public void shortensTheName() throws Exception {
+        BleAdvertisingPlan plan = new BleAdvertisingPlan.Builder()
+                .setName("A Peripheral With A Very Long Name Indeed", 4)
+                .addServiceUuid(CUSTOM_SERVICE_UUID)
+                .addServiceUuid(OTHER_CUSTOM_SERVICE_UUID)
+                .build();
+
+        // each packet has one UUID.  The scan response has no flags, so the name goes there in 11 characters
+        assertEquals(1, plan.getScanResponseServiceUuids().size());
+        assertTrue(plan.isNameInScanResponse());
+        assertEquals("A Peripheral With A Very Long Name Indeed".substring(0, 11), plan.getName());
+        assertEquals(BleAdvertisingPlan.MAX_PAYLOAD_LENGTH, plan.getScanResponseLength());
+    }
+
+    @Test
+    public void placesServiceDataBeforeTheName() throws Exception {
+        BleAdvertisingPlan plan = new BleAdvertisingPlan.Builder()
+                .setName("MyDevice")
+                .addServiceUuid(DEVICE_INFORMATION_SERVICE_UUID)
+                .addServiceUuid(BATTERY_LEVEL_SERVICE)
+                .addServiceData(BATTERY_LEVEL_SERVICE, new byte[] { 100 })
+                .build();
+
+        // flags 3, 16 bit UUIDs 6, service data 2 + 2 + 1, name 2 + 8
+        assertEquals(3 + 6 + 5 + 10, plan.getAdvertisementLength());
+        assertArrayEquals(new byte[] { 100 }, plan.getAdvertisedServiceData().get(BATTERY_LEVEL_SERVICE));
+        assertFalse(plan.hasScanResponse());
+    }
+
+    @Test
+    public void movesServiceDataThatDoesNotFitToTheScanResponse() throws Exception {
+        BleAdvertisingPlan plan = new BleAdvertisingPlan.Builder()
+                .setName("MyDevice")
+                .addServiceUuid(CUSTOM_SERVICE_UUID)
+                .addServiceData(BATTERY_LEVEL_SERVICE, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 })
+                .build();
+
+        // flags 3 and a 128 bit UUID 18 leave 10 bytes, too few for 12 bytes of service data
+        assertTrue(plan.getAdvertisedServiceData().isEmpty());
+        assertEquals(1, plan.getScanResponseServiceData().size());
+        assertEquals(12, plan.getScanResponseLength());
+        assertFalse(plan.isNameInScanResponse());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsANameThatCanNotBeShortEnough() throws Exception {
+        new BleAdvertisingPlan.Builder()
+                .setName("A Peripheral With A Very Long Name Indeed")
+                .addServiceUuid(CUSTOM_SERVICE_UUID)
+                .addServiceUuid(OTHER_CUSTOM_SERVICE_UUID)
+                .build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooManyServices() throws Exception {
+        new BleAdvertisingPlan.Builder()
+                .addServiceUuid(CUSTOM_SERVICE_UUID)
+                .addServiceUuid(OTHER_CUSTOM_SERVICE_UUID)
+                .addServiceUuid(UUID.fromString("00000000-1111-2222-3333-444444444444"))
+                .build();
+    }
+
+    @Test
+    public void changedServiceDataValuesKeepTheLayout() throws Exception {
+        BleAdvertisingPlan plan = buildBatteryPlan(new byte[] { 50 });
+
+        assertTrue(buildBatteryPlan(new byte[] { 49 }).hasSameLayout(plan));
+        assertFalse(buildBatteryPlan(new byte[] { 49 }).hasSameLayout(null));
+
+        // service data this long pushes the name into the scan response
+        BleAdvertisingPlan longerPlan = buildBatteryPlan(new byte[12]);
+        assertTrue(longerPlan.isNameInScanResponse());
+        assertFalse(longerPlan.hasSameLayout(plan));
+        assertFalse(plan.hasSameLayout(longerPlan));
+    }
+
+    private static BleAdvertisingPlan buildBatteryPlan(byte[] batteryLevel) {
+        return new BleAdvertisingPlan.Builder()
+                .setName("MyDevice")
+                .addServiceUuid(BATTERY_LEVEL_SERVICE)
+                .addServiceData(BATTERY_LEVEL_SERVICE, batteryLevel)
+                .build();
+    }
+
+    @Test
+    public void neverOverflows() throws Exception {
+        for (int serviceCount = 0; serviceCount < 12; serviceCount++) {
+            for (int nameLength = 1; nameLength < 40; nameLength++) {
+                BleAdvertisingPlan.Builder builder = new BleAdvertisingPlan.Builder()
+                        .setName(new String(new char[nameLength]).replace('\0', 'x'), 1)
+                        .setIncludeTxPowerLevel(true);
+                for (int i = 0; i < serviceCount; i++) {
+                    builder.addServiceUuid(BleUuid.toUuid(0x1800 + i));
+                }
+                BleAdvertisingPlan plan = builder.build();
+                assertTrue(plan.getAdvertisementLength() <= BleAdvertisingPlan.MAX_PAYLOAD_LENGTH);
+                assertTrue(plan.getScanResponseLength() <= BleAdvertisingPlan.MAX_PAYLOAD_LENGTH);
+                assertEquals(serviceCount, plan.getAdvertisedServiceUuids().size() + plan.getScanResponseServiceUuids().size());
+            }
+        }
+    }
+}
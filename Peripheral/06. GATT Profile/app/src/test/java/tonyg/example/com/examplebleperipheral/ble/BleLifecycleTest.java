@@ -0,0 +1,126 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import org.junit.Test;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the contract of BleLifecycle and BleScheduler: started and stopped many times over
+ * simulated resources, a lifecycle closes everything it opened, in reverse, and the shared
+ * scheduler thread ends once nothing holds it.  MyBlePeripheralTest cycles the Peripheral's
+ * own resources
+ */
+public class BleLifecycleTest {
+    private static final int CYCLES = 10000;
+
+    /**
+     * Stands in for the Bluetooth adapter, counting what is held
+     */
+    private static class SimulatedAdapter {
+        boolean mEnabled = true;
+        int mOpenGattServers = 0;
+        int mRegisteredReceivers = 0;
+    }
+
+    private static BleLifecycle buildLifecycle(final SimulatedAdapter adapter, final ScheduledExecutorService[] scheduler) {
+        return new BleLifecycle(
+                new BleLifecycle.Resource() {
+                    @Override
+                    public void open() {
+                        scheduler[0] = BleScheduler.acquire();
+                    }
+
+                    @Override
+                    public void close() {
+                        BleScheduler.release();
+                    }
+                },
+                new BleLifecycle.Resource() {
+                    @Override
+                    public void open() throws Exception {
+                        if (!adapter.mEnabled) {
+                            throw new Exception("Bluetooth is off");
+                        }
+                        adapter.mOpenGattServers++;
+                    }
+
+                    @Override
+                    public void close() {
+                        adapter.mOpenGattServers--;
+                    }
+                },
+                new BleLifecycle.Resource() {
+                    @Override
+                    public void open() {
+                        adapter.mRegisteredReceivers++;
+                    }
+
+                    @Override
+                    public void close() {
+                        adapter.mRegisteredReceivers--;
+                    }
+                });
+    }
+
+    @Test
+    public void startStopCycles_leakNothing() throws Exception {
+        SimulatedAdapter adapter = new SimulatedAdapter();
+        ScheduledExecutorService[] scheduler = new ScheduledExecutorService[1];
+        BleLifecycle lifecycle = buildLifecycle(adapter, scheduler);
+
+        for (int cycle = 0; cycle < CYCLES; cycle++) {
+            // every so often Bluetooth is off when the Peripheral starts
+            adapter.mEnabled = cycle % 100 != 99;
+            try {
+                lifecycle.start();
+                lifecycle.start(); // starting twice opens nothing more
+                assertTrue(adapter.mEnabled);
+                assertEquals(1, adapter.mOpenGattServers);
+                assertEquals(1, adapter.mRegisteredReceivers);
+                assertEquals(1, BleScheduler.getUserCount());
+            } catch (Exception e) {
+                assertFalse(adapter.mEnabled);
+                assertEquals(BleLifecycle.State.STOPPED, lifecycle.getState());
+            }
+            lifecycle.stop();
+            assertEquals(0, lifecycle.getOpenResourceCount());
+            assertEquals(0, adapter.mOpenGattServers);
+            assertEquals(0, adapter.mRegisteredReceivers);
+            assertEquals(0, BleScheduler.getUserCount());
+            assertTrue(scheduler[0].isShutdown());
+        }
+        assertTrue(scheduler[0].awaitTermination(1, TimeUnit.SECONDS));
+
+        lifecycle.close();
+        assertEquals(BleLifecycle.State.CLOSED, lifecycle.getState());
+    }
+
+    @Test
+    public void sharedScheduler_staysUpWhileInUse() throws Exception {
+        SimulatedAdapter adapter = new SimulatedAdapter();
+        ScheduledExecutorService[] first = new ScheduledExecutorService[1];
+        ScheduledExecutorService[] second = new ScheduledExecutorService[1];
+        BleLifecycle firstLifecycle = buildLifecycle(adapter, first);
+        BleLifecycle secondLifecycle = buildLifecycle(new SimulatedAdapter(), second);
+
+        firstLifecycle.start();
+        secondLifecycle.start();
+        assertSame(first[0], second[0]);
+        firstLifecycle.stop();
+        assertFalse(second[0].isShutdown());
+        secondLifecycle.stop();
+        assertTrue(second[0].isShutdown());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closed_cannotStart() throws Exception {
+        BleLifecycle lifecycle = buildLifecycle(new SimulatedAdapter(), new ScheduledExecutorService[1]);
+        lifecycle.start();
+        lifecycle.close();
+        assertEquals(0, BleScheduler.getUserCount());
+        lifecycle.start();
+    }
+}
@@ -0,0 +1,173 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import tonyg.example.com.examplebleperipheral.utilities.BleUuid;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a notification queue keeps only the latest value of each Characteristic,
+ * sends one value at a time, and keeps a failed value until it is given up
+ */
+public class BleNotificationQueueTest {
+    private static final BluetoothGattCharacteristic BATTERY_LEVEL = new BluetoothGattCharacteristic(
+            BleUuid.toUuid(0x2A19), BluetoothGattCharacteristic.PROPERTY_NOTIFY, BluetoothGattCharacteristic.PERMISSION_READ);
+    private static final BluetoothGattCharacteristic HEART_RATE = new BluetoothGattCharacteristic(
+            BleUuid.toUuid(0x2A37), BluetoothGattCharacteristic.PROPERTY_NOTIFY, BluetoothGattCharacteristic.PERMISSION_READ);
+
+    @Test
+    public void coalescesValuesOfTheSameCharacteristic() throws Exception {
+        BleNotificationQueue queue = new BleNotificationQueue();
+        queue.offer(BATTERY_LEVEL, new byte[] { 90 });
+        queue.offer(HEART_RATE, new byte[] { 60 });
+        queue.offer(BATTERY_LEVEL, new byte[] { 89 });
+
+        assertEquals(2, queue.getDepth());
+        assertEquals(1, queue.getCoalescedCount());
+
+        // the replaced value keeps its place, with the latest value
+        Map.Entry<BluetoothGattCharacteristic, byte[]> next = queue.poll();
+        assertSame(BATTERY_LEVEL, next.getKey());
+        assertArrayEquals(new byte[] { 89 }, next.getValue());
+    }
+
+    @Test
+    public void sendsOneValueAtATime() throws Exception {
+        BleNotificationQueue queue = new BleNotificationQueue();
+        queue.offer(BATTERY_LEVEL, new byte[] { 90 });
+        queue.offer(HEART_RATE, new byte[] { 60 });
+
+        assertNotNull(queue.poll());
+        assertNull(queue.poll());
+
+        queue.onSent(true);
+        assertSame(HEART_RATE, queue.poll().getKey());
+        assertEquals(1, queue.getSentCount());
+    }
+
+    @Test
+    public void coalescesWhileAValueIsOnItsWay() throws Exception {
+        BleNotificationQueue queue = new BleNotificationQueue();
+        queue.offer(BATTERY_LEVEL, new byte[] { 90 });
+        queue.poll();
+        for (int level = 89; level > 80; level--) {
+            queue.offer(BATTERY_LEVEL, new byte[] { (byte) level });
+        }
+
+        assertEquals(1, queue.getDepth());
+        assertEquals(8, queue.getCoalescedCount());
+        queue.onSent(true);
+        assertArrayEquals(new byte[] { 81 }, queue.poll().getValue());
+    }
+
+    @Test
+    public void triesAFailedValueAgainFirst() throws Exception {
+        BleNotificationQueue queue = new BleNotificationQueue();
+        queue.offer(BATTERY_LEVEL, new byte[] { 90 });
+        queue.offer(HEART_RATE, new byte[] { 60 });
+
+        queue.poll();
+        queue.onSent(false);
+
+        Map.Entry<BluetoothGattCharacteristic, byte[]> next = queue.poll();
+        assertSame(BATTERY_LEVEL, next.getKey());
+        assertArrayEquals(new byte[] { 90 }, next.getValue());
+        assertEquals(0, queue.getFailedCount());
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        BleNotificationQueue queue = new BleNotificationQueue();
+        queue.offer(BATTERY_LEVEL, new byte[] { 90 });
+
+        for (int attempt = 0; attempt < BleNotificationQueue.MAX_ATTEMPTS; attempt++) {
+            assertNotNull(queue.poll());
+            queue.onSent(false);
+        }
+
+        assertNull(queue.poll());
+        assertEquals(1, queue.getFailedCount());
+    }
+
+    @Test
+    public void aNewerValueReplacesAFailedOne() throws Exception {
+        BleNotificationQueue queue = new BleNotificationQueue();
+        queue.offer(BATTERY_LEVEL, new byte[] { 90 });
+        queue.poll();
+        queue.offer(BATTERY_LEVEL, new byte[] { 89 });
+        queue.onSent(false);
+
+        assertEquals(1, queue.getDepth());
+        assertArrayEquals(new byte[] { 89 }, queue.poll().getValue());
+    }
+
+    @Test
+    public void timesOutOnlyTheSameSend() throws Exception {
+        BleNotificationQueue queue = new BleNotificationQueue();
+        queue.offer(BATTERY_LEVEL, new byte[] { 90 });
+        queue.poll();
+        long inFlightId = queue.getInFlightId();
+        queue.onSent(true);
+
+        queue.offer(BATTERY_LEVEL, new byte[] { 89 });
+        queue.poll();
+        assertFalse(queue.onTimeout(inFlightId));
+        assertTrue(queue.onTimeout(queue.getInFlightId()));
+        assertFalse(queue.isInFlight());
+    }
+
+    @Test
+    public void ignoresTheLateReportOfATimedOutSend() throws Exception {
+        BleNotificationQueue queue = new BleNotificationQueue();
+        queue.offer(BATTERY_LEVEL, new byte[] { 90 });
+        queue.offer(HEART_RATE, new byte[] { 60 });
+        queue.poll();
+        assertTrue(queue.onTimeout(queue.getInFlightId()));
+
+        // the battery level goes again first, and the report of the first send comes in late
+        assertSame(BATTERY_LEVEL, queue.poll().getKey());
+        assertFalse(queue.onSentReported(true));
+        assertTrue(queue.isInFlight());
+
+        // the report after that is its own
+        assertTrue(queue.onSentReported(true));
+        assertEquals(1, queue.getSentCount());
+    }
+
+    @Test
+    public void stopsWaitingForALateReportThatNeverCame() throws Exception {
+        BleNotificationQueue queue = new BleNotificationQueue();
+        queue.offer(BATTERY_LEVEL, new byte[] { 90 });
+        queue.poll();
+        queue.onTimeout(queue.getInFlightId());
+
+        // no late report came, so the report of the second send was ignored and it times out
+        queue.poll();
+        assertFalse(queue.onSentReported(true));
+        assertTrue(queue.onTimeout(queue.getInFlightId()));
+
+        // from then on reports count again
+        queue.poll();
+        assertTrue(queue.onSentReported(true));
+        assertEquals(1, queue.getSentCount());
+    }
+
+    @Test
+    public void clearForgetsTheValueOnItsWay() throws Exception {
+        BleNotificationQueue queue = new BleNotificationQueue();
+        queue.offer(BATTERY_LEVEL, new byte[] { 90 });
+        queue.offer(HEART_RATE, new byte[] { 60 });
+        queue.poll();
+
+        queue.clear();
+
+        assertFalse(queue.isInFlight());
+        assertEquals(0, queue.getDepth());
+        assertNull(queue.poll());
+    }
+}
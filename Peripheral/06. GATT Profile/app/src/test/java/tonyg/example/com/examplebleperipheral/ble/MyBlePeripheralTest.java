@@ -0,0 +1,130 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Starts and stops a real MyBlePeripheral many times over a simulated Bluetooth Manager and
+ * Context, and checks that every GATT server, receiver, and scheduler user it takes is given
+ * back.  Robolectric runs the framework's own GATT classes, which the profile is built from,
+ * and lets the final Bluetooth classes be mocked
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MyBlePeripheralTest {
+    private static final int CYCLES = 10000;
+
+    // what the simulated system holds
+    private boolean mEnabled = true;
+    private int mOpenGattServers = 0;
+    private int mRegisteredReceivers = 0;
+
+    private Context mContext;
+    private BluetoothManager mBluetoothManager;
+
+    @Before
+    public void setUp() {
+        PackageManager packageManager = mock(PackageManager.class);
+        when(packageManager.hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)).thenReturn(true);
+
+        mContext = mock(Context.class);
+        when(mContext.getPackageManager()).thenReturn(packageManager);
+        when(mContext.registerReceiver(any(BroadcastReceiver.class), any(IntentFilter.class))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                mRegisteredReceivers++;
+                return null;
+            }
+        });
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                mRegisteredReceivers--;
+                return null;
+            }
+        }).when(mContext).unregisterReceiver(any(BroadcastReceiver.class));
+
+        final BluetoothLeAdvertiser advertiser = mock(BluetoothLeAdvertiser.class);
+        BluetoothAdapter bluetoothAdapter = mock(BluetoothAdapter.class);
+        when(bluetoothAdapter.isMultipleAdvertisementSupported()).thenReturn(true);
+        when(bluetoothAdapter.isEnabled()).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                return mEnabled;
+            }
+        });
+        // with the radio off there is no advertiser
+        when(bluetoothAdapter.getBluetoothLeAdvertiser()).thenAnswer(new Answer<BluetoothLeAdvertiser>() {
+            @Override
+            public BluetoothLeAdvertiser answer(InvocationOnMock invocation) {
+                return mEnabled ? advertiser : null;
+            }
+        });
+
+        final BluetoothGattServer gattServer = mock(BluetoothGattServer.class);
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                mOpenGattServers--;
+                return null;
+            }
+        }).when(gattServer).close();
+
+        mBluetoothManager = mock(BluetoothManager.class);
+        when(mBluetoothManager.getAdapter()).thenReturn(bluetoothAdapter);
+        when(mBluetoothManager.openGattServer(any(Context.class), any(BluetoothGattServerCallback.class))).thenAnswer(new Answer<BluetoothGattServer>() {
+            @Override
+            public BluetoothGattServer answer(InvocationOnMock invocation) {
+                mOpenGattServers++;
+                return gattServer;
+            }
+        });
+    }
+
+    @Test
+    public void startStopCycles_leakNothing() throws Exception {
+        MyBlePeripheral peripheral = new MyBlePeripheral(mContext, mBluetoothManager);
+
+        for (int cycle = 0; cycle < CYCLES; cycle++) {
+            // every so often the radio turns off after the GATT server opened, before the advertisers
+            mEnabled = cycle % 100 != 99;
+            try {
+                peripheral.start();
+                peripheral.start(); // starting twice opens nothing more
+                assertTrue(mEnabled);
+                assertTrue(peripheral.isStarted());
+                assertEquals(1, mOpenGattServers);
+                assertEquals(1, mRegisteredReceivers);
+                assertEquals(1, BleScheduler.getUserCount());
+            } catch (Exception e) {
+                assertFalse(mEnabled);
+                assertFalse(peripheral.isStarted());
+            }
+            peripheral.stop();
+            assertEquals(0, mOpenGattServers);
+            assertEquals(0, mRegisteredReceivers);
+            assertEquals(0, BleScheduler.getUserCount());
+            assertNull(peripheral.getScheduler());
+        }
+
+        peripheral.close();
+        assertFalse(peripheral.isStarted());
+    }
+}